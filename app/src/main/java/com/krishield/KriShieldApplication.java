@@ -0,0 +1,27 @@
+package com.krishield;
+
+import android.app.Application;
+
+import com.krishield.services.SyncWorker;
+import com.krishield.utils.AppExecutors;
+
+public class KriShieldApplication extends Application {
+
+    // Preference files used as caches before the TieredCache; their data is
+    // simply fetched again
+    private static final String[] LEGACY_CACHE_PREFS = {
+            "KrishieldMarketCache", "KrishieldIrrigationCache", "KrishieldCache", "KrishieldMainCache",
+            "KrishieldWeatherCache", "KrishieldGeocodeCache"
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        SyncWorker.schedule(this);
+        AppExecutors.getInstance().disk().execute(() -> {
+            for (String name : LEGACY_CACHE_PREFS) {
+                deleteSharedPreferences(name);
+            }
+        });
+    }
+}
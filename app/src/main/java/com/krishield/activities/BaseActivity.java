@@ -1,12 +1,31 @@
 package com.krishield.activities;
 
 import android.content.Context;
+import android.os.Bundle;
 import androidx.appcompat.app.AppCompatActivity;
 import com.krishield.utils.LocaleHelper;
+import com.krishield.utils.RequestScope;
 
 public class BaseActivity extends AppCompatActivity {
+    private RequestScope requestScope;
+
     @Override
     protected void attachBaseContext(Context newBase) {
         super.attachBaseContext(LocaleHelper.onAttach(newBase));
     }
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        // Observing the lifecycle has to start on the main thread
+        requestScope = new RequestScope(this);
+    }
+
+    /**
+     * Requests tracked here are cancelled when this screen is destroyed.
+     * Available from onCreate on.
+     */
+    protected RequestScope getRequestScope() {
+        return requestScope;
+    }
 }
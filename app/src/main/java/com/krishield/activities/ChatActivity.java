@@ -1,26 +1,20 @@
 package com.krishield.activities;
 
 import android.Manifest;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.net.Uri;
 import android.os.Bundle;
 import android.provider.MediaStore;
 import android.speech.RecognizerIntent;
+import android.view.Choreographer;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.ImageView;
 import android.widget.ProgressBar;
 import android.widget.Toast;
 
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
-
-import java.lang.reflect.Type;
-
 import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
@@ -31,17 +25,26 @@ import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.appbar.MaterialToolbar;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.android.material.button.MaterialButton;
 import com.krishield.R;
 import com.krishield.adapters.ChatAdapter;
 import com.krishield.models.ChatMessage;
+import com.krishield.repositories.AnswerCache;
+import com.krishield.repositories.ChatHistoryStore;
+import com.krishield.services.GeminiChatSession;
 import com.krishield.services.GeminiService;
+import com.krishield.utils.AppExecutors;
+import com.krishield.utils.ImagePreprocessor;
 import com.krishield.utils.TextToSpeechHelper;
 
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ChatActivity extends BaseActivity {
 
@@ -53,17 +56,37 @@ public class ChatActivity extends BaseActivity {
 
     private ChatAdapter chatAdapter;
     private GeminiService geminiService;
+    private GeminiChatSession chatSession;
+    private AnswerCache answerCache;
     private Executor executor;
+    // Stream callbacks must arrive in order, so a late partial cannot
+    // overwrite the final text
+    private Executor streamExecutor;
     private TextToSpeechHelper ttsHelper;
 
     private Bitmap selectedImage;
+    private ImagePreprocessor.Result selectedImageData;
+    private ImagePreprocessor imagePreprocessor;
     private boolean isVoiceMode = false;
 
-    // Chat history for memory retention
-    private ArrayList<ChatMessage> chatHistory = new ArrayList<>();
-    private static final String PREFS_NAME = "ChatHistory";
-    private static final String KEY_HISTORY = "history";
-    private static final int MAX_HISTORY_SIZE = 50;
+    // Latest streamed text not yet bound to the adapter
+    private final AtomicReference<String> pendingStreamText = new AtomicReference<>();
+    private final Choreographer.FrameCallback streamFrameCallback = frameTimeNanos -> {
+        String latest = pendingStreamText.getAndSet(null);
+        if (latest != null) {
+            chatAdapter.updateLastMessage(latest);
+            recyclerViewMessages.scrollToPosition(chatAdapter.getItemCount() - 1);
+        }
+    };
+
+    // Chat history for memory retention, loaded a page at a time
+    private ChatHistoryStore historyStore;
+    private static final int PAGE_SIZE = 50;
+    private long oldestLoadedId = Long.MAX_VALUE;
+    private boolean loadingHistory;
+    private boolean hasMoreHistory = true;
+    // Token budget for earlier turns sent with each question
+    private static final int HISTORY_TOKEN_BUDGET = 4000;
 
     private static final int CAMERA_PERMISSION_CODE = 100;
     private static final int GALLERY_PERMISSION_CODE = 101;
@@ -122,16 +145,31 @@ public class ChatActivity extends BaseActivity {
         recyclerViewMessages.setLayoutManager(new LinearLayoutManager(this));
         recyclerViewMessages.setAdapter(chatAdapter);
 
-        // Add welcome message
+        // Load older messages when scrolled to the top
+        recyclerViewMessages.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && !recyclerView.canScrollVertically(-1)) {
+                    loadOlderHistory();
+                }
+            }
+        });
+    }
+
+    private void addWelcomeMessage() {
         chatAdapter.addMessage(new ChatMessage(
                 "Hello! I'm KriShield AI, your farming assistant. How can I help you today?",
                 ChatMessage.MessageType.AI));
     }
 
     private void setupGemini() {
-        String customApiKey = SettingsActivity.getSavedApiKey(this);
-        geminiService = new GeminiService(customApiKey);
-        executor = Executors.newSingleThreadExecutor();
+        geminiService = GeminiService.getInstance(this);
+        imagePreprocessor = new ImagePreprocessor(this);
+        chatSession = geminiService.newChatSession(HISTORY_TOKEN_BUDGET);
+        answerCache = AnswerCache.getInstance(this);
+        historyStore = ChatHistoryStore.getInstance(this);
+        executor = AppExecutors.getInstance().cpu();
+        streamExecutor = MoreExecutors.newSequentialExecutor(executor);
 
         // Initialize TTS for voice responses
         ttsHelper = new TextToSpeechHelper(this, () -> {
@@ -161,8 +199,10 @@ public class ChatActivity extends BaseActivity {
                 result -> {
                     if (result.getResultCode() == RESULT_OK && result.getData() != null) {
                         Bundle extras = result.getData().getExtras();
-                        selectedImage = (Bitmap) extras.get("data");
-                        showImagePreview();
+                        Bitmap thumbnail = (Bitmap) extras.get("data");
+                        if (thumbnail != null) {
+                            preprocessImage(() -> imagePreprocessor.fromBitmap(thumbnail));
+                        }
                     }
                 });
 
@@ -171,16 +211,38 @@ public class ChatActivity extends BaseActivity {
                 result -> {
                     if (result.getResultCode() == RESULT_OK && result.getData() != null) {
                         Uri imageUri = result.getData().getData();
-                        try {
-                            selectedImage = MediaStore.Images.Media.getBitmap(getContentResolver(), imageUri);
-                            showImagePreview();
-                        } catch (IOException e) {
-                            Toast.makeText(this, "Error loading image", Toast.LENGTH_SHORT).show();
-                        }
+                        preprocessImage(() -> imagePreprocessor.fromUri(imageUri));
                     }
                 });
     }
 
+    /**
+     * Decode, downscale and compress the picked image off the UI thread, then
+     * show it in the preview
+     */
+    private void preprocessImage(Callable<ImagePreprocessor.Result> task) {
+        btnAttachImage.setEnabled(false);
+        executor.execute(() -> {
+            ImagePreprocessor.Result processed;
+            try {
+                processed = task.call();
+            } catch (Exception | OutOfMemoryError e) {
+                processed = null;
+            }
+            final ImagePreprocessor.Result image = processed;
+            runOnUiThread(() -> {
+                btnAttachImage.setEnabled(true);
+                if (image == null) {
+                    Toast.makeText(this, "Error loading image", Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                selectedImage = image.bitmap;
+                selectedImageData = image;
+                showImagePreview();
+            });
+        });
+    }
+
     private void setupVoiceRecognition() {
         voiceLauncher = registerForActivityResult(
                 new ActivityResultContracts.StartActivityForResult(),
@@ -293,12 +355,19 @@ public class ChatActivity extends BaseActivity {
         chatAdapter.addMessage(new ChatMessage("Thinking...", ChatMessage.MessageType.AI));
         scrollToBottom();
 
-        // Send to Gemini
+        // Send to Gemini, streaming partial text into the placeholder
         if (selectedImage != null) {
-            geminiService.analyzeImage(selectedImage, messageText, executor, new GeminiService.ResponseCallback() {
+            getRequestScope().track(geminiService.analyzeImageStream(selectedImageData.bytes,
+                    selectedImageData.mimeType, messageText, streamExecutor, new GeminiService.StreamCallback() {
                 @Override
-                public void onSuccess(String response) {
-                    runOnUiThread(() -> {
+                public void onPartial(String textSoFar) {
+                    postStreamUpdate(textSoFar);
+                }
+
+                @Override
+                public void onComplete(String response) {
+                    getRequestScope().runOnUiThread(() -> {
+                        finishStream();
                         chatAdapter.updateLastMessage(response);
                         progressBar.setVisibility(View.GONE);
                         btnSend.setEnabled(true);
@@ -313,58 +382,101 @@ public class ChatActivity extends BaseActivity {
 
                 @Override
                 public void onError(String error) {
-                    runOnUiThread(() -> {
+                    getRequestScope().runOnUiThread(() -> {
+                        finishStream();
                         chatAdapter.updateLastMessage("Sorry, I encountered an error: " + error);
                         progressBar.setVisibility(View.GONE);
                         btnSend.setEnabled(true);
                         scrollToBottom();
                     });
                 }
-            });
+            }));
 
             // Clear image
             selectedImage = null;
+            selectedImageData = null;
             imagePreview.setVisibility(View.GONE);
         } else {
             // Add user message to history
-            chatHistory.add(new ChatMessage(messageText, ChatMessage.MessageType.USER));
-
-            // Build conversation context
-            String contextualMessage = buildConversationContext() + "Current question: " + messageText;
+            historyStore.append(new ChatMessage(messageText, ChatMessage.MessageType.USER));
+
+            // Answer repeated questions from the cache, also works offline. A
+            // reply that used earlier turns may not fit another conversation,
+            // so only the first question of a chat is cached or served.
+            boolean standalone = chatSession.isEmpty();
+            String cached = standalone ? answerCache.lookup(messageText) : null;
+            if (cached != null) {
+                chatSession.addHistory(messageText, true);
+                chatSession.addHistory(cached, false);
+                showAnswer(cached);
+                return;
+            }
 
-            geminiService.sendTextMessage(contextualMessage, executor, new GeminiService.ResponseCallback() {
+            // The session sends earlier turns as typed history
+            getRequestScope().track(chatSession.sendMessageStream(messageText, streamExecutor,
+                    new GeminiService.StreamCallback() {
                 @Override
-                public void onSuccess(String response) {
-                    runOnUiThread(() -> {
-                        chatAdapter.updateLastMessage(response);
-                        progressBar.setVisibility(View.GONE);
-                        btnSend.setEnabled(true);
-                        scrollToBottom();
-
-                        // Add AI response to history
-                        chatHistory.add(new ChatMessage(response, ChatMessage.MessageType.AI));
-                        saveChatHistory();
+                public void onPartial(String textSoFar) {
+                    postStreamUpdate(textSoFar);
+                }
 
-                        // Speak the response if in voice mode
-                        if (isVoiceMode && ttsHelper != null) {
-                            ttsHelper.speak(response);
-                        }
-                    });
+                @Override
+                public void onComplete(String response) {
+                    if (standalone) {
+                        answerCache.put(messageText, response);
+                    }
+                    getRequestScope().runOnUiThread(() -> showAnswer(response));
                 }
 
                 @Override
                 public void onError(String error) {
-                    runOnUiThread(() -> {
+                    getRequestScope().runOnUiThread(() -> {
+                        finishStream();
                         chatAdapter.updateLastMessage("Sorry, I encountered an error: " + error);
                         progressBar.setVisibility(View.GONE);
                         btnSend.setEnabled(true);
                         scrollToBottom();
                     });
                 }
-            });
+            }));
+        }
+    }
+
+    private void showAnswer(String response) {
+        finishStream();
+        chatAdapter.updateLastMessage(response);
+        progressBar.setVisibility(View.GONE);
+        btnSend.setEnabled(true);
+        scrollToBottom();
+
+        // Add AI response to history
+        historyStore.append(new ChatMessage(response, ChatMessage.MessageType.AI));
+
+        // Speak the response if in voice mode
+        if (isVoiceMode && ttsHelper != null) {
+            ttsHelper.speak(response);
         }
     }
 
+    /**
+     * Show streamed text in the placeholder message. Chunks can arrive faster
+     * than the screen refreshes, so only the latest text is bound, at most once
+     * per frame.
+     */
+    private void postStreamUpdate(String textSoFar) {
+        if (pendingStreamText.getAndSet(textSoFar) != null) {
+            // A frame callback is already scheduled and will pick up this text
+            return;
+        }
+        runOnUiThread(() -> Choreographer.getInstance().postFrameCallback(streamFrameCallback));
+    }
+
+    // Drop any streamed text not yet shown; the final text replaces it
+    private void finishStream() {
+        pendingStreamText.set(null);
+        Choreographer.getInstance().removeFrameCallback(streamFrameCallback);
+    }
+
     private void scrollToBottom() {
         recyclerViewMessages.post(() -> recyclerViewMessages.smoothScrollToPosition(chatAdapter.getItemCount() - 1));
     }
@@ -397,42 +509,66 @@ public class ChatActivity extends BaseActivity {
     }
 
     /**
-     * Load chat history from SharedPreferences
+     * Show the newest page of stored messages and restore it into the Gemini
+     * chat session, which keeps as much as fits its token budget
      */
     private void loadChatHistory() {
-        try {
-            SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            String json = prefs.getString(KEY_HISTORY, "[]");
+        loadingHistory = true;
+        Futures.addCallback(getRequestScope().track(historyStore.loadPage(Long.MAX_VALUE, PAGE_SIZE)),
+                new FutureCallback<List<ChatMessage>>() {
+                    @Override
+                    public void onSuccess(List<ChatMessage> page) {
+                        for (ChatMessage msg : page) {
+                            chatSession.addHistory(msg.getText(), msg.getType() == ChatMessage.MessageType.USER);
+                        }
+                        getRequestScope().runOnUiThread(() -> {
+                            if (page.isEmpty()) {
+                                addWelcomeMessage();
+                            } else {
+                                chatAdapter.prependMessages(page);
+                                recyclerViewMessages.scrollToPosition(chatAdapter.getItemCount() - 1);
+                            }
+                            onPageLoaded(page);
+                        });
+                    }
 
-            Gson gson = new Gson();
-            Type type = new TypeToken<ArrayList<ChatMessage>>() {
-            }.getType();
-            chatHistory = gson.fromJson(json, type);
+                    @Override
+                    public void onFailure(@NonNull Throwable t) {
+                        getRequestScope().runOnUiThread(() -> {
+                            loadingHistory = false;
+                            addWelcomeMessage();
+                        });
+                    }
+                }, executor);
+    }
 
-            if (chatHistory == null) {
-                chatHistory = new ArrayList<>();
-            }
-        } catch (Exception e) {
-            chatHistory = new ArrayList<>();
+    private void loadOlderHistory() {
+        if (loadingHistory || !hasMoreHistory) {
+            return;
         }
-    }
+        loadingHistory = true;
+        Futures.addCallback(getRequestScope().track(historyStore.loadPage(oldestLoadedId, PAGE_SIZE)),
+                new FutureCallback<List<ChatMessage>>() {
+                    @Override
+                    public void onSuccess(List<ChatMessage> page) {
+                        getRequestScope().runOnUiThread(() -> {
+                            chatAdapter.prependMessages(page);
+                            onPageLoaded(page);
+                        });
+                    }
 
-    /**
-     * Save chat history to SharedPreferences
-     */
-    private void saveChatHistory() {
-        try {
-            // Trim history if too large
-            while (chatHistory.size() > MAX_HISTORY_SIZE) {
-                chatHistory.remove(0);
-            }
+                    @Override
+                    public void onFailure(@NonNull Throwable t) {
+                        getRequestScope().runOnUiThread(() -> loadingHistory = false);
+                    }
+                }, executor);
+    }
 
-            SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-            Gson gson = new Gson();
-            String json = gson.toJson(chatHistory);
-            prefs.edit().putString(KEY_HISTORY, json).apply();
-        } catch (Exception e) {
-            // Ignore save errors
+    private void onPageLoaded(List<ChatMessage> page) {
+        loadingHistory = false;
+        hasMoreHistory = page.size() == PAGE_SIZE;
+        if (!page.isEmpty()) {
+            oldestLoadedId = page.get(0).getId();
         }
     }
 
@@ -440,9 +576,10 @@ public class ChatActivity extends BaseActivity {
      * Clear chat history (for starting new chat)
      */
     private void clearChatHistory() {
-        chatHistory.clear();
-        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        prefs.edit().remove(KEY_HISTORY).apply();
+        chatSession.clear();
+        historyStore.clear();
+        oldestLoadedId = Long.MAX_VALUE;
+        hasMoreHistory = false;
     }
 
     /**
@@ -456,34 +593,8 @@ public class ChatActivity extends BaseActivity {
         chatAdapter = new ChatAdapter();
         recyclerViewMessages.setAdapter(chatAdapter);
 
-        // Add welcome message
-        chatAdapter.addMessage(new ChatMessage(
-                "Hello! I'm KriShield AI, your farming assistant. How can I help you today?",
-                ChatMessage.MessageType.AI));
+        addWelcomeMessage();
 
         Toast.makeText(this, "New chat started", Toast.LENGTH_SHORT).show();
     }
-
-    /**
-     * Build conversation context from history for Gemini
-     */
-    private String buildConversationContext() {
-        if (chatHistory.isEmpty()) {
-            return "";
-        }
-
-        StringBuilder context = new StringBuilder();
-        context.append("Previous conversation:\\n");
-
-        // Include last 10 messages for context (to avoid token limits)
-        int startIndex = Math.max(0, chatHistory.size() - 10);
-        for (int i = startIndex; i < chatHistory.size(); i++) {
-            ChatMessage msg = chatHistory.get(i);
-            String role = msg.getType() == ChatMessage.MessageType.USER ? "User" : "Assistant";
-            context.append(role).append(": ").append(msg.getText()).append("\\n");
-        }
-        context.append("\\n");
-
-        return context.toString();
-    }
 }
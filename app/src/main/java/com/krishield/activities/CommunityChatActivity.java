@@ -1,7 +1,5 @@
 package com.krishield.activities;
 
-import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -11,29 +9,65 @@ import android.widget.ImageButton;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
-import androidx.appcompat.app.AppCompatActivity;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.appbar.MaterialToolbar;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.krishield.R;
 import com.krishield.models.CommunityMessage;
+import com.krishield.repositories.CommunityMessageLog;
+import com.krishield.services.CommunitySyncClient;
 
-import java.lang.reflect.Type;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 public class CommunityChatActivity extends BaseActivity {
 
     private String communityId;
     private RecyclerView recyclerView;
+    private LinearLayoutManager layoutManager;
     private ChatAdapter adapter;
-    private List<CommunityMessage> messageList;
+    private List<CommunityMessage> messageList = new ArrayList<>();
     private EditText etMessage;
-    private SharedPreferences prefs;
-    private static final String PREF_NAME = "FarmersUnionChat";
+    private String communityName;
+
+    // Messages are journaled per community and shown through a window of
+    // pages: older ones load on scrolling up, newer ones on scrolling back
+    // down, and pages beyond MAX_PAGES are dropped from the far end
+    private CommunityMessageLog messageLog;
+    private CommunitySyncClient syncClient;
+    private final CommunitySyncClient.Listener syncListener = (id, messages, endOffset) -> onStored(messages,
+            endOffset, layoutManager.findLastVisibleItemPosition() >= messageList.size() - 2);
+    private static final int PAGE_SIZE = 50;
+    private static final int MAX_PAGES = 4;
+    // Start loading when this close to either end of the window
+    private static final int PREFETCH_DISTANCE = 10;
+    private final ArrayDeque<WindowPage> window = new ArrayDeque<>();
+    private boolean loadingPage;
+    private boolean hasOlder;
+    private boolean hasNewer;
+    // Bumped when the window is reset, so late pages for the old window are ignored
+    private int windowGeneration;
+
+    // Where a page shown in the window came from in the log. Live messages
+    // extend the newest page, or start a new one once it holds PAGE_SIZE.
+    private static class WindowPage {
+        final long startOffset;
+        long endOffset;
+        int size;
+
+        WindowPage(long startOffset, long endOffset, int size) {
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.size = size;
+        }
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -41,20 +75,20 @@ public class CommunityChatActivity extends BaseActivity {
         setContentView(R.layout.activity_community_chat);
 
         communityId = getIntent().getStringExtra("community_id");
-        String communityName = getIntent().getStringExtra("community_name");
+        communityName = getIntent().getStringExtra("community_name");
 
         MaterialToolbar toolbar = findViewById(R.id.toolbar);
         toolbar.setTitle(communityName);
         toolbar.setNavigationOnClickListener(v -> finish());
 
-        prefs = getSharedPreferences(PREF_NAME, MODE_PRIVATE);
-        loadMessages();
+        messageLog = CommunityMessageLog.getInstance(this);
+        syncClient = CommunitySyncClient.getInstance(this);
 
         recyclerView = findViewById(R.id.recycler_chat);
         etMessage = findViewById(R.id.et_message);
         ImageButton btnSend = findViewById(R.id.btn_send);
 
-        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager = new LinearLayoutManager(this);
         layoutManager.setStackFromEnd(true); // Start from bottom
         recyclerView.setLayoutManager(layoutManager);
 
@@ -63,55 +97,228 @@ public class CommunityChatActivity extends BaseActivity {
 
         btnSend.setOnClickListener(v -> sendMessage());
 
-        // Add fake welcome message if empty
-        if (messageList.isEmpty()) {
-            messageList.add(new CommunityMessage("System", "Welcome to the " + communityName + " group!",
-                    System.currentTimeMillis(), false));
-            adapter.notifyItemInserted(0);
+        // Load pages before either end of the window comes into view
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                if (dy < 0 && layoutManager.findFirstVisibleItemPosition() <= PREFETCH_DISTANCE) {
+                    loadOlderPage();
+                } else if (dy > 0
+                        && layoutManager.findLastVisibleItemPosition() >= messageList.size() - 1 - PREFETCH_DISTANCE) {
+                    loadNewerPage();
+                }
+            }
+        });
+
+        loadNewestPage();
+        syncClient.subscribe(communityId, syncListener);
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        syncClient.unsubscribe(communityId, syncListener);
+    }
+
+    /**
+     * Reset the window to the newest page of the log
+     */
+    private void loadNewestPage() {
+        windowGeneration++;
+        window.clear();
+        messageList.clear();
+        adapter.notifyDataSetChanged();
+        hasOlder = false;
+        hasNewer = false;
+        loadPage(messageLog.readPage(communityId, Long.MAX_VALUE, PAGE_SIZE), true);
+    }
+
+    private void loadOlderPage() {
+        if (!loadingPage && hasOlder && !window.isEmpty()) {
+            loadPage(messageLog.readPage(communityId, window.peekFirst().startOffset, PAGE_SIZE), true);
+        }
+    }
+
+    private void loadNewerPage() {
+        if (!loadingPage && hasNewer && !window.isEmpty()) {
+            loadPage(messageLog.readPageAfter(communityId, window.peekLast().endOffset, PAGE_SIZE), false);
+        }
+    }
+
+    private void loadPage(ListenableFuture<CommunityMessageLog.Page> read, boolean older) {
+        loadingPage = true;
+        int generation = windowGeneration;
+        Futures.addCallback(getRequestScope().track(read),
+                new FutureCallback<CommunityMessageLog.Page>() {
+                    @Override
+                    public void onSuccess(CommunityMessageLog.Page page) {
+                        getRequestScope().runOnUiThread(() -> {
+                            if (generation != windowGeneration) {
+                                return;
+                            }
+                            loadingPage = false;
+                            if (older) {
+                                prependPage(page);
+                            } else {
+                                appendPage(page);
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Throwable t) {
+                        getRequestScope().runOnUiThread(() -> {
+                            if (generation != windowGeneration) {
+                                return;
+                            }
+                            loadingPage = false;
+                            hasOlder = false;
+                            hasNewer = false;
+                            if (messageList.isEmpty()) {
+                                addWelcomeMessage();
+                            }
+                        });
+                    }
+                }, MoreExecutors.directExecutor());
+    }
+
+    private void prependPage(CommunityMessageLog.Page page) {
+        boolean firstPage = window.isEmpty();
+        hasOlder = page.hasOlder();
+        if (firstPage) {
+            hasNewer = page.hasNewer();
+        }
+        if (page.messages.isEmpty()) {
+            if (messageList.isEmpty()) {
+                addWelcomeMessage();
+            }
+            return;
+        }
+
+        int anchor = layoutManager.findFirstVisibleItemPosition();
+        int anchorTop = anchorTop(anchor);
+        int count = page.messages.size();
+        messageList.addAll(0, page.messages);
+        adapter.notifyItemRangeInserted(0, count);
+        window.addFirst(new WindowPage(page.startOffset, page.endOffset, count));
+
+        if (window.size() > MAX_PAGES) {
+            WindowPage dropped = window.removeLast();
+            int from = messageList.size() - dropped.size;
+            messageList.subList(from, messageList.size()).clear();
+            adapter.notifyItemRangeRemoved(from, dropped.size);
+            hasNewer = true;
+        }
+        if (firstPage) {
+            layoutManager.scrollToPosition(messageList.size() - 1);
+        } else if (anchor != RecyclerView.NO_POSITION) {
+            // Keep the message the farmer was reading in place
+            layoutManager.scrollToPositionWithOffset(anchor + count, anchorTop);
         }
     }
 
-    private void loadMessages() {
-        String json = prefs.getString("chat_" + communityId, null);
-        if (json != null) {
-            Gson gson = new Gson();
-            Type type = new TypeToken<List<CommunityMessage>>() {
-            }.getType();
-            messageList = gson.fromJson(json, type);
+    private void appendPage(CommunityMessageLog.Page page) {
+        hasNewer = page.hasNewer();
+        if (page.messages.isEmpty()) {
+            return;
         }
-        if (messageList == null) {
-            messageList = new ArrayList<>();
+
+        int anchor = layoutManager.findFirstVisibleItemPosition();
+        int anchorTop = anchorTop(anchor);
+        int count = page.messages.size();
+        int from = messageList.size();
+        messageList.addAll(page.messages);
+        adapter.notifyItemRangeInserted(from, count);
+        window.addLast(new WindowPage(page.startOffset, page.endOffset, count));
+        trimOldest(anchor, anchorTop);
+    }
+
+    // Drop the oldest page once the window holds more than MAX_PAGES
+    private void trimOldest(int anchor, int anchorTop) {
+        if (window.size() > MAX_PAGES) {
+            WindowPage dropped = window.removeFirst();
+            messageList.subList(0, dropped.size).clear();
+            adapter.notifyItemRangeRemoved(0, dropped.size);
+            hasOlder = true;
+            if (anchor != RecyclerView.NO_POSITION) {
+                layoutManager.scrollToPositionWithOffset(Math.max(0, anchor - dropped.size), anchorTop);
+            }
         }
     }
 
-    private void saveMessages() {
-        SharedPreferences.Editor editor = prefs.edit();
-        Gson gson = new Gson();
-        String json = gson.toJson(messageList);
-        editor.putString("chat_" + communityId, json);
-        editor.apply();
+    private int anchorTop(int position) {
+        View view = layoutManager.findViewByPosition(position);
+        return view != null ? view.getTop() - recyclerView.getPaddingTop() : 0;
+    }
+
+    // Shown in an empty group, not saved
+    private void addWelcomeMessage() {
+        messageList.add(new CommunityMessage("System", "Welcome to the " + communityName + " group!",
+                System.currentTimeMillis(), false));
+        adapter.notifyItemInserted(messageList.size() - 1);
+        window.addLast(new WindowPage(0, 0, 1));
     }
 
     private void sendMessage() {
         String text = etMessage.getText().toString().trim();
         if (!text.isEmpty()) {
-            // Add user message
             CommunityMessage msg = new CommunityMessage("You", text, System.currentTimeMillis(), true);
-            messageList.add(msg);
-            adapter.notifyItemInserted(messageList.size() - 1);
-            recyclerView.smoothScrollToPosition(messageList.size() - 1);
+            ListenableFuture<Long> stored = messageLog.append(communityId, msg);
+            syncClient.publish(communityId, msg);
             etMessage.setText("");
-            saveMessages();
-
-            // Simulate a reply after 2 seconds (Demo feature)
-            new android.os.Handler().postDelayed(() -> {
-                CommunityMessage reply = new CommunityMessage("Ramesh Farmer", "Great point! I agree with you.",
-                        System.currentTimeMillis(), false);
-                messageList.add(reply);
-                adapter.notifyItemInserted(messageList.size() - 1);
-                recyclerView.smoothScrollToPosition(messageList.size() - 1);
-                saveMessages();
-            }, 2000);
+            if (hasNewer) {
+                // Newer pages are not shown; the log read queues after the append
+                loadNewestPage();
+                return;
+            }
+            Futures.addCallback(getRequestScope().track(stored), new FutureCallback<Long>() {
+                @Override
+                public void onSuccess(Long endOffset) {
+                    getRequestScope().runOnUiThread(
+                            () -> onStored(Collections.singletonList(msg), endOffset, true));
+                }
+
+                @Override
+                public void onFailure(@NonNull Throwable t) {
+                    // Logged by the message log; the message is still sent
+                }
+            }, MoreExecutors.directExecutor());
+        }
+    }
+
+    /**
+     * Messages just written to the log, ending at endOffset: sent here or
+     * received from other farmers
+     */
+    private void onStored(List<CommunityMessage> messages, long endOffset, boolean scroll) {
+        // A pending newest page read started after they were stored, and
+        // dropped newer pages are read from the log when scrolled to
+        if ((window.isEmpty() && loadingPage) || hasNewer) {
+            return;
+        }
+        if (window.isEmpty()) {
+            loadNewestPage();
+            return;
+        }
+
+        int anchor = layoutManager.findFirstVisibleItemPosition();
+        int anchorTop = anchorTop(anchor);
+        int from = messageList.size();
+        messageList.addAll(messages);
+        adapter.notifyItemRangeInserted(from, messages.size());
+
+        // A batch stays in one page, its offsets inside are not known
+        WindowPage newest = window.peekLast();
+        if (newest.size >= PAGE_SIZE) {
+            newest = new WindowPage(newest.endOffset, endOffset, 0);
+            window.addLast(newest);
+        }
+        newest.size += messages.size();
+        newest.endOffset = endOffset;
+        trimOldest(anchor, anchorTop);
+
+        if (scroll) {
+            recyclerView.smoothScrollToPosition(messageList.size() - 1);
         }
     }
 
@@ -1,10 +1,12 @@
 package com.krishield.activities;
 
 import android.app.AlertDialog;
-import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -15,37 +17,76 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
-import androidx.appcompat.app.AppCompatActivity;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.LinearLayoutManager;
+import androidx.recyclerview.widget.ListAdapter;
 import androidx.recyclerview.widget.RecyclerView;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
-import com.google.gson.Gson;
-import com.google.gson.reflect.TypeToken;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.krishield.R;
 import com.krishield.models.Community;
+import com.krishield.repositories.CommunityRepository;
+import com.krishield.services.CommunitySyncClient;
 
-import java.lang.reflect.Type;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.UUID;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.Consumer;
 
+/**
+ * Lists the Farmers Union communities. Joins, leaves and new communities
+ * are stored by the CommunityRepository first and synced when a connection
+ * is available; counts merged from other devices refresh the list.
+ *
+ * The directory is searched and sorted in the repository and shown a page
+ * at a time; the next page loads as the list nears its end.
+ */
 public class FarmersUnionActivity extends BaseActivity {
 
+    private static final int PAGE_SIZE = 30;
+    // Load the next page when this close to the end of the list
+    private static final int PREFETCH_DISTANCE = 10;
+    private static final long SEARCH_DELAY_MS = 250;
+    // Member count updates arriving together cause one reload
+    private static final long MEMBERSHIP_DELAY_MS = 500;
+
     private RecyclerView recyclerView;
+    private LinearLayoutManager layoutManager;
+    private TextView tvNoCommunities;
+    private TextView btnSort;
     private CommunityAdapter adapter;
-    private List<Community> communityList;
-    private SharedPreferences prefs;
-    private static final String PREF_NAME = "FarmersUnionPrefs";
-    private static final String KEY_COMMUNITIES = "communities";
+    private CommunityRepository repository;
+    private CommunitySyncClient syncClient;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private String query = "";
+    private CommunityRepository.Sort sort = CommunityRepository.Sort.MEMBERS;
+    // Key after the last loaded page, null once everything is loaded
+    private CommunityRepository.PageKey nextPageKey;
+    private boolean loadingPage;
+    // Bumped on every reload so pages of an older search are dropped
+    private int searchGeneration;
+
+    private final Runnable membershipRefresh = () -> refresh(null);
+    private final Runnable membershipListener = () -> {
+        handler.removeCallbacks(membershipRefresh);
+        handler.postDelayed(membershipRefresh, MEMBERSHIP_DELAY_MS);
+    };
+    private final Runnable searchRunnable = () -> reload(PAGE_SIZE, () -> recyclerView.scrollToPosition(0));
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_farmers_union);
 
-        prefs = getSharedPreferences(PREF_NAME, MODE_PRIVATE);
-        loadCommunities();
+        repository = CommunityRepository.getInstance(this);
+        syncClient = CommunitySyncClient.getInstance(this);
 
         // Setup Header Back Button
         ImageView btnBack = findViewById(R.id.btn_back);
@@ -55,43 +96,146 @@ public class FarmersUnionActivity extends BaseActivity {
 
         // Setup RecyclerView
         recyclerView = findViewById(R.id.recycler_communities);
-        recyclerView.setLayoutManager(new LinearLayoutManager(this));
-        adapter = new CommunityAdapter(communityList);
+        layoutManager = new LinearLayoutManager(this);
+        recyclerView.setLayoutManager(layoutManager);
+        adapter = new CommunityAdapter();
         recyclerView.setAdapter(adapter);
+        recyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(@NonNull RecyclerView view, int dx, int dy) {
+                if (dy > 0 && layoutManager.findLastVisibleItemPosition()
+                        >= adapter.getItemCount() - PREFETCH_DISTANCE) {
+                    loadNextPage();
+                }
+            }
+        });
+        tvNoCommunities = findViewById(R.id.tv_no_communities);
+
+        // Setup search and sort
+        EditText etSearch = findViewById(R.id.et_search_communities);
+        etSearch.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence text, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable text) {
+                query = text.toString();
+                handler.removeCallbacks(searchRunnable);
+                handler.postDelayed(searchRunnable, SEARCH_DELAY_MS);
+            }
+        });
+        btnSort = findViewById(R.id.btn_sort_communities);
+        btnSort.setOnClickListener(v -> {
+            sort = sort == CommunityRepository.Sort.MEMBERS
+                    ? CommunityRepository.Sort.NEWEST : CommunityRepository.Sort.MEMBERS;
+            btnSort.setText(sort == CommunityRepository.Sort.MEMBERS ? "Most members" : "Newest");
+            reload(PAGE_SIZE, () -> recyclerView.scrollToPosition(0));
+        });
 
         // Setup Floating Action Button
         FloatingActionButton fab = findViewById(R.id.fab_create_community);
         fab.setOnClickListener(v -> showCreateCommunityDialog());
+
+        reload(PAGE_SIZE, null);
+        syncClient.addMembershipListener(membershipListener);
     }
 
-    private void loadCommunities() {
-        String json = prefs.getString(KEY_COMMUNITIES, null);
-        if (json != null) {
-            Gson gson = new Gson();
-            Type type = new TypeToken<List<Community>>() {
-            }.getType();
-            communityList = gson.fromJson(json, type);
-        }
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(searchRunnable);
+        handler.removeCallbacks(membershipRefresh);
+        syncClient.removeMembershipListener(membershipListener);
+    }
 
-        if (communityList == null) {
-            communityList = new ArrayList<>();
-            // Add default communities if empty
-            communityList.add(new Community(UUID.randomUUID().toString(), "Punjab Kisan Union",
-                    "Official union for Punjab farmers.", 1250));
-            communityList.add(new Community(UUID.randomUUID().toString(), "All India Kisan Sabha",
-                    "National level farmers organization.", 5400));
-            communityList.add(new Community(UUID.randomUUID().toString(), "Organic Farmers Group",
-                    "Discuss organic farming techniques.", 320));
-            saveCommunities();
+    // After a membership change, keep as many rows as are shown now
+    private void refresh(Runnable onShown) {
+        reload(Math.max(PAGE_SIZE, adapter.getItemCount()), onShown);
+    }
+
+    /**
+     * Load the current search from the top
+     */
+    private void reload(int limit, Runnable onShown) {
+        int generation = ++searchGeneration;
+        loadingPage = true;
+        loadPage(repository.search(query, sort, null, limit), generation, page -> {
+            adapter.submitList(page.communities, onShown);
+            tvNoCommunities.setVisibility(page.communities.isEmpty() ? View.VISIBLE : View.GONE);
+        });
+    }
+
+    private void loadNextPage() {
+        if (loadingPage || nextPageKey == null) {
+            return;
         }
+        loadingPage = true;
+        loadPage(repository.search(query, sort, nextPageKey, PAGE_SIZE), searchGeneration, page -> {
+            // Counts can change between pages and move a community across them
+            List<Community> communities = new ArrayList<>(adapter.getCurrentList());
+            Set<String> shown = new HashSet<>();
+            for (Community community : communities) {
+                shown.add(community.getId());
+            }
+            for (Community community : page.communities) {
+                if (shown.add(community.getId())) {
+                    communities.add(community);
+                }
+            }
+            adapter.submitList(communities);
+        });
+    }
+
+    private void loadPage(ListenableFuture<CommunityRepository.Page> search, int generation,
+            Consumer<CommunityRepository.Page> show) {
+        Futures.addCallback(getRequestScope().track(search),
+                new FutureCallback<CommunityRepository.Page>() {
+                    @Override
+                    public void onSuccess(CommunityRepository.Page page) {
+                        getRequestScope().runOnUiThread(() -> {
+                            if (generation != searchGeneration) {
+                                return;
+                            }
+                            loadingPage = false;
+                            nextPageKey = page.next;
+                            show.accept(page);
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(@NonNull Throwable t) {
+                        getRequestScope().runOnUiThread(() -> {
+                            if (generation != searchGeneration) {
+                                return;
+                            }
+                            loadingPage = false;
+                            Toast.makeText(FarmersUnionActivity.this,
+                                    "Could not load communities", Toast.LENGTH_SHORT).show();
+                        });
+                    }
+                }, MoreExecutors.directExecutor());
     }
 
-    private void saveCommunities() {
-        SharedPreferences.Editor editor = prefs.edit();
-        Gson gson = new Gson();
-        String json = gson.toJson(communityList);
-        editor.putString(KEY_COMMUNITIES, json);
-        editor.apply();
+    // Once a membership change is stored, show it and hand it to the sync client
+    private void onMembershipChanged(ListenableFuture<?> change, Runnable onStored) {
+        Futures.addCallback(getRequestScope().track(change), new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                syncClient.syncMembership();
+                getRequestScope().runOnUiThread(() -> refresh(onStored));
+            }
+
+            @Override
+            public void onFailure(@NonNull Throwable t) {
+                getRequestScope().runOnUiThread(() -> Toast.makeText(FarmersUnionActivity.this,
+                        "Could not save the change", Toast.LENGTH_SHORT).show());
+            }
+        }, MoreExecutors.directExecutor());
     }
 
     private void showCreateCommunityDialog() {
@@ -117,13 +261,13 @@ public class FarmersUnionActivity extends BaseActivity {
             String name = etName.getText().toString().trim();
             String desc = etDesc.getText().toString().trim();
             if (!name.isEmpty()) {
-                Community newCommunity = new Community(UUID.randomUUID().toString(), name, desc, 1);
-                newCommunity.setJoined(true); // Creator automatically joins
-                communityList.add(0, newCommunity);
-                adapter.notifyItemInserted(0);
-                recyclerView.scrollToPosition(0);
-                saveCommunities();
-                Toast.makeText(this, "Community Created!", Toast.LENGTH_SHORT).show();
+                // Creator automatically joins
+                onMembershipChanged(repository.create(name, desc), () -> {
+                    if (sort == CommunityRepository.Sort.NEWEST) {
+                        recyclerView.scrollToPosition(0);
+                    }
+                    Toast.makeText(this, "Community Created!", Toast.LENGTH_SHORT).show();
+                });
             }
         });
         builder.setNegativeButton("Cancel", (dialog, which) -> dialog.cancel());
@@ -131,6 +275,15 @@ public class FarmersUnionActivity extends BaseActivity {
         builder.show();
     }
 
+    private void showLeaveDialog(Community community) {
+        new AlertDialog.Builder(this)
+                .setTitle("Leave " + community.getName() + "?")
+                .setPositiveButton("Leave", (dialog, which) -> onMembershipChanged(
+                        repository.leave(community.getId()), null))
+                .setNegativeButton("Cancel", (dialog, which) -> dialog.cancel())
+                .show();
+    }
+
     private void openChat(Community community) {
         Intent intent = new Intent(this, CommunityChatActivity.class);
         intent.putExtra("community_id", community.getId());
@@ -138,12 +291,26 @@ public class FarmersUnionActivity extends BaseActivity {
         startActivity(intent);
     }
 
+    private static final DiffUtil.ItemCallback<Community> DIFF_CALLBACK = new DiffUtil.ItemCallback<Community>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull Community oldItem, @NonNull Community newItem) {
+            return oldItem.getId().equals(newItem.getId());
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull Community oldItem, @NonNull Community newItem) {
+            return Objects.equals(oldItem.getName(), newItem.getName())
+                    && Objects.equals(oldItem.getDescription(), newItem.getDescription())
+                    && oldItem.getMemberCount() == newItem.getMemberCount()
+                    && oldItem.isJoined() == newItem.isJoined();
+        }
+    };
+
     // Inner Adapter Class
-    class CommunityAdapter extends RecyclerView.Adapter<CommunityAdapter.ViewHolder> {
-        private List<Community> communities;
+    class CommunityAdapter extends ListAdapter<Community, CommunityAdapter.ViewHolder> {
 
-        public CommunityAdapter(List<Community> communities) {
-            this.communities = communities;
+        CommunityAdapter() {
+            super(DIFF_CALLBACK);
         }
 
         @NonNull
@@ -155,7 +322,7 @@ public class FarmersUnionActivity extends BaseActivity {
 
         @Override
         public void onBindViewHolder(@NonNull ViewHolder holder, int position) {
-            Community community = communities.get(position);
+            Community community = getItem(position);
             holder.tvName.setText(community.getName());
             holder.tvDesc.setText(community.getDescription());
             holder.tvMembers.setText(community.getMemberCount() + " Members");
@@ -170,20 +337,18 @@ public class FarmersUnionActivity extends BaseActivity {
 
             holder.btnJoin.setOnClickListener(v -> {
                 if (!community.isJoined()) {
-                    community.setJoined(true);
-                    community.setMemberCount(community.getMemberCount() + 1);
-                    notifyItemChanged(position);
-                    saveCommunities();
-                    Toast.makeText(FarmersUnionActivity.this, "Joined " + community.getName(), Toast.LENGTH_SHORT)
-                            .show();
+                    onMembershipChanged(repository.join(community.getId()), () -> Toast.makeText(
+                            FarmersUnionActivity.this, "Joined " + community.getName(), Toast.LENGTH_SHORT).show());
                 }
                 openChat(community);
             });
-        }
-
-        @Override
-        public int getItemCount() {
-            return communities.size();
+            holder.itemView.setOnLongClickListener(v -> {
+                if (!community.isJoined()) {
+                    return false;
+                }
+                showLeaveDialog(community);
+                return true;
+            });
         }
 
         class ViewHolder extends RecyclerView.ViewHolder {
@@ -3,8 +3,6 @@ package com.krishield.activities;
 import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
-import android.location.Address;
-import android.location.Geocoder;
 import android.location.Location;
 import android.os.Bundle;
 import android.util.Log;
@@ -18,18 +16,15 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationServices;
 import com.krishield.R;
+import com.krishield.models.DashboardSnapshot;
+import com.krishield.models.Place;
 import com.krishield.models.WeatherModels;
-import com.krishield.services.GeminiService;
-import com.krishield.services.OpenMeteoService;
-
-import java.io.IOException;
-import java.util.List;
-import java.util.Locale;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import com.krishield.repositories.DashboardRepository;
+import com.krishield.repositories.WeatherRepository;
+import com.krishield.services.GeocodingService;
+import com.krishield.services.LocationProvider;
+import com.krishield.services.SyncWorker;
 
 public class MainActivity extends BaseActivity {
 
@@ -42,10 +37,10 @@ public class MainActivity extends BaseActivity {
     private View weatherPill, pillMarket, pillIrrigation, pillCommunity, geminiSearch;
     private ImageView btnSettings;
 
-    private FusedLocationProviderClient fusedLocationClient;
-    private OpenMeteoService weatherService;
-    private GeminiService geminiService;
-    private Executor executor;
+    private LocationProvider locationProvider;
+    private WeatherRepository weatherRepository;
+    private GeocodingService geocodingService;
+    private DashboardRepository dashboardRepository;
 
     private String currentCity = "";
     private String currentCountry = "";
@@ -81,10 +76,10 @@ public class MainActivity extends BaseActivity {
     }
 
     private void initializeServices() {
-        fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
-        weatherService = new OpenMeteoService();
-        geminiService = new GeminiService(null);
-        executor = Executors.newSingleThreadExecutor();
+        locationProvider = LocationProvider.getInstance(this);
+        weatherRepository = WeatherRepository.getInstance(this);
+        geocodingService = GeocodingService.getInstance(this);
+        dashboardRepository = new DashboardRepository(this);
     }
 
     // ... (skipping some lines)
@@ -142,44 +137,43 @@ public class MainActivity extends BaseActivity {
     }
 
     private void getLocationAndLoadData() {
-        if (ActivityCompat.checkSelfPermission(this,
-                Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            return;
-        }
-
-        fusedLocationClient.getLastLocation().addOnSuccessListener(this, location -> {
-            if (location != null) {
-                getLocationName(location.getLatitude(), location.getLongitude());
-                loadWeatherData(location.getLatitude(), location.getLongitude());
-                loadPestData(location.getLatitude(), location.getLongitude());
-                loadGovernmentSchemes();
+        locationProvider.getLocation(fix -> getRequestScope().runOnUiThread(() -> {
+            if (fix.isFallback) {
+                tvLocation.setText("📍 " + LocationProvider.DEFAULT_CITY + ", " + LocationProvider.DEFAULT_COUNTRY);
+                loadWeatherData(fix.latitude, fix.longitude);
+                loadDashboard(fix.latitude, fix.longitude);
             } else {
-                // Default to Delhi if location not available
-                tvLocation.setText("📍 Delhi, India");
-                loadWeatherData(28.6139, 77.2090);
-                loadPestData(28.6139, 77.2090);
-                loadGovernmentSchemes();
+                getLocationName(fix.latitude, fix.longitude);
+                loadWeatherData(fix.latitude, fix.longitude);
             }
-        });
+        }));
     }
 
+    // The dashboard prompt uses the place name, so it loads once the name is known
     private void getLocationName(double latitude, double longitude) {
-        try {
-            Geocoder geocoder = new Geocoder(this, Locale.getDefault());
-            List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
-            if (addresses != null && !addresses.isEmpty()) {
-                Address address = addresses.get(0);
-                currentCity = address.getLocality() != null ? address.getLocality() : "";
-                currentCountry = address.getCountryName() != null ? address.getCountryName() : "";
-                tvLocation.setText("📍 " + currentCity + ", " + currentCountry);
+        geocodingService.getPlace(latitude, longitude, new GeocodingService.PlaceCallback() {
+            @Override
+            public void onSuccess(Place place) {
+                getRequestScope().runOnUiThread(() -> {
+                    currentCity = place.locality != null ? place.locality : "";
+                    currentCountry = place.countryName != null ? place.countryName : "";
+                    tvLocation.setText("📍 " + currentCity + ", " + currentCountry);
+                    SyncWorker.rememberPlace(MainActivity.this, place.locality, place.adminArea,
+                            place.countryName);
+                    loadDashboard(latitude, longitude);
+                });
             }
-        } catch (IOException e) {
-            Log.e(TAG, "Geocoder error", e);
-        }
+
+            @Override
+            public void onError(String error) {
+                Log.e(TAG, "Geocoder error: " + error);
+                getRequestScope().runOnUiThread(() -> loadDashboard(latitude, longitude));
+            }
+        });
     }
 
     private void loadWeatherData(double latitude, double longitude) {
-        weatherService.getWeather(latitude, longitude, new OpenMeteoService.WeatherCallback() {
+        weatherRepository.getWeather(latitude, longitude, false, new WeatherRepository.WeatherCallback() {
             @Override
             public void onSuccess(WeatherModels.WeatherResponse data) {
                 runOnUiThread(() -> {
@@ -188,7 +182,7 @@ public class MainActivity extends BaseActivity {
                         tvWeatherDesc.setText(getWeatherDescription(data.currentWeather.weathercode));
                         tvWind.setText(String.format("%.1f km/h", data.currentWeather.windspeed));
                     }
-                    tvMoisture.setText("45%"); // Placeholder for current moisture
+                    tvMoisture.setText(formatSoilMoisture(data));
 
                     // Calculate sunlight hours (simplified)
                     int sunlightHours = calculateSunlightHours(latitude);
@@ -205,47 +199,38 @@ public class MainActivity extends BaseActivity {
         });
     }
 
-    private void loadPestData(double latitude, double longitude) {
-        android.content.SharedPreferences prefs = getSharedPreferences("KrishieldMainCache", MODE_PRIVATE);
-        String cachedData = prefs.getString("pest_data", null);
-        long lastUpdate = prefs.getLong("pest_time", 0);
-        long currentTime = System.currentTimeMillis();
-
-        if (cachedData != null && (currentTime - lastUpdate < 24 * 60 * 60 * 1000)) {
-            tvPests.setText(extractPercentage(cachedData));
-            return;
-        }
-
-        // Use Gemini to get pest information based on location
-        String prompt = String.format(
-                "For farming location at coordinates %.2f, %.2f (%s, %s), " +
-                        "what is the current pest risk level? " +
-                        "Respond with ONLY a percentage (e.g., '15%%' or '30%%') indicating pest risk.",
-                latitude, longitude, currentCity, currentCountry);
+    // Top-layer soil moisture for the current hour, as volumetric percent
+    private String formatSoilMoisture(WeatherModels.WeatherResponse data) {
+        float moisture = data.hourly != null
+                ? data.hourly.soilMoistureAt(System.currentTimeMillis() / 1000)
+                : Float.NaN;
+        return Float.isNaN(moisture) ? "--" : Math.round(moisture * 100) + "%";
+    }
 
-        geminiService.sendTextMessage(prompt, executor, new GeminiService.ResponseCallback() {
-            @Override
-            public void onSuccess(String response) {
-                runOnUiThread(() -> {
-                    // Extract percentage from response
-                    String pestRisk = extractPercentage(response);
-                    tvPests.setText(pestRisk);
-
-                    // Cache the response
-                    prefs.edit()
-                            .putString("pest_data", response)
-                            .putLong("pest_time", System.currentTimeMillis())
-                            .apply();
-                });
-            }
+    private void loadDashboard(double latitude, double longitude) {
+        // Pest risk and featured scheme come from one batched request
+        getRequestScope().track(dashboardRepository.getDashboard(latitude, longitude, currentCity,
+                currentCountry, false, new DashboardRepository.DashboardCallback() {
+                    @Override
+                    public void onSuccess(DashboardSnapshot snapshot) {
+                        getRequestScope().runOnUiThread(() -> {
+                            tvPests.setText(snapshot.pestRiskPercent + "%");
+                            tvSchemeTitle.setText("🌾 " + snapshot.schemeTitle);
+                            tvSchemeDesc.setText(snapshot.schemeDescription != null
+                                    ? snapshot.schemeDescription
+                                    : "Tap to learn more...");
+                        });
+                    }
 
-            @Override
-            public void onError(String error) {
-                runOnUiThread(() -> {
-                    tvPests.setText("Low");
-                });
-            }
-        });
+                    @Override
+                    public void onError(String error) {
+                        getRequestScope().runOnUiThread(() -> {
+                            tvPests.setText("Low");
+                            tvSchemeTitle.setText("🌾 PM-KISAN Scheme");
+                            tvSchemeDesc.setText("Direct income support for farmers. Check eligibility...");
+                        });
+                    }
+                }));
     }
 
     private String getWeatherDescription(int weatherCode) {
@@ -277,72 +262,6 @@ public class MainActivity extends BaseActivity {
         return 8; // Temperate
     }
 
-    private String extractPercentage(String text) {
-        // Extract percentage from Gemini response
-        if (text.contains("%")) {
-            String[] parts = text.split("%");
-            if (parts.length > 0) {
-                String numPart = parts[0].trim();
-                // Get last word which should be the number
-                String[] words = numPart.split("\\s+");
-                return words[words.length - 1] + "%";
-            }
-        }
-        return "15%"; // Default
-    }
-
-    private void loadGovernmentSchemes() {
-        android.content.SharedPreferences prefs = getSharedPreferences("KrishieldMainCache", MODE_PRIVATE);
-        String cachedData = prefs.getString("scheme_data", null);
-        long lastUpdate = prefs.getLong("scheme_time", 0);
-        long currentTime = System.currentTimeMillis();
-
-        if (cachedData != null && (currentTime - lastUpdate < 24 * 60 * 60 * 1000)) {
-            updateSchemeUI(cachedData);
-            return;
-        }
-
-        // Use Gemini to fetch latest government schemes for farmers
-        String prompt = "What is the latest government scheme for farmers in India? " +
-                "Provide ONLY the scheme name and a brief one-line description. " +
-                "Format: 'Scheme Name: Description' (max 100 characters total)";
-
-        geminiService.sendTextMessage(prompt, executor, new GeminiService.ResponseCallback() {
-            @Override
-            public void onSuccess(String response) {
-                runOnUiThread(() -> {
-                    updateSchemeUI(response);
-
-                    // Cache the response
-                    prefs.edit()
-                            .putString("scheme_data", response)
-                            .putLong("scheme_time", System.currentTimeMillis())
-                            .apply();
-                });
-            }
-
-            @Override
-            public void onError(String error) {
-                runOnUiThread(() -> {
-                    tvSchemeTitle.setText("🌾 PM-KISAN Scheme");
-                    tvSchemeDesc.setText("Direct income support for farmers. Check eligibility...");
-                });
-            }
-        });
-    }
-
-    private void updateSchemeUI(String response) {
-        // Parse response to extract title and description
-        String[] parts = response.split(":", 2);
-        if (parts.length == 2) {
-            tvSchemeTitle.setText("🌾 " + parts[0].trim());
-            tvSchemeDesc.setText(parts[1].trim());
-        } else {
-            tvSchemeTitle.setText("🌾 " + response.substring(0, Math.min(50, response.length())));
-            tvSchemeDesc.setText("Tap to learn more...");
-        }
-    }
-
     @Override
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions,
             @NonNull int[] grantResults) {
@@ -352,11 +271,8 @@ public class MainActivity extends BaseActivity {
                 getLocationAndLoadData();
             } else {
                 Toast.makeText(this, "Location permission denied", Toast.LENGTH_SHORT).show();
-                // Load default Delhi data
-                tvLocation.setText("📍 Delhi, India");
-                loadWeatherData(28.6139, 77.2090);
-                loadPestData(28.6139, 77.2090);
-                loadGovernmentSchemes();
+                // Loads the default location
+                getLocationAndLoadData();
             }
         }
     }
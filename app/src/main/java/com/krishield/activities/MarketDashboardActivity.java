@@ -2,8 +2,6 @@ package com.krishield.activities;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
-import android.location.Address;
-import android.location.Geocoder;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
@@ -16,31 +14,32 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationServices;
 import com.krishield.R;
+import com.krishield.models.MarketPrice;
+import com.krishield.models.MarketReport;
+import com.krishield.models.Place;
 import com.krishield.services.GeminiService;
+import com.krishield.services.GeocodingService;
+import com.krishield.services.LocationProvider;
+import com.krishield.services.SyncWorker;
+import com.krishield.utils.RequestScope;
 
-import org.json.JSONArray;
-import org.json.JSONObject;
-
-import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.Executors;
 
 public class MarketDashboardActivity extends BaseActivity {
     private static final String TAG = "MarketDashboard";
     private static final int LOCATION_PERMISSION_CODE = 100;
 
-    private FusedLocationProviderClient fusedLocationClient;
+    private LocationProvider locationProvider;
     private com.krishield.repositories.MarketRepository marketRepository;
+    private GeocodingService geocodingService;
 
     private EditText etSearch;
     private TextView tvLocation, tvMarketData, tvAiRecommendation;
     private ProgressBar progressBar;
 
-    private String currentCity = "Delhi"; // Default
-    private String currentState = "Delhi";
+    private String currentCity = LocationProvider.DEFAULT_CITY;
+    private String currentState = LocationProvider.DEFAULT_STATE;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -60,8 +59,9 @@ public class MarketDashboardActivity extends BaseActivity {
             tvSeason.setVisibility(View.GONE);
 
         // Initialize Services
-        fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
+        locationProvider = LocationProvider.getInstance(this);
         marketRepository = new com.krishield.repositories.MarketRepository(this);
+        geocodingService = GeocodingService.getInstance(this);
 
         // Setup Listeners
         findViewById(R.id.btn_search).setOnClickListener(v -> performSearch());
@@ -88,33 +88,40 @@ public class MarketDashboardActivity extends BaseActivity {
     }
 
     private void fetchLocation() {
-        if (ActivityCompat.checkSelfPermission(this,
-                Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            loadMarketData(); // Load with default
-            return;
-        }
-
-        fusedLocationClient.getLastLocation().addOnSuccessListener(this, location -> {
-            if (location != null) {
-                try {
-                    Geocoder geocoder = new Geocoder(this, Locale.getDefault());
-                    List<Address> addresses = geocoder.getFromLocation(location.getLatitude(), location.getLongitude(),
-                            1);
-                    if (addresses != null && !addresses.isEmpty()) {
-                        currentCity = addresses.get(0).getLocality();
-                        currentState = addresses.get(0).getAdminArea();
-                        if (currentCity == null)
-                            currentCity = "Unknown";
-                    }
-                } catch (Exception e) {
-                    Log.e(TAG, "Geocoder failed", e);
-                }
+        // The callbacks below run on background threads
+        RequestScope scope = getRequestScope();
+        locationProvider.getLocation(fix -> {
+            if (fix.isFallback) {
+                scope.runOnUiThread(() -> showLocationAndLoad());
+                return;
             }
-            tvLocation.setText("📍 " + currentCity + ", " + currentState);
-            loadMarketData();
+            geocodingService.getPlace(fix.latitude, fix.longitude,
+                    new GeocodingService.PlaceCallback() {
+                        @Override
+                        public void onSuccess(Place place) {
+                            scope.runOnUiThread(() -> {
+                                currentCity = place.locality != null ? place.locality : "Unknown";
+                                currentState = place.adminArea;
+                                SyncWorker.rememberPlace(MarketDashboardActivity.this, place.locality,
+                                        currentState, null);
+                                showLocationAndLoad();
+                            });
+                        }
+
+                        @Override
+                        public void onError(String error) {
+                            Log.e(TAG, "Geocoder failed: " + error);
+                            scope.runOnUiThread(() -> showLocationAndLoad());
+                        }
+                    });
         });
     }
 
+    private void showLocationAndLoad() {
+        tvLocation.setText("📍 " + currentCity + ", " + currentState);
+        loadMarketData();
+    }
+
     @Override
     public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
@@ -152,61 +159,40 @@ public class MarketDashboardActivity extends BaseActivity {
         String seasonOrQuery = (searchQuery == null) ? "General" : searchQuery;
         boolean forceRefresh = (searchQuery != null); // Always refresh on search for now
 
-        marketRepository.getMarketData(currentCity, currentState, seasonOrQuery, forceRefresh,
+        getRequestScope().track(marketRepository.getMarketData(currentCity, currentState, seasonOrQuery, forceRefresh,
                 new com.krishield.repositories.MarketRepository.MarketCallback() {
                     @Override
-                    public void onSuccess(String response) {
-                        runOnUiThread(() -> {
+                    public void onSuccess(MarketReport report) {
+                        getRequestScope().runOnUiThread(() -> {
                             progressBar.setVisibility(View.GONE);
-                            parseAndDisplay(response);
+                            displayReport(report);
                         });
                     }
 
                     @Override
                     public void onError(String error) {
-                        runOnUiThread(() -> {
+                        getRequestScope().runOnUiThread(() -> {
                             progressBar.setVisibility(View.GONE);
-                            String msg = error.contains("quota") ? "Quota Exceeded. Try later." : "Error: " + error;
+                            String msg = GeminiService.isRateLimitError(error)
+                                    ? GeminiService.RATE_LIMIT_MESSAGE
+                                    : "Error: " + error;
                             tvMarketData.setText(msg);
                         });
                     }
-                });
+                }));
     }
 
-    private void parseAndDisplay(String jsonResponse) {
-        try {
-            // Clean markdown syntax if present
-            String jsonStr = jsonResponse.replace("```json", "").replace("```", "").trim();
-            JSONArray jsonArray = new JSONArray(jsonStr);
-
-            StringBuilder cropsDisplay = new StringBuilder();
-            String aiRec = "";
-
-            for (int i = 0; i < jsonArray.length(); i++) {
-                JSONObject obj = jsonArray.getJSONObject(i);
-                String crop = obj.optString("crop", "Unknown");
-                String price = obj.optString("price", "--");
-                String unit = obj.optString("unit", "");
-                String trend = obj.optString("trend", "Stable");
-
-                // Collect recommendation from first item (or all)
-                if (obj.has("recommendation")) {
-                    aiRec = obj.getString("recommendation");
-                }
-
-                cropsDisplay.append(String.format("• %s: %s %s (%s)\n\n", crop, price, unit, trend));
-            }
-
-            if (cropsDisplay.length() == 0)
-                cropsDisplay.append("No data found.");
-
-            tvMarketData.setText(cropsDisplay.toString());
-            tvAiRecommendation.setText("💡 Advice: " + aiRec);
-
-        } catch (Exception e) {
-            Log.e(TAG, "JSON Parse Error", e);
-            // Fallback: Just show raw text if JSON fails
-            tvMarketData.setText(jsonResponse);
+    private void displayReport(MarketReport report) {
+        StringBuilder cropsDisplay = new StringBuilder();
+        for (MarketPrice price : report.prices) {
+            String trend = price.trend != null && !price.trend.isEmpty() ? price.trend : "stable";
+            cropsDisplay.append(String.format(Locale.getDefault(), "• %s: ₹%,.0f/quintal (%s)\n\n",
+                    price.crop, price.pricePerQuintal, trend));
         }
+
+        tvMarketData.setText(cropsDisplay.toString().trim());
+        tvAiRecommendation.setText(report.recommendation != null && !report.recommendation.isEmpty()
+                ? "💡 Advice: " + report.recommendation
+                : "");
     }
 }
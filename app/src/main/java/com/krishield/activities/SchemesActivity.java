@@ -53,10 +53,10 @@ public class SchemesActivity extends BaseActivity {
 
     private void loadSchemes(boolean forceRefresh) {
         swipeRefresh.setRefreshing(true);
-        repository.getSchemes(forceRefresh, new SchemesRepository.SchemesCallback() {
+        getRequestScope().track(repository.getSchemes(forceRefresh, new SchemesRepository.SchemesCallback() {
             @Override
             public void onSuccess(List<Scheme> schemes) {
-                runOnUiThread(() -> {
+                getRequestScope().runOnUiThread(() -> {
                     adapter.setSchemes(schemes);
                     swipeRefresh.setRefreshing(false);
                 });
@@ -64,11 +64,11 @@ public class SchemesActivity extends BaseActivity {
 
             @Override
             public void onError(String error) {
-                runOnUiThread(() -> {
+                getRequestScope().runOnUiThread(() -> {
                     swipeRefresh.setRefreshing(false);
                     Toast.makeText(SchemesActivity.this, "Error: " + error, Toast.LENGTH_SHORT).show();
                 });
             }
-        });
+        }));
     }
 }
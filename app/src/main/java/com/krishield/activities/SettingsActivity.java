@@ -14,8 +14,7 @@ import com.google.android.material.button.MaterialButton;
 import com.google.android.material.textfield.TextInputEditText;
 import com.krishield.R;
 import com.krishield.services.GeminiService;
-
-import java.util.concurrent.Executors;
+import com.krishield.utils.AppExecutors;
 
 public class SettingsActivity extends BaseActivity {
 
@@ -137,12 +136,11 @@ public class SettingsActivity extends BaseActivity {
         tvApiStatus.setTextColor(getColor(android.R.color.holo_blue_dark));
 
         // Test the API key with a simple request
-        GeminiService geminiService = new GeminiService(apiKey);
-        geminiService.sendTextMessage("Hello", Executors.newSingleThreadExecutor(),
+        getRequestScope().track(GeminiService.testApiKey(apiKey, AppExecutors.getInstance().cpu(),
                 new GeminiService.ResponseCallback() {
                     @Override
                     public void onSuccess(String response) {
-                        runOnUiThread(() -> {
+                        getRequestScope().runOnUiThread(() -> {
                             Toast.makeText(SettingsActivity.this,
                                     "✅ API key is valid!", Toast.LENGTH_LONG).show();
                             tvApiStatus.setText("✅ Status: API key is valid");
@@ -153,7 +151,7 @@ public class SettingsActivity extends BaseActivity {
 
                     @Override
                     public void onError(String error) {
-                        runOnUiThread(() -> {
+                        getRequestScope().runOnUiThread(() -> {
                             Toast.makeText(SettingsActivity.this,
                                     "❌ API key test failed: " + error, Toast.LENGTH_LONG).show();
                             tvApiStatus.setText("❌ Status: Invalid API key");
@@ -161,7 +159,7 @@ public class SettingsActivity extends BaseActivity {
                             btnTestApiKey.setEnabled(true);
                         });
                     }
-                });
+                }));
     }
 
     private void openApiWebsite() {
@@ -18,12 +18,12 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationServices;
 import com.krishield.R;
 import com.krishield.models.WeatherModels;
+import com.krishield.repositories.IrrigationRepository;
+import com.krishield.repositories.WeatherRepository;
 import com.krishield.services.GeminiService;
-import com.krishield.services.OpenMeteoService;
+import com.krishield.services.LocationProvider;
 
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -44,13 +44,15 @@ public class SmartIrrigationActivity extends BaseActivity {
 
     // Data
     private Calendar lastWateredDate = Calendar.getInstance();
-    private double currentLat = 28.61, currentLon = 77.20; // Default Delhi
-    private String weatherInfo = "Weather data unavailable";
+    private double currentLat = LocationProvider.DEFAULT_LATITUDE;
+    private double currentLon = LocationProvider.DEFAULT_LONGITUDE;
+    private volatile String weatherInfo = "Weather data unavailable";
 
     // Services
-    private FusedLocationProviderClient locationClient;
-    private OpenMeteoService weatherService;
+    private LocationProvider locationProvider;
+    private WeatherRepository weatherRepository;
     private GeminiService geminiService;
+    private IrrigationRepository irrigationRepository;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -61,9 +63,10 @@ public class SmartIrrigationActivity extends BaseActivity {
         initViews();
 
         // 2. Init Services
-        locationClient = LocationServices.getFusedLocationProviderClient(this);
-        weatherService = new OpenMeteoService();
-        geminiService = new GeminiService(null);
+        locationProvider = LocationProvider.getInstance(this);
+        weatherRepository = WeatherRepository.getInstance(this);
+        geminiService = GeminiService.getInstance(this);
+        irrigationRepository = new IrrigationRepository(this);
 
         // 3. Start Location & Weather Fetch
         fetchLocationAndWeather();
@@ -110,27 +113,26 @@ public class SmartIrrigationActivity extends BaseActivity {
             return;
         }
 
-        locationClient.getLastLocation().addOnSuccessListener(this, location -> {
-            if (location != null) {
-                currentLat = location.getLatitude();
-                currentLon = location.getLongitude();
-
-                // Fetch Weather
-                weatherService.getWeather(currentLat, currentLon, new OpenMeteoService.WeatherCallback() {
-                    @Override
-                    public void onSuccess(WeatherModels.WeatherResponse data) {
-                        if (data != null && data.currentWeather != null) {
-                            weatherInfo = String.format("Temp: %.1f°C, Wind: %.1f km/h",
-                                    data.currentWeather.temperature, data.currentWeather.windspeed);
-                        }
+        locationProvider.getLocation(fix -> {
+            currentLat = fix.latitude;
+            currentLon = fix.longitude;
+
+            // Fetch Weather
+            weatherRepository.getWeather(currentLat, currentLon, false, new WeatherRepository.WeatherCallback() {
+                @Override
+                public void onSuccess(WeatherModels.WeatherResponse data) {
+                    if (data != null && data.currentWeather != null) {
+                        String info = String.format("Temp: %.1f°C, Wind: %.1f km/h",
+                                data.currentWeather.temperature, data.currentWeather.windspeed);
+                        runOnUiThread(() -> weatherInfo = info);
                     }
+                }
 
-                    @Override
-                    public void onError(String error) {
-                        weatherInfo = "Weather API Error: " + error;
-                    }
-                });
-            }
+                @Override
+                public void onError(String error) {
+                    runOnUiThread(() -> weatherInfo = "Weather API Error: " + error);
+                }
+            });
         });
     }
 
@@ -149,17 +151,14 @@ public class SmartIrrigationActivity extends BaseActivity {
         btnAnalyze.setEnabled(false);
 
         // Use Repository for Caching
-        com.krishield.repositories.IrrigationRepository repository = new com.krishield.repositories.IrrigationRepository(
-                this);
-
         // Force refresh is false by default, can be true if user explicitly requests
         // refresh
         // For now, we use cached result if available for valid timeframe
-        repository.getIrrigationAdvice(crop, soil, date, weatherInfo, false,
-                new com.krishield.repositories.IrrigationRepository.IrrigationCallback() {
+        getRequestScope().track(irrigationRepository.getIrrigationAdvice(crop, soil, date, weatherInfo, false,
+                new IrrigationRepository.IrrigationCallback() {
                     @Override
                     public void onSuccess(String response) {
-                        runOnUiThread(() -> {
+                        getRequestScope().runOnUiThread(() -> {
                             progressBar.setVisibility(View.GONE);
                             btnAnalyze.setEnabled(true);
                             layoutResult.setVisibility(View.VISIBLE);
@@ -169,13 +168,12 @@ public class SmartIrrigationActivity extends BaseActivity {
 
                     @Override
                     public void onError(String error) {
-                        runOnUiThread(() -> {
+                        getRequestScope().runOnUiThread(() -> {
                             progressBar.setVisibility(View.GONE);
                             btnAnalyze.setEnabled(true);
-                            String msg = error;
-                            if (error.contains("quota") || error.contains("429")) {
-                                msg = "Server Busy (Rate Limit). Try again in a minute.";
-                            }
+                            String msg = GeminiService.isRateLimitError(error)
+                                    ? GeminiService.RATE_LIMIT_MESSAGE
+                                    : error;
                             Toast.makeText(SmartIrrigationActivity.this, msg, Toast.LENGTH_LONG).show();
 
                             // Also show in text view for visibility
@@ -183,7 +181,7 @@ public class SmartIrrigationActivity extends BaseActivity {
                             tvResult.setText(msg);
                         });
                     }
-                });
+                }));
     }
 
     @Override
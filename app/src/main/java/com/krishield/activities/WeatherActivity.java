@@ -2,12 +2,12 @@ package com.krishield.activities;
 
 import android.Manifest;
 import android.content.pm.PackageManager;
-import android.location.Address;
-import android.location.Geocoder;
-import android.location.Location;
 import android.os.Bundle;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
+import android.widget.EditText;
 import android.widget.LinearLayout;
 import android.widget.ProgressBar;
 import android.widget.TextView;
@@ -18,31 +18,39 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 
-import com.google.android.gms.location.FusedLocationProviderClient;
-import com.google.android.gms.location.LocationServices;
 import com.google.android.material.appbar.MaterialToolbar;
 import com.google.android.material.button.MaterialButton;
 import com.krishield.R;
+import com.krishield.models.FarmPlot;
+import com.krishield.models.Place;
 import com.krishield.models.WeatherModels;
-import com.krishield.services.OpenMeteoService;
+import com.krishield.repositories.FarmPlotRepository;
+import com.krishield.repositories.WeatherRepository;
+import com.krishield.services.GeocodingService;
+import com.krishield.services.LocationProvider;
 
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
 
 public class WeatherActivity extends BaseActivity {
 
     private static final int LOCATION_PERMISSION_CODE = 100;
 
     private TextView tvLocation, tvWeatherEmoji, tvTemperature, tvWeatherDescription, tvWindSpeed;
-    private LinearLayout forecastContainer;
+    private LinearLayout forecastContainer, plotsContainer;
+    private TextView tvPlotsTitle;
     private MaterialButton btnRefresh;
     private ProgressBar progressBar;
 
-    private FusedLocationProviderClient fusedLocationClient;
-    private OpenMeteoService weatherService;
+    private LocationProvider locationProvider;
+    private WeatherRepository weatherRepository;
+    private FarmPlotRepository plotRepository;
+    private GeocodingService geocodingService;
 
     private double currentLat = 0;
     private double currentLon = 0;
@@ -65,18 +73,135 @@ public class WeatherActivity extends BaseActivity {
         tvWeatherDescription = findViewById(R.id.tv_weather_description);
         tvWindSpeed = findViewById(R.id.tv_wind_speed);
         forecastContainer = findViewById(R.id.forecast_container);
+        plotsContainer = findViewById(R.id.plots_container);
+        tvPlotsTitle = findViewById(R.id.tv_plots_title);
         btnRefresh = findViewById(R.id.btn_refresh);
         progressBar = findViewById(R.id.progress_bar);
 
         // Initialize services
-        fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
-        weatherService = new OpenMeteoService();
+        locationProvider = LocationProvider.getInstance(this);
+        weatherRepository = WeatherRepository.getInstance(this);
+        plotRepository = new FarmPlotRepository(this);
+        geocodingService = GeocodingService.getInstance(this);
 
         // Setup refresh button
-        btnRefresh.setOnClickListener(v -> fetchWeather());
+        btnRefresh.setOnClickListener(v -> {
+            fetchWeather(true);
+            loadPlots(true);
+        });
 
         // Get location and fetch weather
         checkLocationPermission();
+        loadPlots(false);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        getMenuInflater().inflate(R.menu.weather_menu, menu);
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(@NonNull MenuItem item) {
+        if (item.getItemId() == R.id.action_save_plot) {
+            showSavePlotDialog();
+            return true;
+        }
+        return super.onOptionsItemSelected(item);
+    }
+
+    private void showSavePlotDialog() {
+        if (currentLat == 0 && currentLon == 0) {
+            Toast.makeText(this, "Location not available", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        EditText input = new EditText(this);
+        input.setHint("Plot name (e.g. North field)");
+        new androidx.appcompat.app.AlertDialog.Builder(this)
+                .setTitle("Save current location as plot")
+                .setView(input)
+                .setPositiveButton("Save", (dialog, which) -> {
+                    String name = input.getText().toString().trim();
+                    plotRepository.addPlot(name.isEmpty() ? "My Plot" : name, currentLat, currentLon);
+                    loadPlots(false);
+                })
+                .setNegativeButton("Cancel", null)
+                .show();
+    }
+
+    /**
+     * Weather for every saved plot, fetched together in one batch request
+     */
+    private void loadPlots(boolean forceRefresh) {
+        List<FarmPlot> plots = plotRepository.getPlots();
+        if (plots.isEmpty()) {
+            tvPlotsTitle.setVisibility(View.GONE);
+            plotsContainer.removeAllViews();
+            return;
+        }
+        tvPlotsTitle.setVisibility(View.VISIBLE);
+
+        weatherRepository.getWeatherForPlots(plots, forceRefresh, new WeatherRepository.PlotsCallback() {
+            @Override
+            public void onSuccess(Map<String, WeatherModels.WeatherResponse> forecasts) {
+                runOnUiThread(() -> {
+                    plotsContainer.removeAllViews();
+                    for (FarmPlot plot : plots) {
+                        addPlotRow(plot, forecasts.get(plot.id));
+                    }
+                });
+            }
+
+            @Override
+            public void onError(String error) {
+                runOnUiThread(() -> Toast.makeText(WeatherActivity.this,
+                        "Plot weather error: " + error, Toast.LENGTH_SHORT).show());
+            }
+        });
+    }
+
+    private void addPlotRow(FarmPlot plot, WeatherModels.WeatherResponse weather) {
+        View row = LayoutInflater.from(this).inflate(R.layout.item_forecast_day, plotsContainer, false);
+
+        TextView tvEmoji = row.findViewById(R.id.tv_day_emoji);
+        TextView tvName = row.findViewById(R.id.tv_day_date);
+        TextView tvDetails = row.findViewById(R.id.tv_day_description);
+        TextView tvTemp = row.findViewById(R.id.tv_day_temp_max);
+        TextView tvExtra = row.findViewById(R.id.tv_day_temp_min);
+
+        tvName.setText(plot.name);
+        tvExtra.setText("");
+        if (weather != null && weather.currentWeather != null) {
+            WeatherModels.DayForecast info = new WeatherModels.DayForecast(
+                    "", 0, 0, weather.currentWeather.weathercode);
+            tvEmoji.setText(info.weatherEmoji);
+            tvTemp.setText(String.format(Locale.getDefault(), "%.0f°", weather.currentWeather.temperature));
+
+            float moisture = weather.hourly != null
+                    ? weather.hourly.soilMoistureAt(System.currentTimeMillis() / 1000)
+                    : Float.NaN;
+            tvDetails.setText(Float.isNaN(moisture)
+                    ? info.weatherDescription
+                    : info.weatherDescription + " • 💧 " + Math.round(moisture * 100) + "%");
+        } else {
+            tvDetails.setText("Weather unavailable");
+            tvTemp.setText("--");
+        }
+
+        // Long press removes the plot
+        row.setOnLongClickListener(v -> {
+            new androidx.appcompat.app.AlertDialog.Builder(this)
+                    .setTitle("Remove " + plot.name + "?")
+                    .setPositiveButton("Remove", (dialog, which) -> {
+                        plotRepository.removePlot(plot.id);
+                        loadPlots(false);
+                    })
+                    .setNegativeButton("Cancel", null)
+                    .show();
+            return true;
+        });
+
+        plotsContainer.addView(row);
     }
 
     private void checkLocationPermission() {
@@ -100,60 +225,51 @@ public class WeatherActivity extends BaseActivity {
             } else {
                 Toast.makeText(this, "Location permission needed for weather",
                         Toast.LENGTH_LONG).show();
-                tvLocation.setText("📍 Location permission denied");
+                // Shows the default location
+                getLocation();
             }
         }
     }
 
     private void getLocation() {
-        if (ActivityCompat.checkSelfPermission(this,
-                Manifest.permission.ACCESS_FINE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
-            return;
-        }
-
         tvLocation.setText("📍 Detecting location...");
 
-        fusedLocationClient.getLastLocation()
-                .addOnSuccessListener(this, location -> {
-                    if (location != null) {
-                        currentLat = location.getLatitude();
-                        currentLon = location.getLongitude();
-                        getAddressFromLocation(location);
-                        fetchWeather();
-                    } else {
-                        tvLocation.setText("📍 Unable to detect location");
-                        Toast.makeText(this, "Please enable GPS", Toast.LENGTH_SHORT).show();
-                    }
-                })
-                .addOnFailureListener(e -> {
-                    tvLocation.setText("📍 Location error");
-                    Toast.makeText(this, "Error: " + e.getMessage(), Toast.LENGTH_SHORT).show();
-                });
+        locationProvider.getLocation(fix -> getRequestScope().runOnUiThread(() -> {
+            currentLat = fix.latitude;
+            currentLon = fix.longitude;
+            if (fix.isFallback) {
+                tvLocation.setText("📍 " + LocationProvider.DEFAULT_CITY + ", " + LocationProvider.DEFAULT_COUNTRY);
+            } else {
+                getAddressFromLocation(fix);
+            }
+            fetchWeather(false);
+        }));
     }
 
-    private void getAddressFromLocation(Location location) {
-        try {
-            Geocoder geocoder = new Geocoder(this, Locale.getDefault());
-            List<Address> addresses = geocoder.getFromLocation(
-                    location.getLatitude(), location.getLongitude(), 1);
-
-            if (addresses != null && !addresses.isEmpty()) {
-                Address address = addresses.get(0);
-                String city = address.getLocality() != null ? address.getLocality() : "";
-                String state = address.getAdminArea() != null ? address.getAdminArea() : "";
-
-                if (!city.isEmpty() || !state.isEmpty()) {
-                    tvLocation.setText("📍 " + city + ", " + state);
-                } else {
-                    tvLocation.setText("📍 Location detected");
-                }
-            }
-        } catch (Exception e) {
-            tvLocation.setText("📍 Location detected");
-        }
+    private void getAddressFromLocation(LocationProvider.Fix fix) {
+        geocodingService.getPlace(fix.latitude, fix.longitude,
+                new GeocodingService.PlaceCallback() {
+                    @Override
+                    public void onSuccess(Place place) {
+                        String city = place.locality != null ? place.locality : "";
+                        String state = place.adminArea != null ? place.adminArea : "";
+                        getRequestScope().runOnUiThread(() -> {
+                            if (!city.isEmpty() || !state.isEmpty()) {
+                                tvLocation.setText("📍 " + city + ", " + state);
+                            } else {
+                                tvLocation.setText("📍 Location detected");
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        getRequestScope().runOnUiThread(() -> tvLocation.setText("📍 Location detected"));
+                    }
+                });
     }
 
-    private void fetchWeather() {
+    private void fetchWeather(boolean forceRefresh) {
         if (currentLat == 0 && currentLon == 0) {
             Toast.makeText(this, "Location not available", Toast.LENGTH_SHORT).show();
             return;
@@ -162,7 +278,7 @@ public class WeatherActivity extends BaseActivity {
         progressBar.setVisibility(View.VISIBLE);
         btnRefresh.setEnabled(false);
 
-        weatherService.getWeather(currentLat, currentLon, new OpenMeteoService.WeatherCallback() {
+        weatherRepository.getWeather(currentLat, currentLon, forceRefresh, new WeatherRepository.WeatherCallback() {
             @Override
             public void onSuccess(WeatherModels.WeatherResponse weather) {
                 runOnUiThread(() -> {
@@ -202,13 +318,14 @@ public class WeatherActivity extends BaseActivity {
         if (weather.daily != null) {
             forecastContainer.removeAllViews();
 
+            WeatherModels.DailyForecast daily = weather.daily;
             List<WeatherModels.DayForecast> forecasts = new ArrayList<>();
-            for (int i = 0; i < Math.min(7, weather.daily.time.size()); i++) {
+            for (int i = 0; i < Math.min(7, daily.size()); i++) {
                 forecasts.add(new WeatherModels.DayForecast(
-                        weather.daily.time.get(i),
-                        weather.daily.temperatureMax.get(i),
-                        weather.daily.temperatureMin.get(i),
-                        weather.daily.weathercode.get(i)));
+                        formatDate(daily.time[i], weather.utcOffsetSeconds),
+                        daily.temperatureMax[i],
+                        daily.temperatureMin[i],
+                        daily.weathercode[i]));
             }
 
             for (WeatherModels.DayForecast forecast : forecasts) {
@@ -227,7 +344,7 @@ public class WeatherActivity extends BaseActivity {
         TextView tvDayTempMin = dayView.findViewById(R.id.tv_day_temp_min);
 
         tvDayEmoji.setText(forecast.weatherEmoji);
-        tvDayDate.setText(formatDate(forecast.date));
+        tvDayDate.setText(forecast.date);
         tvDayDescription.setText(forecast.weatherDescription);
         tvDayTempMax.setText(String.format(Locale.getDefault(), "%.0f°", forecast.tempMax));
         tvDayTempMin.setText(String.format(Locale.getDefault(), "%.0f°", forecast.tempMin));
@@ -235,14 +352,11 @@ public class WeatherActivity extends BaseActivity {
         forecastContainer.addView(dayView);
     }
 
-    private String formatDate(String dateStr) {
-        try {
-            SimpleDateFormat inputFormat = new SimpleDateFormat("yyyy-MM-dd", Locale.getDefault());
-            SimpleDateFormat outputFormat = new SimpleDateFormat("EEE, MMM dd", Locale.getDefault());
-            Date date = inputFormat.parse(dateStr);
-            return outputFormat.format(date);
-        } catch (Exception e) {
-            return dateStr;
-        }
+    // Daily times are local midnight as Unix seconds; shift by the forecast's
+    // UTC offset and format as UTC to get the local calendar day
+    private String formatDate(long epochSeconds, int utcOffsetSeconds) {
+        SimpleDateFormat outputFormat = new SimpleDateFormat("EEE, MMM dd", Locale.getDefault());
+        outputFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return outputFormat.format(new Date((epochSeconds + utcOffsetSeconds) * 1000L));
     }
 }
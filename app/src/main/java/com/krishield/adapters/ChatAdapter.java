@@ -20,6 +20,9 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
     private static final int VIEW_TYPE_USER = 1;
     private static final int VIEW_TYPE_AI = 2;
 
+    // Partial rebind payload: only the message text changed (streaming)
+    private static final Object PAYLOAD_TEXT = new Object();
+
     private List<ChatMessage> messages = new ArrayList<>();
 
     @Override
@@ -53,6 +56,16 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         }
     }
 
+    @Override
+    public void onBindViewHolder(@NonNull RecyclerView.ViewHolder holder, int position,
+            @NonNull List<Object> payloads) {
+        if (payloads.contains(PAYLOAD_TEXT) && holder instanceof AIMessageViewHolder) {
+            ((AIMessageViewHolder) holder).messageText.setText(messages.get(position).getText());
+            return;
+        }
+        super.onBindViewHolder(holder, position, payloads);
+    }
+
     @Override
     public int getItemCount() {
         return messages.size();
@@ -63,11 +76,22 @@ public class ChatAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
         notifyItemInserted(messages.size() - 1);
     }
 
+    /**
+     * Insert older messages (in chronological order) above the current ones
+     */
+    public void prependMessages(List<ChatMessage> older) {
+        if (older.isEmpty()) {
+            return;
+        }
+        messages.addAll(0, older);
+        notifyItemRangeInserted(0, older.size());
+    }
+
     public void updateLastMessage(String text) {
         if (!messages.isEmpty()) {
             ChatMessage lastMessage = messages.get(messages.size() - 1);
             lastMessage.setText(text);
-            notifyItemChanged(messages.size() - 1);
+            notifyItemChanged(messages.size() - 1, PAYLOAD_TEXT);
         }
     }
 
@@ -9,6 +9,8 @@ public class ChatMessage {
         SYSTEM
     }
 
+    // Row id once stored, 0 before
+    private long id;
     private String text;
     private MessageType type;
     private Bitmap image;
@@ -27,6 +29,14 @@ public class ChatMessage {
         this.timestamp = System.currentTimeMillis();
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
     public String getText() {
         return text;
     }
@@ -0,0 +1,17 @@
+package com.krishield.models;
+
+/**
+ * Everything the home screen cards need from Gemini, fetched in one request
+ */
+public class DashboardSnapshot {
+    public int pestRiskPercent;
+    public String pestRiskLevel;
+    public String pestAdvice;
+    public String schemeTitle;
+    public String schemeDescription;
+
+    public boolean isValid() {
+        return pestRiskPercent >= 0 && pestRiskPercent <= 100
+                && schemeTitle != null && !schemeTitle.trim().isEmpty();
+    }
+}
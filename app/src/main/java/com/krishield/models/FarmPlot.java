@@ -0,0 +1,18 @@
+package com.krishield.models;
+
+/**
+ * A farm location saved by the user, used for per-plot weather
+ */
+public class FarmPlot {
+    public String id;
+    public String name;
+    public double latitude;
+    public double longitude;
+
+    public FarmPlot(String id, String name, double latitude, double longitude) {
+        this.id = id;
+        this.name = name;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+}
@@ -0,0 +1,14 @@
+package com.krishield.models;
+
+/**
+ * Estimated mandi price for one crop
+ */
+public class MarketPrice {
+    public String crop;
+    public double pricePerQuintal;
+    public String trend;
+
+    public boolean isValid() {
+        return crop != null && !crop.trim().isEmpty() && pricePerQuintal > 0;
+    }
+}
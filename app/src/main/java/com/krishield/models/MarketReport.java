@@ -0,0 +1,23 @@
+package com.krishield.models;
+
+import java.util.List;
+
+/**
+ * Market prices for a location plus a short selling recommendation
+ */
+public class MarketReport {
+    public List<MarketPrice> prices;
+    public String recommendation;
+
+    public boolean isValid() {
+        if (prices == null || prices.isEmpty()) {
+            return false;
+        }
+        for (MarketPrice price : prices) {
+            if (price == null || !price.isValid()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
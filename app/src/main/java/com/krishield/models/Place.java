@@ -0,0 +1,20 @@
+package com.krishield.models;
+
+/**
+ * Place names for a position, from reverse geocoding. Any field may be null.
+ */
+public class Place {
+    public String locality;
+    public String adminArea;
+    public String countryName;
+
+    public Place(String locality, String adminArea, String countryName) {
+        this.locality = locality;
+        this.adminArea = adminArea;
+        this.countryName = countryName;
+    }
+
+    public boolean isEmpty() {
+        return locality == null && adminArea == null && countryName == null;
+    }
+}
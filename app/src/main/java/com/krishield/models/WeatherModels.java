@@ -1,53 +1,82 @@
 package com.krishield.models;
 
-import com.google.gson.annotations.SerializedName;
-import java.util.List;
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.Arrays;
 
 /**
  * Weather data models for Open-Meteo API
  */
 public class WeatherModels {
 
+    /**
+     * Forecast for one location. Series are stored as primitive columns
+     * (one array per variable, indexed by time) and are read and written by
+     * WeatherResponseAdapter instead of reflective Gson. Times are Unix
+     * seconds; missing float values are NaN.
+     */
+    @JsonAdapter(WeatherResponseAdapter.class)
     public static class WeatherResponse {
-        @SerializedName("current_weather")
-        public CurrentWeather currentWeather;
-
-        @SerializedName("daily")
-        public DailyForecast daily;
-
-        @SerializedName("latitude")
         public double latitude;
-
-        @SerializedName("longitude")
         public double longitude;
+        public int utcOffsetSeconds;
+        public CurrentWeather currentWeather;
+        public DailyForecast daily;
+        public HourlyForecast hourly;
     }
 
     public static class CurrentWeather {
-        @SerializedName("temperature")
         public float temperature;
-
-        @SerializedName("weathercode")
         public int weathercode;
-
-        @SerializedName("windspeed")
         public float windspeed;
-
-        @SerializedName("time")
-        public String time;
+        public long time;
     }
 
     public static class DailyForecast {
-        @SerializedName("time")
-        public List<String> time;
+        public long[] time = new long[0];
+        public float[] temperatureMax = new float[0];
+        public float[] temperatureMin = new float[0];
+        public int[] weathercode = new int[0];
 
-        @SerializedName("temperature_2m_max")
-        public List<Float> temperatureMax;
+        public int size() {
+            return time.length;
+        }
+    }
 
-        @SerializedName("temperature_2m_min")
-        public List<Float> temperatureMin;
+    public static class HourlyForecast {
+        public long[] time = new long[0];
+        // Volumetric water content of the top soil layer, m³/m³
+        public float[] soilMoisture = new float[0];
+        // Reference evapotranspiration, mm
+        public float[] evapotranspiration = new float[0];
+        // Precipitation, mm
+        public float[] precipitation = new float[0];
+        // Relative humidity at 2 m, %
+        public float[] humidity = new float[0];
+
+        public int size() {
+            return time.length;
+        }
+
+        /**
+         * Index of the hour containing the given time, or -1 if it is
+         * outside the forecast
+         */
+        public int indexAt(long epochSeconds) {
+            int i = Arrays.binarySearch(time, epochSeconds);
+            if (i < 0) {
+                i = -i - 2;
+            }
+            return i >= 0 && i < time.length && epochSeconds - time[i] < 3600 ? i : -1;
+        }
 
-        @SerializedName("weathercode")
-        public List<Integer> weathercode;
+        /**
+         * Soil moisture for the hour containing the given time, NaN if unknown
+         */
+        public float soilMoistureAt(long epochSeconds) {
+            int i = indexAt(epochSeconds);
+            return i >= 0 ? soilMoisture[i] : Float.NaN;
+        }
     }
 
     /**
@@ -0,0 +1,323 @@
+package com.krishield.models;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streaming decoder for Open-Meteo forecast responses (requested with
+ * timeformat=unixtime). Series go straight into primitive arrays without
+ * boxing; unknown fields such as the *_units objects are skipped.
+ *
+ * write() produces the same layout, so cached forecasts read back through
+ * this adapter too.
+ */
+public class WeatherResponseAdapter extends TypeAdapter<WeatherModels.WeatherResponse> {
+
+    // Open-Meteo variable names, also used for the API field selection
+    public static final String DAILY_TEMPERATURE_MAX = "temperature_2m_max";
+    public static final String DAILY_TEMPERATURE_MIN = "temperature_2m_min";
+    public static final String DAILY_WEATHERCODE = "weathercode";
+    public static final String HOURLY_SOIL_MOISTURE = "soil_moisture_0_to_1cm";
+    public static final String HOURLY_EVAPOTRANSPIRATION = "et0_fao_evapotranspiration";
+    public static final String HOURLY_PRECIPITATION = "precipitation";
+    public static final String HOURLY_HUMIDITY = "relative_humidity_2m";
+
+    public static final String DAILY_FIELDS = DAILY_TEMPERATURE_MAX + "," + DAILY_TEMPERATURE_MIN + ","
+            + DAILY_WEATHERCODE;
+    public static final String HOURLY_FIELDS = HOURLY_SOIL_MOISTURE + "," + HOURLY_EVAPOTRANSPIRATION + ","
+            + HOURLY_PRECIPITATION + "," + HOURLY_HUMIDITY;
+
+    private static final int INITIAL_CAPACITY = 192; // 8 days of hours
+
+    @Override
+    public WeatherModels.WeatherResponse read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        WeatherModels.WeatherResponse response = new WeatherModels.WeatherResponse();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "latitude":
+                    response.latitude = in.nextDouble();
+                    break;
+                case "longitude":
+                    response.longitude = in.nextDouble();
+                    break;
+                case "utc_offset_seconds":
+                    response.utcOffsetSeconds = in.nextInt();
+                    break;
+                case "current_weather":
+                    response.currentWeather = readCurrent(in);
+                    break;
+                case "daily":
+                    response.daily = readDaily(in);
+                    break;
+                case "hourly":
+                    response.hourly = readHourly(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return response;
+    }
+
+    private WeatherModels.CurrentWeather readCurrent(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        WeatherModels.CurrentWeather current = new WeatherModels.CurrentWeather();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "temperature":
+                    current.temperature = readFloat(in);
+                    break;
+                case "windspeed":
+                    current.windspeed = readFloat(in);
+                    break;
+                case "weathercode":
+                    current.weathercode = readInt(in);
+                    break;
+                case "time":
+                    current.time = in.nextLong();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return current;
+    }
+
+    private WeatherModels.DailyForecast readDaily(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        WeatherModels.DailyForecast daily = new WeatherModels.DailyForecast();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "time":
+                    daily.time = readLongs(in);
+                    break;
+                case DAILY_TEMPERATURE_MAX:
+                    daily.temperatureMax = readFloats(in);
+                    break;
+                case DAILY_TEMPERATURE_MIN:
+                    daily.temperatureMin = readFloats(in);
+                    break;
+                case DAILY_WEATHERCODE:
+                    daily.weathercode = readInts(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        int size = daily.time.length;
+        daily.temperatureMax = fit(daily.temperatureMax, size);
+        daily.temperatureMin = fit(daily.temperatureMin, size);
+        daily.weathercode = fit(daily.weathercode, size);
+        return daily;
+    }
+
+    private WeatherModels.HourlyForecast readHourly(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        WeatherModels.HourlyForecast hourly = new WeatherModels.HourlyForecast();
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "time":
+                    hourly.time = readLongs(in);
+                    break;
+                case HOURLY_SOIL_MOISTURE:
+                    hourly.soilMoisture = readFloats(in);
+                    break;
+                case HOURLY_EVAPOTRANSPIRATION:
+                    hourly.evapotranspiration = readFloats(in);
+                    break;
+                case HOURLY_PRECIPITATION:
+                    hourly.precipitation = readFloats(in);
+                    break;
+                case HOURLY_HUMIDITY:
+                    hourly.humidity = readFloats(in);
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        int size = hourly.time.length;
+        hourly.soilMoisture = fit(hourly.soilMoisture, size);
+        hourly.evapotranspiration = fit(hourly.evapotranspiration, size);
+        hourly.precipitation = fit(hourly.precipitation, size);
+        hourly.humidity = fit(hourly.humidity, size);
+        return hourly;
+    }
+
+    // Every column must have one value per time step; missing values are NaN
+    private static float[] fit(float[] values, int size) {
+        if (values.length == size) {
+            return values;
+        }
+        float[] fitted = Arrays.copyOf(values, size);
+        if (values.length < size) {
+            Arrays.fill(fitted, values.length, size, Float.NaN);
+        }
+        return fitted;
+    }
+
+    private static int[] fit(int[] values, int size) {
+        return values.length == size ? values : Arrays.copyOf(values, size);
+    }
+
+    private static float readFloat(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return Float.NaN;
+        }
+        return (float) in.nextDouble();
+    }
+
+    private static int readInt(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return 0;
+        }
+        return in.nextInt();
+    }
+
+    private static float[] readFloats(JsonReader in) throws IOException {
+        float[] values = new float[INITIAL_CAPACITY];
+        int size = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = readFloat(in);
+        }
+        in.endArray();
+        return Arrays.copyOf(values, size);
+    }
+
+    private static int[] readInts(JsonReader in) throws IOException {
+        int[] values = new int[INITIAL_CAPACITY];
+        int size = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = readInt(in);
+        }
+        in.endArray();
+        return Arrays.copyOf(values, size);
+    }
+
+    private static long[] readLongs(JsonReader in) throws IOException {
+        long[] values = new long[INITIAL_CAPACITY];
+        int size = 0;
+        in.beginArray();
+        while (in.hasNext()) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = in.nextLong();
+        }
+        in.endArray();
+        return Arrays.copyOf(values, size);
+    }
+
+    @Override
+    public void write(JsonWriter out, WeatherModels.WeatherResponse response) throws IOException {
+        if (response == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("latitude").value(response.latitude);
+        out.name("longitude").value(response.longitude);
+        out.name("utc_offset_seconds").value(response.utcOffsetSeconds);
+
+        if (response.currentWeather != null) {
+            WeatherModels.CurrentWeather current = response.currentWeather;
+            out.name("current_weather").beginObject();
+            out.name("temperature");
+            writeFloat(out, current.temperature);
+            out.name("windspeed");
+            writeFloat(out, current.windspeed);
+            out.name("weathercode").value(current.weathercode);
+            out.name("time").value(current.time);
+            out.endObject();
+        }
+
+        if (response.daily != null) {
+            WeatherModels.DailyForecast daily = response.daily;
+            out.name("daily").beginObject();
+            writeLongs(out, "time", daily.time);
+            writeFloats(out, DAILY_TEMPERATURE_MAX, daily.temperatureMax);
+            writeFloats(out, DAILY_TEMPERATURE_MIN, daily.temperatureMin);
+            writeInts(out, DAILY_WEATHERCODE, daily.weathercode);
+            out.endObject();
+        }
+
+        if (response.hourly != null) {
+            WeatherModels.HourlyForecast hourly = response.hourly;
+            out.name("hourly").beginObject();
+            writeLongs(out, "time", hourly.time);
+            writeFloats(out, HOURLY_SOIL_MOISTURE, hourly.soilMoisture);
+            writeFloats(out, HOURLY_EVAPOTRANSPIRATION, hourly.evapotranspiration);
+            writeFloats(out, HOURLY_PRECIPITATION, hourly.precipitation);
+            writeFloats(out, HOURLY_HUMIDITY, hourly.humidity);
+            out.endObject();
+        }
+        out.endObject();
+    }
+
+    private static void writeFloat(JsonWriter out, float value) throws IOException {
+        if (Float.isNaN(value)) {
+            out.nullValue();
+        } else {
+            out.value(value);
+        }
+    }
+
+    private static void writeFloats(JsonWriter out, String name, float[] values) throws IOException {
+        out.name(name).beginArray();
+        for (float value : values) {
+            writeFloat(out, value);
+        }
+        out.endArray();
+    }
+
+    private static void writeInts(JsonWriter out, String name, int[] values) throws IOException {
+        out.name(name).beginArray();
+        for (int value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+
+    private static void writeLongs(JsonWriter out, String name, long[] values) throws IOException {
+        out.name(name).beginArray();
+        for (long value : values) {
+            out.value(value);
+        }
+        out.endArray();
+    }
+}
@@ -0,0 +1,287 @@
+package com.krishield.repositories;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.krishield.utils.AppExecutors;
+import com.krishield.utils.TextNormalizer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Offline cache of chat answers for near-duplicate questions.
+ *
+ * Questions are normalised (Hindi/English, see TextNormalizer) and reduced to
+ * a MinHash signature over their words and character 3-grams. A lookup
+ * returns the stored answer whose estimated Jaccard similarity passes the
+ * threshold. The cache is bounded and evicts least recently used entries.
+ *
+ * Only for questions asked without earlier turns. Prompts built by the
+ * repositories carry crop, weather or price data that a near-duplicate match
+ * would ignore, so GeminiService does not consult this cache.
+ */
+public class AnswerCache {
+    private static final String TAG = "AnswerCache";
+    private static final String FILE_NAME = "answer_cache.json";
+
+    private static final int MAX_ENTRIES = 200;
+    private static final int NUM_HASHES = 64;
+    private static final double SIMILARITY_THRESHOLD = 0.75;
+    // Very short questions ("and dosage?") depend on the conversation
+    private static final int MIN_TOKENS = 2;
+
+    // Fixed seeds so signatures stay comparable across app restarts
+    private static final int[] HASH_A = new int[NUM_HASHES];
+    private static final int[] HASH_B = new int[NUM_HASHES];
+
+    static {
+        Random random = new Random(0x4b524953L);
+        for (int i = 0; i < NUM_HASHES; i++) {
+            HASH_A[i] = random.nextInt() | 1;
+            HASH_B[i] = random.nextInt();
+        }
+    }
+
+    private static AnswerCache instance;
+
+    private final File file;
+    private final Gson gson = new Gson();
+    private final Executor diskExecutor = AppExecutors.getInstance().disk();
+
+    // Access-ordered: iteration starts at the least recently used entry
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private volatile boolean loaded;
+
+    private static class Entry {
+        String question;
+        String answer;
+        // Recomputed on load rather than persisted
+        transient int[] signature;
+        transient String numbers;
+    }
+
+    public static synchronized AnswerCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new AnswerCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private AnswerCache(Context context) {
+        this.file = new File(context.getFilesDir(), FILE_NAME);
+        diskExecutor.execute(this::load);
+    }
+
+    /**
+     * Cached answer for a question similar enough to a stored one, or null.
+     * Returns null until the cache has been read from disk.
+     */
+    public String lookup(String question) {
+        if (!loaded) {
+            return null;
+        }
+        List<String> tokens = TextNormalizer.tokens(question);
+        if (tokens.size() < MIN_TOKENS) {
+            return null;
+        }
+        String key = key(tokens);
+        int[] signature = signature(tokens);
+        String numbers = numbers(tokens);
+
+        synchronized (entries) {
+            Entry exact = entries.get(key);
+            if (exact != null) {
+                return exact.answer;
+            }
+
+            String bestKey = null;
+            double bestSimilarity = SIMILARITY_THRESHOLD;
+            for (Map.Entry<String, Entry> candidate : entries.entrySet()) {
+                // A different dose or amount is a different question
+                if (!numbers.equals(candidate.getValue().numbers)) {
+                    continue;
+                }
+                double similarity = similarity(signature, candidate.getValue().signature);
+                if (similarity >= bestSimilarity) {
+                    bestKey = candidate.getKey();
+                    bestSimilarity = similarity;
+                }
+            }
+            if (bestKey == null) {
+                return null;
+            }
+            // get() also moves the entry to the most recently used end
+            Entry best = entries.get(bestKey);
+            Log.d(TAG, "Near-duplicate hit (" + bestSimilarity + "): " + best.question);
+            return best.answer;
+        }
+    }
+
+    /**
+     * Remember the answer to a question
+     */
+    public void put(String question, String answer) {
+        if (answer == null || answer.isEmpty()) {
+            return;
+        }
+        List<String> tokens = TextNormalizer.tokens(question);
+        if (tokens.size() < MIN_TOKENS) {
+            return;
+        }
+        Entry entry = new Entry();
+        entry.question = question;
+        entry.answer = answer;
+        entry.signature = signature(tokens);
+        entry.numbers = numbers(tokens);
+
+        synchronized (entries) {
+            entries.put(key(tokens), entry);
+            trim();
+        }
+        diskExecutor.execute(this::save);
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > MAX_ENTRIES && it.hasNext()) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private static String key(List<String> tokens) {
+        List<String> sorted = new ArrayList<>(new HashSet<>(tokens));
+        Collections.sort(sorted);
+        return TextUtils.join(" ", sorted);
+    }
+
+    // Numbers in the question, which must match exactly for a hit
+    private static String numbers(List<String> tokens) {
+        List<String> numbers = new ArrayList<>();
+        for (String token : tokens) {
+            if (TextNormalizer.isNumber(token)) {
+                numbers.add(token);
+            }
+        }
+        Collections.sort(numbers);
+        return TextUtils.join(" ", numbers);
+    }
+
+    /**
+     * MinHash over whole words plus character 3-grams of each word, so word
+     * order does not matter and small spelling differences still overlap
+     */
+    static int[] signature(List<String> tokens) {
+        Set<String> shingles = new HashSet<>();
+        for (String token : tokens) {
+            shingles.add(token);
+            String padded = "^" + token + "$";
+            for (int i = 0; i + 3 <= padded.length(); i++) {
+                shingles.add(padded.substring(i, i + 3));
+            }
+        }
+
+        int[] signature = new int[NUM_HASHES];
+        Arrays.fill(signature, Integer.MAX_VALUE);
+        for (String shingle : shingles) {
+            int h = shingle.hashCode();
+            for (int i = 0; i < NUM_HASHES; i++) {
+                int value = mix(HASH_A[i] * h + HASH_B[i]);
+                if (value < signature[i]) {
+                    signature[i] = value;
+                }
+            }
+        }
+        return signature;
+    }
+
+    // Murmur3 finalizer, keeps the per-function hashes well distributed
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static double similarity(int[] a, int[] b) {
+        if (a == null || b == null || a.length != b.length) {
+            return 0;
+        }
+        int same = 0;
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == b[i]) {
+                same++;
+            }
+        }
+        return (double) same / a.length;
+    }
+
+    private void load() {
+        if (file.exists()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                Type type = new TypeToken<List<Entry>>() {
+                }.getType();
+                List<Entry> saved = gson.fromJson(reader, type);
+                if (saved != null) {
+                    synchronized (entries) {
+                        // Saved oldest first, so re-inserting restores LRU order
+                        for (Entry entry : saved) {
+                            if (entry.question == null || entry.answer == null) {
+                                continue;
+                            }
+                            List<String> tokens = TextNormalizer.tokens(entry.question);
+                            entry.signature = signature(tokens);
+                            entry.numbers = numbers(tokens);
+                            entries.put(key(tokens), entry);
+                        }
+                        trim();
+                    }
+                }
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to load answer cache", e);
+            }
+        }
+        loaded = true;
+    }
+
+    private void save() {
+        List<Entry> snapshot;
+        synchronized (entries) {
+            snapshot = new ArrayList<>(entries.values());
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+            gson.toJson(snapshot, writer);
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to save answer cache", e);
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Failed to replace answer cache file");
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.krishield.repositories;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.krishield.models.ChatMessage;
+import com.krishield.utils.AppExecutors;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Chat history in SQLite. Each message is one appended row, so saving a
+ * reply costs one insert instead of rewriting the whole conversation, and
+ * the screen reads it back a page at a time, newest first.
+ *
+ * The database runs in WAL mode. All access goes through the disk thread.
+ */
+public class ChatHistoryStore extends SQLiteOpenHelper {
+    private static final String TAG = "ChatHistoryStore";
+    private static final String DB_NAME = "chat_history.db";
+    private static final int DB_VERSION = 1;
+
+    private static final String TABLE = "messages";
+    private static final String COL_ID = "_id";
+    private static final String COL_TYPE = "type";
+    private static final String COL_TEXT = "text";
+    private static final String COL_TIMESTAMP = "timestamp";
+
+    // Oldest messages beyond this are deleted
+    private static final int MAX_MESSAGES = 5000;
+
+    // History kept in preferences by earlier versions, imported once
+    private static final String LEGACY_PREFS = "ChatHistory";
+    private static final String LEGACY_KEY = "history";
+
+    private static ChatHistoryStore instance;
+
+    private final Context context;
+    private final ListeningExecutorService diskExecutor;
+
+    public static synchronized ChatHistoryStore getInstance(Context context) {
+        if (instance == null) {
+            instance = new ChatHistoryStore(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private ChatHistoryStore(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        this.context = context;
+        this.diskExecutor = MoreExecutors.listeningDecorator(AppExecutors.getInstance().disk());
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        // The primary key gives insertion order and the paging cursor
+        db.execSQL("CREATE TABLE " + TABLE + " ("
+                + COL_ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + COL_TYPE + " TEXT NOT NULL, "
+                + COL_TEXT + " TEXT NOT NULL, "
+                + COL_TIMESTAMP + " INTEGER NOT NULL)");
+        importLegacyHistory(db);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // No upgrades yet
+    }
+
+    /**
+     * Store a message. Its id is not set; paging only uses the ids of
+     * messages read back with loadPage.
+     */
+    public void append(ChatMessage message) {
+        diskExecutor.execute(() -> {
+            try {
+                SQLiteDatabase db = getWritableDatabase();
+                long id = insert(db, message);
+                // Primary keys only grow, so trimming by id keeps the newest messages
+                db.delete(TABLE, COL_ID + " <= ?",
+                        new String[] { String.valueOf(id - MAX_MESSAGES) });
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to save message", e);
+            }
+        });
+    }
+
+    /**
+     * Up to limit messages older than beforeId, in chronological order. Use
+     * Long.MAX_VALUE for the newest page, then the id of the first message
+     * of the previous page.
+     */
+    public ListenableFuture<List<ChatMessage>> loadPage(long beforeId, int limit) {
+        return diskExecutor.submit(() -> {
+            List<ChatMessage> page = new ArrayList<>();
+            try (Cursor cursor = getReadableDatabase().query(TABLE,
+                    new String[] { COL_ID, COL_TYPE, COL_TEXT, COL_TIMESTAMP },
+                    COL_ID + " < ?", new String[] { String.valueOf(beforeId) },
+                    null, null, COL_ID + " DESC", String.valueOf(limit))) {
+                while (cursor.moveToNext()) {
+                    ChatMessage message = new ChatMessage(cursor.getString(2), parseType(cursor.getString(1)));
+                    message.setId(cursor.getLong(0));
+                    message.setTimestamp(cursor.getLong(3));
+                    page.add(message);
+                }
+            }
+            Collections.reverse(page);
+            return page;
+        });
+    }
+
+    public void clear() {
+        diskExecutor.execute(() -> {
+            try {
+                getWritableDatabase().delete(TABLE, null, null);
+            } catch (Exception e) {
+                Log.e(TAG, "Failed to clear history", e);
+            }
+        });
+    }
+
+    private static long insert(SQLiteDatabase db, ChatMessage message) {
+        ContentValues values = new ContentValues();
+        values.put(COL_TYPE, message.getType().name());
+        values.put(COL_TEXT, message.getText());
+        values.put(COL_TIMESTAMP, message.getTimestamp());
+        return db.insertOrThrow(TABLE, null, values);
+    }
+
+    private static ChatMessage.MessageType parseType(String type) {
+        try {
+            return ChatMessage.MessageType.valueOf(type);
+        } catch (IllegalArgumentException e) {
+            return ChatMessage.MessageType.AI;
+        }
+    }
+
+    private void importLegacyHistory(SQLiteDatabase db) {
+        SharedPreferences prefs = context.getSharedPreferences(LEGACY_PREFS, Context.MODE_PRIVATE);
+        String json = prefs.getString(LEGACY_KEY, null);
+        if (json != null) {
+            try {
+                Type type = new TypeToken<ArrayList<ChatMessage>>() {
+                }.getType();
+                List<ChatMessage> messages = new Gson().fromJson(json, type);
+                if (messages != null) {
+                    for (ChatMessage message : messages) {
+                        if (message != null && message.getText() != null && message.getType() != null) {
+                            insert(db, message);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                Log.w(TAG, "Skipping unreadable legacy history", e);
+            }
+        }
+        context.deleteSharedPreferences(LEGACY_PREFS);
+    }
+}
@@ -0,0 +1,388 @@
+package com.krishield.repositories;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.krishield.BuildConfig;
+import com.krishield.models.CommunityMessage;
+import com.krishield.utils.AppExecutors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Message history of each community as an append-only journal file.
+ *
+ * Every record is [length][payload][length], so new messages are appended
+ * without touching older ones, and the file can be read backwards from the
+ * end one record at a time. Opening a community reads only the newest page,
+ * however long its history is.
+ *
+ * The first time a log is used after app start, a torn record at the end
+ * (app killed mid-write) is cut off. Retention: a log grown past
+ * BuildConfig.COMMUNITY_LOG_MAX_KB is trimmed to its newest half, so the
+ * oldest messages are deleted for good (0 keeps the whole history). Doing
+ * this before any page is read keeps page offsets valid while the app runs.
+ *
+ * All file access runs on the disk thread.
+ */
+public class CommunityMessageLog {
+    private static final String TAG = "CommunityMessageLog";
+    private static final String DIR_NAME = "community_logs";
+
+    // Retention, see the class comment; 0 keeps everything
+    private static final long MAX_LOG_BYTES = BuildConfig.COMMUNITY_LOG_MAX_KB * 1024;
+    private static final long KEEP_BYTES = MAX_LOG_BYTES / 2;
+    // Larger lengths can only come from a damaged file
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+
+    // History kept in preferences by earlier versions, imported once per community
+    private static final String LEGACY_PREFS = "FarmersUnionChat";
+
+    private static CommunityMessageLog instance;
+
+    private final Context context;
+    private final File dir;
+    private final ListeningExecutorService diskExecutor;
+    // Communities whose log has been checked since the app started
+    private final Set<String> opened = new HashSet<>();
+
+    /**
+     * Messages in chronological order, and the cursors for the pages around it
+     */
+    public static class Page {
+        public final List<CommunityMessage> messages;
+        // Pass as beforeOffset to read further back; 0 when this is the oldest page
+        public final long startOffset;
+        // Pass as afterOffset to read further forward
+        public final long endOffset;
+        private final boolean hasNewer;
+
+        Page(List<CommunityMessage> messages, long startOffset, long endOffset, boolean hasNewer) {
+            this.messages = messages;
+            this.startOffset = startOffset;
+            this.endOffset = endOffset;
+            this.hasNewer = hasNewer;
+        }
+
+        public boolean hasOlder() {
+            return startOffset > 0;
+        }
+
+        public boolean hasNewer() {
+            return hasNewer;
+        }
+    }
+
+    public static synchronized CommunityMessageLog getInstance(Context context) {
+        if (instance == null) {
+            instance = new CommunityMessageLog(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CommunityMessageLog(Context context) {
+        this.context = context;
+        this.dir = new File(context.getFilesDir(), DIR_NAME);
+        this.diskExecutor = MoreExecutors.listeningDecorator(AppExecutors.getInstance().disk());
+    }
+
+    public ListenableFuture<Long> append(String communityId, CommunityMessage message) {
+        return appendAll(communityId, Collections.singletonList(message));
+    }
+
+    /**
+     * Append the messages in order. The future completes once they are
+     * written, with the end offset of the log after them.
+     */
+    public ListenableFuture<Long> appendAll(String communityId, List<CommunityMessage> messages) {
+        return diskExecutor.submit(() -> {
+            if (messages.isEmpty()) {
+                return open(communityId).length();
+            }
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(records);
+            for (CommunityMessage message : messages) {
+                byte[] payload = encode(message);
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.writeInt(payload.length);
+            }
+            try (RandomAccessFile raf = new RandomAccessFile(open(communityId), "rw")) {
+                raf.seek(raf.length());
+                raf.write(records.toByteArray());
+                return raf.length();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to append to " + communityId, e);
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Up to limit messages ending before beforeOffset. Use Long.MAX_VALUE for
+     * the newest page, then the previous page's startOffset.
+     */
+    public ListenableFuture<Page> readPage(String communityId, long beforeOffset, int limit) {
+        return diskExecutor.submit(() -> readBackwards(communityId, beforeOffset, limit));
+    }
+
+    /**
+     * Up to limit messages starting at afterOffset, the endOffset of a page
+     * read earlier. Used to read back a newer page that was let go.
+     */
+    public ListenableFuture<Page> readPageAfter(String communityId, long afterOffset, int limit) {
+        return diskExecutor.submit(() -> readForwards(communityId, afterOffset, limit));
+    }
+
+    private Page readBackwards(String communityId, long beforeOffset, int limit) throws IOException {
+        File file = open(communityId);
+        List<CommunityMessage> messages = new ArrayList<>();
+        if (!file.exists()) {
+            return new Page(messages, 0, 0, false);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long fileLength = raf.length();
+            long pageEnd = Math.min(beforeOffset, fileLength);
+            long end = pageEnd;
+            while (end > 0 && messages.size() < limit) {
+                raf.seek(end - 4);
+                int length = raf.readInt();
+                long start = end - length - 8;
+                if (length < 0 || length > MAX_RECORD_BYTES || start < 0) {
+                    throw new IOException("Corrupt record before offset " + end);
+                }
+                byte[] payload = new byte[length];
+                raf.seek(start + 4);
+                raf.readFully(payload);
+                messages.add(decode(payload));
+                end = start;
+            }
+            Collections.reverse(messages);
+            return new Page(messages, end, pageEnd, pageEnd < fileLength);
+        }
+    }
+
+    private Page readForwards(String communityId, long afterOffset, int limit) throws IOException {
+        File file = open(communityId);
+        List<CommunityMessage> messages = new ArrayList<>();
+        if (!file.exists()) {
+            return new Page(messages, 0, 0, false);
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            long start = Math.min(afterOffset, length);
+            while (start + 8 <= length && messages.size() < limit) {
+                raf.seek(start);
+                int size = raf.readInt();
+                if (size < 0 || size > MAX_RECORD_BYTES || start + size + 8 > length) {
+                    throw new IOException("Corrupt record at offset " + start);
+                }
+                byte[] payload = new byte[size];
+                raf.readFully(payload);
+                if (raf.readInt() != size) {
+                    throw new IOException("Corrupt record at offset " + start);
+                }
+                messages.add(decode(payload));
+                start += size + 8;
+            }
+            return new Page(messages, Math.min(afterOffset, length), start, start < length);
+        }
+    }
+
+    /**
+     * Move a community's history to a new id, both a log file and history
+     * still waiting in the legacy preferences. Nothing moves if the new id
+     * already has history.
+     */
+    public ListenableFuture<?> renameCommunity(String fromId, String toId) {
+        return diskExecutor.submit(() -> {
+            opened.remove(fromId);
+            opened.remove(toId);
+            File from = logFile(fromId);
+            File to = logFile(toId);
+            if (from.exists() && !to.exists() && !from.renameTo(to)) {
+                throw new IOException("Failed to rename " + from.getName());
+            }
+
+            SharedPreferences prefs = context.getSharedPreferences(LEGACY_PREFS, Context.MODE_PRIVATE);
+            String json = prefs.getString("chat_" + fromId, null);
+            if (json != null) {
+                SharedPreferences.Editor editor = prefs.edit().remove("chat_" + fromId);
+                if (!to.exists() && !prefs.contains("chat_" + toId)) {
+                    editor.putString("chat_" + toId, json);
+                }
+                editor.apply();
+            }
+            return null;
+        });
+    }
+
+    private File logFile(String communityId) {
+        return new File(dir, communityId.replaceAll("[^a-zA-Z0-9_-]", "_") + ".log");
+    }
+
+    // The log file, checked and migrated on first use
+    private File open(String communityId) throws IOException {
+        File file = logFile(communityId);
+        if (opened.add(communityId)) {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException("Cannot create " + dir);
+            }
+            if (file.exists()) {
+                recover(file);
+                if (MAX_LOG_BYTES > 0 && file.length() > MAX_LOG_BYTES) {
+                    trimOldest(file);
+                }
+            } else {
+                importLegacy(communityId, file);
+            }
+        }
+        return file;
+    }
+
+    // Cut a torn record off the end by scanning forward to the last whole one
+    private void recover(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long length = raf.length();
+            if (length == 0 || tailIsValid(raf, length)) {
+                return;
+            }
+            long offset = 0;
+            while (offset + 8 <= length) {
+                raf.seek(offset);
+                int size = raf.readInt();
+                if (size < 0 || size > MAX_RECORD_BYTES || offset + size + 8 > length) {
+                    break;
+                }
+                raf.seek(offset + 4 + size);
+                if (raf.readInt() != size) {
+                    break;
+                }
+                offset += size + 8;
+            }
+            Log.w(TAG, "Truncating damaged log " + file.getName() + " from " + length + " to " + offset);
+            raf.setLength(offset);
+        }
+    }
+
+    private static boolean tailIsValid(RandomAccessFile raf, long length) throws IOException {
+        if (length < 8) {
+            return false;
+        }
+        raf.seek(length - 4);
+        int size = raf.readInt();
+        long start = length - size - 8;
+        if (size < 0 || size > MAX_RECORD_BYTES || start < 0) {
+            return false;
+        }
+        raf.seek(start);
+        return raf.readInt() == size;
+    }
+
+    // Retention: rewrite the log with only its newest KEEP_BYTES of records,
+    // then swap it in. The older messages are gone.
+    private void trimOldest(File file) throws IOException {
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            long length = raf.length();
+            long keepFrom = length;
+            while (keepFrom > 0) {
+                raf.seek(keepFrom - 4);
+                long start = keepFrom - raf.readInt() - 8;
+                if (length - start > KEEP_BYTES) {
+                    break;
+                }
+                keepFrom = start;
+            }
+            Log.i(TAG, "Deleting " + keepFrom + " bytes of old messages from " + file.getName());
+            byte[] buffer = new byte[8192];
+            try (RandomAccessFile out = new RandomAccessFile(tmp, "rw")) {
+                out.setLength(0);
+                raf.seek(keepFrom);
+                int read;
+                while ((read = raf.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            }
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + file.getName());
+        }
+    }
+
+    // The preference is removed only once the whole history is in the log;
+    // a partial file is deleted so the import is tried again next time
+    private void importLegacy(String communityId, File file) {
+        SharedPreferences prefs = context.getSharedPreferences(LEGACY_PREFS, Context.MODE_PRIVATE);
+        String key = "chat_" + communityId;
+        String json = prefs.getString(key, null);
+        if (json == null) {
+            return;
+        }
+        List<CommunityMessage> messages;
+        try {
+            Type type = new TypeToken<List<CommunityMessage>>() {
+            }.getType();
+            messages = new Gson().fromJson(json, type);
+        } catch (Exception e) {
+            // Can never be read, keeping it would not help
+            Log.w(TAG, "Skipping unreadable legacy chat for " + communityId, e);
+            prefs.edit().remove(key).apply();
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (messages != null) {
+                for (CommunityMessage message : messages) {
+                    byte[] payload = encode(message);
+                    raf.writeInt(payload.length);
+                    raf.write(payload);
+                    raf.writeInt(payload.length);
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to import legacy chat for " + communityId, e);
+            file.delete();
+            opened.remove(communityId);
+            return;
+        }
+        prefs.edit().remove(key).apply();
+    }
+
+    private static byte[] encode(CommunityMessage message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(message.getSenderName() != null ? message.getSenderName() : "");
+        out.writeUTF(message.getText() != null ? message.getText() : "");
+        out.writeLong(message.getTimestamp());
+        out.writeBoolean(message.isMe());
+        return bytes.toByteArray();
+    }
+
+    private static CommunityMessage decode(byte[] payload) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        String sender = in.readUTF();
+        String text = in.readUTF();
+        long timestamp = in.readLong();
+        boolean isMe = in.readBoolean();
+        return new CommunityMessage(sender, text, timestamp, isMe);
+    }
+}
@@ -0,0 +1,604 @@
+package com.krishield.repositories;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.krishield.models.Community;
+import com.krishield.utils.AppExecutors;
+import com.krishield.utils.TextNormalizer;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Farmers Union communities and their membership, in SQLite.
+ *
+ * Member counts are PN-counters: every device (replica) keeps its own count
+ * of joins and leaves per community, and the total is the seed count plus
+ * all joins minus all leaves. Copies of a counter merge by taking the
+ * larger value per replica, so merging the same state twice, or in any
+ * order, gives the same result and a join is never counted twice.
+ *
+ * A join or leave applies locally at once and is queued as a pending op
+ * until the server acknowledges the counter that includes it.
+ *
+ * The directory is searched through a token table of TextNormalizer keys
+ * for each community's name and description, so Hindi, Hinglish and
+ * English spellings match by prefix. Results come in keyset pages sorted
+ * by member count or recency, each served by an index, so only one page is
+ * ever read into memory.
+ *
+ * All access goes through the disk thread.
+ */
+public class CommunityRepository extends SQLiteOpenHelper {
+    private static final String TAG = "CommunityRepository";
+    private static final String DB_NAME = "communities.db";
+    private static final int DB_VERSION = 2;
+
+    private static final String TABLE_COMMUNITIES = "communities";
+    private static final String TABLE_COUNTERS = "counters";
+    private static final String TABLE_OPS = "pending_ops";
+    private static final String TABLE_TOKENS = "community_tokens";
+
+    // Consonant keys share the token table, marked so words never match them
+    private static final String CONSONANT_KEY_MARK = "#";
+    // Shorter consonant keys would match too much
+    private static final int MIN_CONSONANT_KEY = 3;
+
+    private static final String[] COMMUNITY_COLUMNS = {
+            "id", "name", "description", "member_count", "joined", "created_at" };
+
+    // This device's replica id, created on first use
+    private static final String PREF_NAME = "KrishieldCommunitySync";
+    private static final String KEY_DEVICE_ID = "device_id";
+
+    // Communities kept in preferences by earlier versions, imported once
+    private static final String LEGACY_PREFS = "FarmersUnionPrefs";
+    private static final String LEGACY_KEY = "communities";
+
+    // Fixed ids so every device syncs the same groups
+    private static final List<Community> DEFAULT_COMMUNITIES = Arrays.asList(
+            new Community("punjab-kisan-union", "Punjab Kisan Union",
+                    "Official union for Punjab farmers.", 1250),
+            new Community("all-india-kisan-sabha", "All India Kisan Sabha",
+                    "National level farmers organization.", 5400),
+            new Community("organic-farmers-group", "Organic Farmers Group",
+                    "Discuss organic farming techniques.", 320));
+
+    private static CommunityRepository instance;
+
+    private final Context context;
+    private final ListeningExecutorService diskExecutor;
+    private final String replicaId;
+
+    /**
+     * A community's counter as sent to the server: replica id -> {joins, leaves}.
+     * opId is the newest pending op it includes, or 0 if none.
+     */
+    public static class CounterState {
+        public final String communityId;
+        public final Map<String, long[]> counter;
+        public final long opId;
+
+        CounterState(String communityId, Map<String, long[]> counter, long opId) {
+            this.communityId = communityId;
+            this.counter = counter;
+            this.opId = opId;
+        }
+    }
+
+    /**
+     * Outcome of merging counters from the server
+     */
+    public static class MergeResult {
+        // Some member count changed, lists need reloading
+        public final boolean changed;
+        // Local joins or leaves are still waiting to be acknowledged
+        public final boolean pending;
+
+        MergeResult(boolean changed, boolean pending) {
+            this.changed = changed;
+            this.pending = pending;
+        }
+    }
+
+    public enum Sort {
+        MEMBERS, NEWEST
+    }
+
+    /**
+     * Where a page ended: the sort value and id of its last community
+     */
+    public static class PageKey {
+        final long sortValue;
+        final String id;
+
+        PageKey(long sortValue, String id) {
+            this.sortValue = sortValue;
+            this.id = id;
+        }
+    }
+
+    /**
+     * One page of search results. next is null after the last page.
+     */
+    public static class Page {
+        public final List<Community> communities;
+        public final PageKey next;
+
+        Page(List<Community> communities, PageKey next) {
+            this.communities = communities;
+            this.next = next;
+        }
+    }
+
+    public static synchronized CommunityRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new CommunityRepository(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CommunityRepository(Context context) {
+        super(context, DB_NAME, null, DB_VERSION);
+        this.context = context;
+        this.diskExecutor = MoreExecutors.listeningDecorator(AppExecutors.getInstance().disk());
+        this.replicaId = deviceId(context);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * The id this device writes its counts under. Also used by the sync
+     * client to recognise its own messages.
+     */
+    public static synchronized String deviceId(Context context) {
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        String id = prefs.getString(KEY_DEVICE_ID, null);
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            prefs.edit().putString(KEY_DEVICE_ID, id).apply();
+        }
+        return id;
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_COMMUNITIES + " ("
+                + "id TEXT PRIMARY KEY, "
+                + "name TEXT NOT NULL, "
+                + "description TEXT, "
+                + "base_count INTEGER NOT NULL, "
+                + "joined INTEGER NOT NULL, "
+                + "created_at INTEGER NOT NULL, "
+                + "member_count INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE TABLE " + TABLE_COUNTERS + " ("
+                + "community_id TEXT NOT NULL, "
+                + "replica_id TEXT NOT NULL, "
+                + "joins INTEGER NOT NULL, "
+                + "leaves INTEGER NOT NULL, "
+                + "PRIMARY KEY (community_id, replica_id))");
+        db.execSQL("CREATE TABLE " + TABLE_OPS + " ("
+                + "_id INTEGER PRIMARY KEY AUTOINCREMENT, "
+                + "community_id TEXT NOT NULL, "
+                + "op TEXT NOT NULL, "
+                + "created_at INTEGER NOT NULL)");
+        createSearchIndex(db);
+        if (!importLegacy(db)) {
+            long createdAt = DEFAULT_COMMUNITIES.size();
+            for (Community community : DEFAULT_COMMUNITIES) {
+                insertCommunity(db, community, createdAt--);
+            }
+        }
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        if (oldVersion < 2) {
+            db.execSQL("ALTER TABLE " + TABLE_COMMUNITIES
+                    + " ADD COLUMN member_count INTEGER NOT NULL DEFAULT 0");
+            createSearchIndex(db);
+            try (Cursor cursor = db.query(TABLE_COMMUNITIES, new String[] { "id", "name", "description" },
+                    null, null, null, null, null)) {
+                while (cursor.moveToNext()) {
+                    indexTokens(db, cursor.getString(0), cursor.getString(1), cursor.getString(2));
+                    updateMemberCount(db, cursor.getString(0));
+                }
+            }
+        }
+    }
+
+    private static void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_TOKENS + " ("
+                + "token TEXT NOT NULL, "
+                + "community_id TEXT NOT NULL, "
+                + "PRIMARY KEY (token, community_id)) WITHOUT ROWID");
+        db.execSQL("CREATE INDEX communities_by_members ON " + TABLE_COMMUNITIES + " (member_count DESC, id)");
+        db.execSQL("CREATE INDEX communities_by_created ON " + TABLE_COMMUNITIES + " (created_at DESC, id)");
+    }
+
+    /**
+     * A page of communities matching the query, after the given key (null
+     * for the first page). Every word of the query must prefix-match a word
+     * of the name or description; an empty query matches all.
+     */
+    public ListenableFuture<Page> search(String query, Sort sort, PageKey after, int limit) {
+        return diskExecutor.submit(() -> {
+            String sortColumn = sort == Sort.MEMBERS ? "member_count" : "created_at";
+            StringBuilder where = new StringBuilder("1");
+            List<String> args = new ArrayList<>();
+            for (List<String> alternatives : queryTerms(query)) {
+                where.append(" AND id IN (SELECT community_id FROM ").append(TABLE_TOKENS).append(" WHERE ");
+                for (int i = 0; i < alternatives.size(); i++) {
+                    String prefix = alternatives.get(i);
+                    where.append(i > 0 ? " OR " : "").append("(token >= ? AND token < ?)");
+                    args.add(prefix);
+                    args.add(prefixEnd(prefix));
+                }
+                where.append(")");
+            }
+            if (after != null) {
+                where.append(" AND (").append(sortColumn).append(" < ? OR (")
+                        .append(sortColumn).append(" = ? AND id > ?))");
+                args.add(String.valueOf(after.sortValue));
+                args.add(String.valueOf(after.sortValue));
+                args.add(after.id);
+            }
+
+            List<Community> communities = new ArrayList<>();
+            PageKey last = null;
+            // One extra row tells whether another page follows
+            try (Cursor cursor = getReadableDatabase().query(TABLE_COMMUNITIES, COMMUNITY_COLUMNS,
+                    where.toString(), args.toArray(new String[0]), null, null,
+                    sortColumn + " DESC, id", String.valueOf(limit + 1))) {
+                while (cursor.moveToNext() && communities.size() < limit) {
+                    Community community = new Community(cursor.getString(0), cursor.getString(1),
+                            cursor.getString(2), (int) Math.max(0, cursor.getLong(3)));
+                    community.setJoined(cursor.getInt(4) != 0);
+                    communities.add(community);
+                    last = new PageKey(sort == Sort.MEMBERS ? cursor.getLong(3) : cursor.getLong(5),
+                            community.getId());
+                }
+                return new Page(communities, cursor.getCount() > limit ? last : null);
+            }
+        });
+    }
+
+    // Per query word, the keys it may prefix. Stopwords are skipped unless
+    // they are the last word, which may still be being typed.
+    private static List<List<String>> queryTerms(String query) {
+        List<List<String>> terms = new ArrayList<>();
+        List<String> words = TextNormalizer.words(query);
+        for (int i = 0; i < words.size(); i++) {
+            String word = words.get(i);
+            if (i < words.size() - 1 && TextNormalizer.isStopword(word)) {
+                continue;
+            }
+            List<String> alternatives = new ArrayList<>();
+            alternatives.add(word);
+            String synonym = TextNormalizer.synonym(word);
+            if (synonym != null && !synonym.equals(word)) {
+                alternatives.add(synonym);
+            }
+            String consonants = TextNormalizer.consonantKey(word);
+            if (consonants.length() >= MIN_CONSONANT_KEY) {
+                alternatives.add(CONSONANT_KEY_MARK + consonants);
+            }
+            terms.add(alternatives);
+        }
+        return terms;
+    }
+
+    // Smallest string above every string starting with the prefix; keys are ASCII
+    private static String prefixEnd(String prefix) {
+        return prefix.substring(0, prefix.length() - 1) + (char) (prefix.charAt(prefix.length() - 1) + 1);
+    }
+
+    /**
+     * Create a community on this device and join it
+     */
+    public ListenableFuture<?> create(String name, String description) {
+        return diskExecutor.submit(() -> {
+            SQLiteDatabase db = getWritableDatabase();
+            db.beginTransaction();
+            try {
+                String id = UUID.randomUUID().toString();
+                insertCommunity(db, new Community(id, name, description, 0), System.currentTimeMillis());
+                setJoined(db, id, true);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return null;
+        });
+    }
+
+    public ListenableFuture<?> join(String communityId) {
+        return diskExecutor.submit(() -> {
+            setJoinedInTransaction(communityId, true);
+            return null;
+        });
+    }
+
+    public ListenableFuture<?> leave(String communityId) {
+        return diskExecutor.submit(() -> {
+            setJoinedInTransaction(communityId, false);
+            return null;
+        });
+    }
+
+    /**
+     * Counters to send: those with pending ops, or all when refreshing
+     */
+    public ListenableFuture<List<CounterState>> loadCounterStates(boolean all) {
+        return diskExecutor.submit(() -> {
+            SQLiteDatabase db = getReadableDatabase();
+            Map<String, Long> pending = new HashMap<>();
+            try (Cursor cursor = db.rawQuery("SELECT community_id, MAX(_id) FROM " + TABLE_OPS
+                    + " GROUP BY community_id", null)) {
+                while (cursor.moveToNext()) {
+                    pending.put(cursor.getString(0), cursor.getLong(1));
+                }
+            }
+            List<String> ids = new ArrayList<>();
+            if (all) {
+                try (Cursor cursor = db.query(TABLE_COMMUNITIES, new String[] { "id" },
+                        null, null, null, null, null)) {
+                    while (cursor.moveToNext()) {
+                        ids.add(cursor.getString(0));
+                    }
+                }
+            } else {
+                ids.addAll(pending.keySet());
+            }
+            List<CounterState> states = new ArrayList<>();
+            for (String id : ids) {
+                Long opId = pending.get(id);
+                states.add(new CounterState(id, readCounter(db, id), opId != null ? opId : 0));
+            }
+            return states;
+        });
+    }
+
+    /**
+     * Merge a counter from the server and drop the pending ops up to ackedOpId
+     * it includes.
+     */
+    public ListenableFuture<MergeResult> mergeCounter(String communityId, Map<String, long[]> counter,
+            long ackedOpId) {
+        return diskExecutor.submit(() -> {
+            SQLiteDatabase db = getWritableDatabase();
+            boolean changed;
+            db.beginTransaction();
+            try {
+                changed = merge(db, communityId, counter);
+                if (ackedOpId > 0) {
+                    db.delete(TABLE_OPS, "community_id = ? AND _id <= ?",
+                            new String[] { communityId, String.valueOf(ackedOpId) });
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return new MergeResult(changed, DatabaseUtils.queryNumEntries(db, TABLE_OPS) > 0);
+        });
+    }
+
+    /**
+     * Merge a batch of counters (community id -> counter) in one transaction
+     */
+    public ListenableFuture<MergeResult> mergeCounters(Map<String, Map<String, long[]>> counters) {
+        return diskExecutor.submit(() -> {
+            SQLiteDatabase db = getWritableDatabase();
+            boolean changed = false;
+            db.beginTransaction();
+            try {
+                for (Map.Entry<String, Map<String, long[]>> entry : counters.entrySet()) {
+                    if (entry.getKey() != null && entry.getValue() != null) {
+                        changed |= merge(db, entry.getKey(), entry.getValue());
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            return new MergeResult(changed, DatabaseUtils.queryNumEntries(db, TABLE_OPS) > 0);
+        });
+    }
+
+    // Keep the larger value per replica; true if anything changed
+    private static boolean merge(SQLiteDatabase db, String communityId, Map<String, long[]> counter) {
+        Map<String, long[]> local = readCounter(db, communityId);
+        boolean changed = false;
+        for (Map.Entry<String, long[]> entry : counter.entrySet()) {
+            long[] theirs = entry.getValue();
+            if (theirs == null || theirs.length != 2) {
+                continue;
+            }
+            long[] ours = local.get(entry.getKey());
+            long joins = Math.max(theirs[0], ours != null ? ours[0] : 0);
+            long leaves = Math.max(theirs[1], ours != null ? ours[1] : 0);
+            if (ours == null || joins != ours[0] || leaves != ours[1]) {
+                writeCounter(db, communityId, entry.getKey(), joins, leaves);
+                changed = true;
+            }
+        }
+        if (changed) {
+            updateMemberCount(db, communityId);
+        }
+        return changed;
+    }
+
+    private void setJoinedInTransaction(String communityId, boolean joined) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            setJoined(db, communityId, joined);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Flip the join state and count it in this replica's entry, once
+    private void setJoined(SQLiteDatabase db, String communityId, boolean joined) {
+        long[] ours = readCounter(db, communityId).get(replicaId);
+        long joins = ours != null ? ours[0] : 0;
+        long leaves = ours != null ? ours[1] : 0;
+        boolean countedIn = joins > leaves;
+        if (countedIn != joined) {
+            if (joined) {
+                joins++;
+            } else {
+                leaves++;
+            }
+            writeCounter(db, communityId, replicaId, joins, leaves);
+            updateMemberCount(db, communityId);
+
+            ContentValues op = new ContentValues();
+            op.put("community_id", communityId);
+            op.put("op", joined ? "join" : "leave");
+            op.put("created_at", System.currentTimeMillis());
+            db.insertOrThrow(TABLE_OPS, null, op);
+        }
+
+        ContentValues values = new ContentValues();
+        values.put("joined", joined ? 1 : 0);
+        db.update(TABLE_COMMUNITIES, values, "id = ?", new String[] { communityId });
+    }
+
+    private static Map<String, long[]> readCounter(SQLiteDatabase db, String communityId) {
+        Map<String, long[]> counter = new HashMap<>();
+        try (Cursor cursor = db.query(TABLE_COUNTERS, new String[] { "replica_id", "joins", "leaves" },
+                "community_id = ?", new String[] { communityId }, null, null, null)) {
+            while (cursor.moveToNext()) {
+                counter.put(cursor.getString(0), new long[] { cursor.getLong(1), cursor.getLong(2) });
+            }
+        }
+        return counter;
+    }
+
+    private static void writeCounter(SQLiteDatabase db, String communityId, String replicaId,
+            long joins, long leaves) {
+        ContentValues values = new ContentValues();
+        values.put("community_id", communityId);
+        values.put("replica_id", replicaId);
+        values.put("joins", joins);
+        values.put("leaves", leaves);
+        db.insertWithOnConflict(TABLE_COUNTERS, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+    }
+
+    // Kept in the row so sorting by members can use an index
+    private static void updateMemberCount(SQLiteDatabase db, String communityId) {
+        db.execSQL("UPDATE " + TABLE_COMMUNITIES + " SET member_count = base_count + "
+                + "IFNULL((SELECT SUM(joins - leaves) FROM " + TABLE_COUNTERS + " WHERE community_id = ?), 0) "
+                + "WHERE id = ?", new Object[] { communityId, communityId });
+    }
+
+    // Folded spelling and consonant key of every word, plus the canonical
+    // term of farming words and plurals as TextNormalizer.tokens() gives them
+    private static void indexTokens(SQLiteDatabase db, String communityId, String name, String description) {
+        String text = name + " " + (description != null ? description : "");
+        Set<String> keys = new HashSet<>();
+        for (String word : TextNormalizer.words(text)) {
+            keys.add(word);
+            keys.add(CONSONANT_KEY_MARK + TextNormalizer.consonantKey(word));
+            String synonym = TextNormalizer.synonym(word);
+            if (synonym != null) {
+                keys.add(synonym);
+            }
+        }
+        keys.addAll(TextNormalizer.tokens(text));
+        ContentValues values = new ContentValues();
+        for (String key : keys) {
+            values.put("token", key);
+            values.put("community_id", communityId);
+            db.insertWithOnConflict(TABLE_TOKENS, null, values, SQLiteDatabase.CONFLICT_IGNORE);
+        }
+    }
+
+    private static void insertCommunity(SQLiteDatabase db, Community community, long createdAt) {
+        ContentValues values = new ContentValues();
+        values.put("id", community.getId());
+        values.put("name", community.getName());
+        values.put("description", community.getDescription());
+        values.put("base_count", community.getMemberCount());
+        values.put("joined", 0);
+        values.put("created_at", createdAt);
+        values.put("member_count", community.getMemberCount());
+        if (db.insertWithOnConflict(TABLE_COMMUNITIES, null, values, SQLiteDatabase.CONFLICT_IGNORE) != -1) {
+            indexTokens(db, community.getId(), community.getName(), community.getDescription());
+        }
+    }
+
+    private static String defaultIdFor(String name) {
+        for (Community community : DEFAULT_COMMUNITIES) {
+            if (community.getName().equals(name)) {
+                return community.getId();
+            }
+        }
+        return null;
+    }
+
+    // Returns false if there was nothing to import
+    private boolean importLegacy(SQLiteDatabase db) {
+        SharedPreferences prefs = context.getSharedPreferences(LEGACY_PREFS, Context.MODE_PRIVATE);
+        String json = prefs.getString(LEGACY_KEY, null);
+        if (json == null) {
+            return false;
+        }
+        boolean imported = false;
+        try {
+            Type type = new TypeToken<List<Community>>() {
+            }.getType();
+            List<Community> communities = new Gson().fromJson(json, type);
+            if (communities != null) {
+                // The list was kept newest first
+                long createdAt = communities.size();
+                for (Community community : communities) {
+                    if (community == null || community.getId() == null || community.getName() == null) {
+                        continue;
+                    }
+                    // Earlier versions gave the default groups random ids; move
+                    // them and their chat to the fixed ids shared by all devices
+                    String id = community.getId();
+                    String fixedId = defaultIdFor(community.getName());
+                    if (fixedId != null && !fixedId.equals(id)) {
+                        CommunityMessageLog.getInstance(context).renameCommunity(id, fixedId);
+                        id = fixedId;
+                    }
+                    // Earlier joins were added straight to the count; count them
+                    // as this device's join instead so they sync
+                    int base = community.getMemberCount() - (community.isJoined() ? 1 : 0);
+                    insertCommunity(db, new Community(id, community.getName(),
+                            community.getDescription(), Math.max(0, base)), createdAt--);
+                    if (community.isJoined()) {
+                        setJoined(db, id, true);
+                    }
+                    imported = true;
+                }
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Skipping unreadable legacy communities", e);
+        }
+        context.deleteSharedPreferences(LEGACY_PREFS);
+        return imported;
+    }
+}
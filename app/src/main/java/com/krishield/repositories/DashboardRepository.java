@@ -0,0 +1,135 @@
+package com.krishield.repositories;
+
+import android.content.Context;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.Gson;
+import com.krishield.models.DashboardSnapshot;
+import com.krishield.services.GeminiRateLimiter;
+import com.krishield.services.GeminiService;
+import com.krishield.utils.AppExecutors;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+
+/**
+ * Home screen data (pest risk + featured scheme) fetched as one batched
+ * Gemini request and cached as a single unit.
+ */
+public class DashboardRepository {
+
+    private static final String KEY_DASHBOARD = "dashboard/snapshot";
+    private static final long CACHE_DURATION = 24 * 60 * 60 * 1000; // 24 hours
+
+    private final TieredCache cache;
+    private final GeminiService geminiService;
+    private final Executor executor;
+    private final Gson gson;
+
+    public interface DashboardCallback {
+        void onSuccess(DashboardSnapshot snapshot);
+
+        void onError(String error);
+    }
+
+    public DashboardRepository(Context context) {
+        this.cache = TieredCache.getInstance(context);
+        this.geminiService = GeminiService.getInstance(context);
+        this.executor = AppExecutors.getInstance().cpu();
+        this.gson = new Gson();
+    }
+
+    public ListenableFuture<?> getDashboard(double latitude, double longitude, String city, String country,
+            boolean forceRefresh, DashboardCallback callback) {
+        if (forceRefresh) {
+            return fetchFromGemini(latitude, longitude, city, country, true, callback);
+        }
+
+        return cache.getThen(KEY_DASHBOARD, executor, entry -> {
+            DashboardSnapshot cached = entry != null && !entry.isExpired() ? parse(entry.value) : null;
+            if (cached != null) {
+                callback.onSuccess(cached);
+                return Futures.immediateVoidFuture();
+            }
+            return fetchFromGemini(latitude, longitude, city, country, true, callback);
+        });
+    }
+
+    /**
+     * Background refresh of the cache. Fails instead of falling back to the
+     * cached snapshot, so the caller can tell the fetch did not work.
+     */
+    public ListenableFuture<?> refresh(double latitude, double longitude, String city, String country,
+            DashboardCallback callback) {
+        return fetchFromGemini(latitude, longitude, city, country, false, callback);
+    }
+
+    /**
+     * When the cached snapshot was saved, 0 if there is none. Reads from disk,
+     * so not for the main thread.
+     */
+    public long getLastUpdateTime() {
+        TieredCache.Entry entry = cache.get(KEY_DASHBOARD);
+        return entry != null ? entry.storedAt : 0;
+    }
+
+    private ListenableFuture<?> fetchFromGemini(double latitude, double longitude, String city,
+            String country, boolean staleOnError, DashboardCallback callback) {
+        String prompt = String.format(Locale.US,
+                "You are an agricultural advisor for Indian farmers. For a farm at coordinates %.2f, %.2f (%s, %s), "
+                        + "return ONE JSON object with exactly these fields:\n"
+                        + "{\"pestRiskPercent\": integer 0-100 for current pest risk, "
+                        + "\"pestRiskLevel\": \"Low\", \"Medium\" or \"High\", "
+                        + "\"pestAdvice\": one short sentence, "
+                        + "\"schemeTitle\": name of the latest government scheme for farmers in India, "
+                        + "\"schemeDescription\": one-line description (max 100 characters)}",
+                latitude, longitude, city, country);
+
+        return geminiService.requestJson(prompt, GeminiRateLimiter.Priority.BACKGROUND, executor,
+                new GeminiService.ResponseCallback() {
+                    @Override
+                    public void onSuccess(String response) {
+                        DashboardSnapshot snapshot = parse(response);
+                        if (snapshot != null) {
+                            cache.put(KEY_DASHBOARD, gson.toJson(snapshot), CACHE_DURATION);
+                            callback.onSuccess(snapshot);
+                        } else {
+                            // Do not cache junk; fall back to the previous snapshot if any
+                            onError("Invalid dashboard response");
+                        }
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        if (!staleOnError) {
+                            callback.onError(error);
+                            return;
+                        }
+                        // If API fails, return cache even if expired
+                        DashboardSnapshot cached = readCache();
+                        if (cached != null) {
+                            callback.onSuccess(cached);
+                        } else {
+                            callback.onError(error);
+                        }
+                    }
+                });
+    }
+
+    private DashboardSnapshot readCache() {
+        TieredCache.Entry entry = cache.get(KEY_DASHBOARD);
+        return entry != null ? parse(entry.value) : null;
+    }
+
+    private DashboardSnapshot parse(String json) {
+        if (json == null) {
+            return null;
+        }
+        try {
+            DashboardSnapshot snapshot = gson.fromJson(json, DashboardSnapshot.class);
+            return snapshot != null && snapshot.isValid() ? snapshot : null;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.krishield.repositories;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import com.krishield.models.FarmPlot;
+
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Farm plots saved on this device
+ */
+public class FarmPlotRepository {
+
+    private static final String PREF_NAME = "KrishieldFarmPlots";
+    private static final String KEY_PLOTS = "plots";
+
+    private final SharedPreferences prefs;
+    private final Gson gson;
+
+    public FarmPlotRepository(Context context) {
+        this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        this.gson = new Gson();
+    }
+
+    public synchronized List<FarmPlot> getPlots() {
+        String json = prefs.getString(KEY_PLOTS, null);
+        if (json == null) {
+            return new ArrayList<>();
+        }
+        try {
+            Type type = new TypeToken<List<FarmPlot>>() {
+            }.getType();
+            List<FarmPlot> plots = gson.fromJson(json, type);
+            return plots != null ? plots : new ArrayList<>();
+        } catch (Exception e) {
+            return new ArrayList<>();
+        }
+    }
+
+    public synchronized FarmPlot addPlot(String name, double latitude, double longitude) {
+        List<FarmPlot> plots = getPlots();
+        FarmPlot plot = new FarmPlot(UUID.randomUUID().toString(), name, latitude, longitude);
+        plots.add(plot);
+        save(plots);
+        return plot;
+    }
+
+    public synchronized void removePlot(String id) {
+        List<FarmPlot> plots = getPlots();
+        Iterator<FarmPlot> it = plots.iterator();
+        while (it.hasNext()) {
+            if (it.next().id.equals(id)) {
+                it.remove();
+            }
+        }
+        save(plots);
+    }
+
+    private void save(List<FarmPlot> plots) {
+        prefs.edit()
+                .putString(KEY_PLOTS, gson.toJson(plots))
+                .apply();
+    }
+}
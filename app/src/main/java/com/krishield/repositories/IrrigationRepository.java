@@ -1,23 +1,20 @@
 package com.krishield.repositories;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.krishield.services.GeminiService;
+import com.krishield.utils.AppExecutors;
 
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.Locale;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 public class IrrigationRepository {
 
-    private static final String PREF_NAME = "KrishieldIrrigationCache";
     // Cache for 6 hours. Weather changes, but advice shouldn't flip too often in a
     // day.
     private static final long CACHE_DURATION = 6 * 60 * 60 * 1000;
 
-    private final SharedPreferences prefs;
+    private final TieredCache cache;
     private final GeminiService geminiService;
     private final Executor executor;
 
@@ -28,38 +25,34 @@ public class IrrigationRepository {
     }
 
     public IrrigationRepository(Context context) {
-        this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        String customApiKey = com.krishield.activities.SettingsActivity.getSavedApiKey(context);
-        this.geminiService = new GeminiService(customApiKey);
-        this.executor = Executors.newSingleThreadExecutor();
+        this.cache = TieredCache.getInstance(context);
+        this.geminiService = GeminiService.getInstance(context);
+        this.executor = AppExecutors.getInstance().cpu();
     }
 
-    public void getIrrigationAdvice(String crop, String soil, String lastWateredDate, String weatherInfo,
-            boolean forceRefresh, IrrigationCallback callback) {
-        // Create a key based on inputs + today's date (so next day it refreshes)
-        String today = new SimpleDateFormat("yyyyMMdd", Locale.US).format(new Date());
-        // Sanitize string for key
+    public ListenableFuture<?> getIrrigationAdvice(String crop, String soil, String lastWateredDate,
+            String weatherInfo, boolean forceRefresh, IrrigationCallback callback) {
+        // Sanitize string for key. The TTL makes the advice refresh during the day,
+        // so the date is not part of the key and old entries are simply evicted.
         String safeCrop = crop.replaceAll("[^a-zA-Z0-9]", "");
-        String key = "irrigation_" + safeCrop + "_" + soil + "_" + lastWateredDate + "_" + today;
-        String timeKey = key + "_time";
+        String key = "irrigation/" + safeCrop + "_" + soil + "_" + lastWateredDate;
 
-        long lastUpdate = prefs.getLong(timeKey, 0);
-        long currentTime = System.currentTimeMillis();
-
-        if (!forceRefresh && (currentTime - lastUpdate < CACHE_DURATION)) {
-            String cachedResponse = prefs.getString(key, null);
-            if (cachedResponse != null && !cachedResponse.isEmpty() && !cachedResponse.contains("Error")) {
-                callback.onSuccess(cachedResponse);
-                return;
-            }
+        if (forceRefresh) {
+            return fetchFromGemini(crop, soil, lastWateredDate, weatherInfo, key, callback);
         }
 
-        // Fetch from API
-        fetchFromGemini(crop, soil, lastWateredDate, weatherInfo, key, timeKey, callback);
+        return cache.getThen(key, executor, entry -> {
+            if (entry != null && !entry.isExpired() && !entry.value.isEmpty() && !entry.value.contains("Error")) {
+                callback.onSuccess(entry.value);
+                return Futures.immediateVoidFuture();
+            }
+            // Fetch from API
+            return fetchFromGemini(crop, soil, lastWateredDate, weatherInfo, key, callback);
+        });
     }
 
-    private void fetchFromGemini(String crop, String soil, String date, String weather, String cacheKey, String timeKey,
-            IrrigationCallback callback) {
+    private ListenableFuture<?> fetchFromGemini(String crop, String soil, String date, String weather,
+            String cacheKey, IrrigationCallback callback) {
         String prompt = String.format(
                 "You are an expert agronomist. User Input:\n" +
                         "- Crop: %s\n" +
@@ -71,14 +64,11 @@ public class IrrigationRepository {
                         "Keep it simple and direct for a farmer.",
                 crop, soil, date, weather);
 
-        geminiService.sendTextMessage(prompt, executor, new GeminiService.ResponseCallback() {
+        return geminiService.sendTextMessage(prompt, executor, new GeminiService.ResponseCallback() {
             @Override
             public void onSuccess(String response) {
-                if (response != null && !response.isEmpty() && !response.toLowerCase().contains("quota")) {
-                    prefs.edit()
-                            .putString(cacheKey, response)
-                            .putLong(timeKey, System.currentTimeMillis())
-                            .apply();
+                if (response != null && !response.isEmpty()) {
+                    cache.put(cacheKey, response, CACHE_DURATION);
                     callback.onSuccess(response);
                 } else {
                     callback.onError("API Response Error: " + response);
@@ -88,9 +78,9 @@ public class IrrigationRepository {
             @Override
             public void onError(String error) {
                 // Try fallback to cache if available
-                String cachedResponse = prefs.getString(cacheKey, null);
-                if (cachedResponse != null) {
-                    callback.onSuccess(cachedResponse);
+                TieredCache.Entry entry = cache.get(cacheKey);
+                if (entry != null) {
+                    callback.onSuccess(entry.value);
                 } else {
                     callback.onError(error);
                 }
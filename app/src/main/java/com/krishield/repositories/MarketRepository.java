@@ -1,126 +1,154 @@
 package com.krishield.repositories;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+import com.google.ai.client.generativeai.type.Schema;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.krishield.models.MarketReport;
+import com.krishield.services.GeminiRateLimiter;
 import com.krishield.services.GeminiService;
+import com.krishield.utils.AppExecutors;
 
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 
 public class MarketRepository {
 
-    private static final String PREF_NAME = "KrishieldMarketCache";
     private static final long CACHE_DURATION = 24 * 60 * 60 * 1000; // 24 hours
 
-    private final SharedPreferences prefs;
+    private final TieredCache cache;
     private final GeminiService geminiService;
     private final Executor executor;
+    private final Gson gson;
+
+    // Field names match MarketReport / MarketPrice
+    private static final Schema<?> MARKET_SCHEMA = Schema.obj("report", "Mandi price estimates",
+            Schema.arr("prices", "Crops with estimated prices",
+                    Schema.obj("price", "Estimated price for one crop",
+                            Schema.str("crop", "Crop name"),
+                            Schema.num("pricePerQuintal", "Estimated mandi price in rupees per quintal"),
+                            Schema.str("trend", "30-day trend: rising, falling or stable"))),
+            Schema.str("recommendation", "Short selling recommendation"));
 
     public interface MarketCallback {
-        void onSuccess(String response);
+        void onSuccess(MarketReport report);
 
         void onError(String error);
     }
 
     public MarketRepository(Context context) {
-        this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        String customApiKey = com.krishield.activities.SettingsActivity.getSavedApiKey(context);
-        this.geminiService = new GeminiService(customApiKey);
-        this.executor = Executors.newSingleThreadExecutor();
+        this.cache = TieredCache.getInstance(context);
+        this.geminiService = GeminiService.getInstance(context);
+        this.executor = AppExecutors.getInstance().cpu();
+        this.gson = new Gson();
     }
 
-    public void getMarketData(String city, String state, String season, boolean forceRefresh, MarketCallback callback) {
-        String cacheKey = "market_data_" + city + "_" + state + "_" + season;
-        String lastUpdateKey = "last_update_" + city + "_" + state + "_" + season;
-
-        long lastUpdate = prefs.getLong(lastUpdateKey, 0);
-        long currentTime = System.currentTimeMillis();
+    public ListenableFuture<?> getMarketData(String city, String state, String season, boolean forceRefresh,
+            MarketCallback callback) {
+        String cacheKey = cacheKey(city, state, season);
+        if (forceRefresh) {
+            return fetchFromGemini(city, state, season, cacheKey, GeminiRateLimiter.Priority.NORMAL, true, callback);
+        }
 
-        if (!forceRefresh && (currentTime - lastUpdate < CACHE_DURATION)) {
-            String cachedResponse = prefs.getString(cacheKey, null);
-            if (cachedResponse != null && !cachedResponse.isEmpty() && isValidResponse(cachedResponse)) {
-                callback.onSuccess(cachedResponse);
-                return;
+        return cache.getThen(cacheKey, executor, entry -> {
+            MarketReport cached = entry != null && !entry.isExpired() ? parseReport(entry.value) : null;
+            if (cached != null) {
+                callback.onSuccess(cached);
+                return Futures.immediateVoidFuture();
             }
-        }
+            // Fetch from API
+            return fetchFromGemini(city, state, season, cacheKey, GeminiRateLimiter.Priority.NORMAL, true,
+                    callback);
+        });
+    }
 
-        // Fetch from API
-        fetchFromGemini(city, state, season, cacheKey, lastUpdateKey, callback);
+    /**
+     * Background refresh of the cache. Fails instead of falling back to the
+     * cached report, so the caller can tell the fetch did not work.
+     */
+    public ListenableFuture<?> refresh(String city, String state, String season, MarketCallback callback) {
+        return fetchFromGemini(city, state, season, cacheKey(city, state, season),
+                GeminiRateLimiter.Priority.BACKGROUND, false, callback);
     }
 
-    private void fetchFromGemini(String city, String state, String season, String cacheKey, String timeKey,
-            MarketCallback callback) {
+    /**
+     * When the report for this location and season was saved, 0 if there is
+     * none. Reads from disk, so not for the main thread.
+     */
+    public long getLastUpdateTime(String city, String state, String season) {
+        TieredCache.Entry entry = cache.get(cacheKey(city, state, season));
+        return entry != null ? entry.storedAt : 0;
+    }
+
+    private static String cacheKey(String city, String state, String season) {
+        return "market/" + city + "_" + state + "_" + season;
+    }
+
+    private ListenableFuture<?> fetchFromGemini(String city, String state, String season, String cacheKey,
+            GeminiRateLimiter.Priority priority, boolean staleOnError, MarketCallback callback) {
         String prompt;
         if ("General".equalsIgnoreCase(season)) {
             prompt = String.format(
                     "Act as an agricultural market expert. Estimate current market prices in %s, %s for crops based on recent trends. "
                             +
-                            "Provide:\n" +
-                            "1. Top 5 crops with estimated mandi price (₹/quintal)\n" +
-                            "2. Brief 30-day trend (rising/falling/stable)\n" +
-                            "3. Short selling recommendation\n\n" +
-                            "Format as JSON array implicitly (just the list):\n" +
-                            "CROPS:\n" +
-                            "• Crop name: ₹price/quintal (trend)\n\n" +
-                            "RECOMMENDATION:\n" +
-                            "• Point 1",
+                            "Give the top 5 crops with their estimated mandi price in rupees per quintal and " +
+                            "their 30-day trend, plus one short selling recommendation.",
                     city, state);
         } else {
             // Specific search
             prompt = String.format(
                     "Act as an agricultural market expert. Estimate current market price for '%s' in %s, %s. "
                             +
-                            "Provide:\n" +
-                            "1. Estimated mandi price (₹/quintal)\n" +
-                            "2. Brief 30-day trend\n" +
-                            "3. Selling advice\n\n" +
-                            "Format as:\n" +
-                            "CROPS:\n" +
-                            "• %s: ₹price/quintal (trend)\n\n" +
-                            "RECOMMENDATION:\n" +
-                            "• Advice for %s",
-                    season, city, state, season, season);
+                            "Give its estimated mandi price in rupees per quintal and its 30-day trend, " +
+                            "plus short selling advice for %s.",
+                    season, city, state, season);
         }
 
-        geminiService.sendTextMessage(prompt, executor, new GeminiService.ResponseCallback() {
-            @Override
-            public void onSuccess(String response) {
-                // Validate response before caching
-                if (isValidResponse(response)) {
-                    prefs.edit()
-                            .putString(cacheKey, response)
-                            .putLong(timeKey, System.currentTimeMillis())
-                            .apply();
-                    callback.onSuccess(response);
-                } else {
-                    // If response is an error message (rate limit, etc.), valid but useless
-                    // Do NOT cache it, and pass it to UI (or handle as error)
-                    callback.onError("API Response Error: " + response);
-                }
-            }
-
-            @Override
-            public void onError(String error) {
-                // Try to return old cache if API fails, BUT only if it's valid
-                String cachedResponse = prefs.getString(cacheKey, null);
-                if (cachedResponse != null && isValidResponse(cachedResponse)) {
-                    callback.onSuccess(cachedResponse);
-                } else {
-                    callback.onError(error);
-                }
-            }
-        });
+        return geminiService.requestJson(prompt, MARKET_SCHEMA, priority, executor,
+                new GeminiService.ResponseCallback() {
+                    @Override
+                    public void onSuccess(String response) {
+                        // Validate response before caching
+                        MarketReport report = parseReport(response);
+                        if (report != null) {
+                            cache.put(cacheKey, response, CACHE_DURATION);
+                            callback.onSuccess(report);
+                        } else {
+                            // Response is not usable market data: do NOT cache it
+                            onError("Invalid market data received");
+                        }
+                    }
+
+                    @Override
+                    public void onError(String error) {
+                        if (!staleOnError) {
+                            callback.onError(error);
+                            return;
+                        }
+                        // Try to return old cache if API fails, BUT only if it's valid
+                        TieredCache.Entry entry = cache.get(cacheKey);
+                        MarketReport cached = entry != null ? parseReport(entry.value) : null;
+                        if (cached != null) {
+                            callback.onSuccess(cached);
+                        } else {
+                            callback.onError(error);
+                        }
+                    }
+                });
     }
 
-    // Helper to check if response looks like valid market data
-    private boolean isValidResponse(String response) {
-        if (response == null || response.isEmpty())
-            return false;
-        String lower = response.toLowerCase();
-        // Check for common API error keywords
-        return !lower.contains("rate limit") &&
-                !lower.contains("quota exceeded") &&
-                !lower.contains("internal error") &&
-                !lower.contains("safety");
+    // Parsed report, or null if the JSON is missing, malformed or incomplete
+    // (including bullet-text entries cached by older versions)
+    private MarketReport parseReport(String json) {
+        if (json == null || json.isEmpty()) {
+            return null;
+        }
+        try {
+            MarketReport report = gson.fromJson(json, MarketReport.class);
+            return report != null && report.isValid() ? report : null;
+        } catch (JsonParseException e) {
+            return null;
+        }
     }
 }
@@ -1,25 +1,29 @@
 package com.krishield.repositories;
 
 import android.content.Context;
-import android.content.SharedPreferences;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
 import com.google.gson.reflect.TypeToken;
 import com.krishield.models.Scheme;
+import com.krishield.services.GeminiRateLimiter;
 import com.krishield.services.GeminiService;
+import com.krishield.utils.AppExecutors;
 
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public class SchemesRepository {
 
-    private static final String PREF_NAME = "KrishieldCache";
-    private static final String KEY_SCHEMES = "cached_schemes";
-    private static final String KEY_LAST_UPDATE = "schemes_last_update";
+    private static final String KEY_SCHEMES = "schemes/all";
     private static final long CACHE_DURATION = 24 * 60 * 60 * 1000; // 24 hours
 
-    private final SharedPreferences prefs;
+    private final TieredCache cache;
     private final GeminiService geminiService;
+    private final Executor executor;
     private final Gson gson;
 
     public interface SchemesCallback {
@@ -29,79 +33,108 @@ public class SchemesRepository {
     }
 
     public SchemesRepository(Context context) {
-        this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        String customApiKey = com.krishield.activities.SettingsActivity.getSavedApiKey(context);
-        this.geminiService = new GeminiService(customApiKey);
+        this.cache = TieredCache.getInstance(context);
+        this.geminiService = GeminiService.getInstance(context);
+        this.executor = AppExecutors.getInstance().cpu();
         this.gson = new Gson();
     }
 
-    public void getSchemes(boolean forceRefresh, SchemesCallback callback) {
-        long lastUpdate = prefs.getLong(KEY_LAST_UPDATE, 0);
-        long currentTime = System.currentTimeMillis();
-
-        if (!forceRefresh && (currentTime - lastUpdate < CACHE_DURATION)) {
-            String json = prefs.getString(KEY_SCHEMES, null);
-            if (json != null) {
-                Type type = new TypeToken<List<Scheme>>() {
-                }.getType();
-                List<Scheme> cachedSchemes = gson.fromJson(json, type);
-                if (cachedSchemes != null && !cachedSchemes.isEmpty()) {
-                    callback.onSuccess(cachedSchemes);
-                    return;
-                }
-            }
+    public ListenableFuture<?> getSchemes(boolean forceRefresh, SchemesCallback callback) {
+        if (forceRefresh) {
+            return fetchFromGemini(GeminiRateLimiter.Priority.NORMAL, true, callback);
         }
 
-        // Fetch from API if cache expired or empty or forced
-        fetchFromGemini(callback);
+        return cache.getThen(KEY_SCHEMES, executor, entry -> {
+            List<Scheme> cachedSchemes = entry != null && !entry.isExpired() ? parse(entry.value) : null;
+            if (cachedSchemes != null && !cachedSchemes.isEmpty()) {
+                callback.onSuccess(cachedSchemes);
+                return Futures.immediateVoidFuture();
+            }
+            // Fetch from API if cache expired or empty
+            return fetchFromGemini(GeminiRateLimiter.Priority.NORMAL, true, callback);
+        });
+    }
+
+    /**
+     * Background refresh of the cache. Fails instead of falling back to the
+     * cached list, so the caller can tell the fetch did not work.
+     */
+    public ListenableFuture<?> refresh(SchemesCallback callback) {
+        return fetchFromGemini(GeminiRateLimiter.Priority.BACKGROUND, false, callback);
+    }
+
+    /**
+     * When the cached list was saved, 0 if there is none. Reads from disk, so
+     * not for the main thread.
+     */
+    public long getLastUpdateTime() {
+        TieredCache.Entry entry = cache.get(KEY_SCHEMES);
+        return entry != null ? entry.storedAt : 0;
     }
 
-    private void fetchFromGemini(SchemesCallback callback) {
-        geminiService.getGovernmentSchemes(new GeminiService.GeminiCallback() {
+    private ListenableFuture<?> fetchFromGemini(GeminiRateLimiter.Priority priority, boolean staleOnError,
+            SchemesCallback callback) {
+        return geminiService.getGovernmentSchemes(priority, new GeminiService.GeminiCallback() {
             @Override
             public void onSuccess(String response) {
                 try {
-                    // Clean code blocks if present
-                    String cleanJson = response.replaceAll("```json", "").replaceAll("```", "").trim();
-
-                    Type type = new TypeToken<List<Scheme>>() {
-                    }.getType();
-                    List<Scheme> schemes = gson.fromJson(cleanJson, type);
+                    // The response schema guarantees a plain JSON array of Scheme objects
+                    List<Scheme> schemes = validSchemes(parse(response));
 
-                    if (schemes != null) {
+                    if (!schemes.isEmpty()) {
                         saveToCache(schemes);
                         callback.onSuccess(schemes);
                     } else {
-                        callback.onError("Failed to parse schemes");
+                        onError("Failed to parse schemes");
                     }
                 } catch (Exception e) {
-                    callback.onError("Parsing error: " + e.getMessage());
+                    onError("Parsing error: " + e.getMessage());
                 }
             }
 
             @Override
             public void onError(String error) {
+                if (!staleOnError) {
+                    callback.onError(error);
+                    return;
+                }
                 // If API fails, try to return cache even if expired
-                String json = prefs.getString(KEY_SCHEMES, null);
-                if (json != null) {
-                    Type type = new TypeToken<List<Scheme>>() {
-                    }.getType();
-                    List<Scheme> cachedSchemes = gson.fromJson(json, type);
-                    if (cachedSchemes != null) {
-                        callback.onSuccess(cachedSchemes);
-                        return;
-                    }
+                TieredCache.Entry entry = cache.get(KEY_SCHEMES);
+                List<Scheme> cachedSchemes = entry != null ? parse(entry.value) : null;
+                if (cachedSchemes != null) {
+                    callback.onSuccess(cachedSchemes);
+                    return;
                 }
                 callback.onError(error);
             }
         });
     }
 
+    // Drop entries without a title so a partial answer never reaches the cache
+    private List<Scheme> validSchemes(List<Scheme> schemes) {
+        List<Scheme> valid = new ArrayList<>();
+        if (schemes != null) {
+            for (Scheme scheme : schemes) {
+                if (scheme != null && scheme.title != null && !scheme.title.trim().isEmpty()) {
+                    valid.add(scheme);
+                }
+            }
+        }
+        return valid;
+    }
+
+    // Null if the JSON is malformed
+    private List<Scheme> parse(String json) {
+        Type type = new TypeToken<List<Scheme>>() {
+        }.getType();
+        try {
+            return gson.fromJson(json, type);
+        } catch (JsonParseException e) {
+            return null;
+        }
+    }
+
     private void saveToCache(List<Scheme> schemes) {
-        String json = gson.toJson(schemes);
-        prefs.edit()
-                .putString(KEY_SCHEMES, json)
-                .putLong(KEY_LAST_UPDATE, System.currentTimeMillis())
-                .apply();
+        cache.put(KEY_SCHEMES, gson.toJson(schemes), CACHE_DURATION);
     }
 }
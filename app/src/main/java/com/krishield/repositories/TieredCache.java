@@ -0,0 +1,286 @@
+package com.krishield.repositories;
+
+import android.content.Context;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.krishield.utils.AppExecutors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * String cache shared by the repositories, with two tiers:
+ *
+ * - memory: an LRU bounded by the number of characters held
+ * - disk: one file per key in the cache directory, bounded in total bytes,
+ * least recently used files are deleted first
+ *
+ * Every entry has its own TTL. Expired entries are still returned (marked
+ * expired) so callers can fall back to them when a refresh fails; once they
+ * are older than MAX_STALE past expiry they are dropped.
+ *
+ * Keys are namespaced by the caller, e.g. "market/Pune_Maharashtra_General".
+ * get() may read from disk, so call it off the main thread or use getAsync().
+ * Writes go through the single disk thread.
+ */
+public class TieredCache {
+    private static final String TAG = "TieredCache";
+    private static final String DIR_NAME = "data_cache";
+
+    private static final int MEMORY_CHARS = 512 * 1024; // about 1 MB
+    private static final long DISK_BYTES = 5L * 1024 * 1024; // 5 MB
+    private static final long MAX_STALE = 7L * 24 * 60 * 60 * 1000; // 7 days
+    private static final int FORMAT_VERSION = 1;
+
+    private static TieredCache instance;
+
+    private final File dir;
+    private final LruCache<String, Entry> memory;
+    private final ListeningExecutorService diskExecutor;
+
+    // File name -> size, access-ordered so the eldest is the least recently used
+    private final LinkedHashMap<String, Long> diskIndex = new LinkedHashMap<>(64, 0.75f, true);
+    private long diskSize;
+
+    /**
+     * Continues a read with the entry, or null if there is none
+     */
+    public interface Continuation {
+        ListenableFuture<?> apply(Entry entry) throws Exception;
+    }
+
+    public static class Entry {
+        public final String value;
+        public final long storedAt;
+        public final long expiresAt;
+
+        Entry(String value, long storedAt, long expiresAt) {
+            this.value = value;
+            this.storedAt = storedAt;
+            this.expiresAt = expiresAt;
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+
+        public long getAge() {
+            return System.currentTimeMillis() - storedAt;
+        }
+    }
+
+    public static synchronized TieredCache getInstance(Context context) {
+        if (instance == null) {
+            instance = new TieredCache(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private TieredCache(Context context) {
+        this.dir = new File(context.getCacheDir(), DIR_NAME);
+        this.memory = new LruCache<String, Entry>(MEMORY_CHARS) {
+            @Override
+            protected int sizeOf(String key, Entry entry) {
+                return key.length() + entry.value.length();
+            }
+        };
+        this.diskExecutor = MoreExecutors.listeningDecorator(AppExecutors.getInstance().disk());
+        diskExecutor.execute(this::loadIndex);
+    }
+
+    /**
+     * The entry for the key, expired or not, or null. May read from disk.
+     */
+    public Entry get(String key) {
+        Entry entry = memory.get(key);
+        if (entry == null) {
+            entry = readFile(key);
+            if (entry != null) {
+                memory.put(key, entry);
+            }
+        }
+        if (entry != null && System.currentTimeMillis() - entry.expiresAt > MAX_STALE) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * The entry if it is in the memory tier, else null. Never reads from disk.
+     */
+    public Entry peek(String key) {
+        Entry entry = memory.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.expiresAt > MAX_STALE) {
+            remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Like get(), but disk reads run on the disk thread. Memory hits complete
+     * immediately. The future's value is null if there is no entry.
+     */
+    public ListenableFuture<Entry> getAsync(String key) {
+        Entry entry = memory.get(key);
+        if (entry != null) {
+            return Futures.immediateFuture(get(key));
+        }
+        return diskExecutor.submit(() -> get(key));
+    }
+
+    /**
+     * Read the entry off the main thread, then run next with it on the
+     * executor. Cancelling the result also cancels the future next returned.
+     */
+    public ListenableFuture<?> getThen(String key, Executor executor, Continuation next) {
+        return Futures.transformAsync(getAsync(key), entry -> {
+            @SuppressWarnings("unchecked")
+            ListenableFuture<Object> result = (ListenableFuture<Object>) next.apply(entry);
+            return result;
+        }, executor);
+    }
+
+    public void put(String key, String value, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        Entry entry = new Entry(value, now, now + ttlMillis);
+        memory.put(key, entry);
+        diskExecutor.execute(() -> writeFile(key, entry));
+    }
+
+    public void remove(String key) {
+        memory.remove(key);
+        diskExecutor.execute(() -> {
+            String name = fileName(key);
+            synchronized (diskIndex) {
+                Long size = diskIndex.remove(name);
+                if (size != null) {
+                    diskSize -= size;
+                }
+            }
+            new File(dir, name).delete();
+        });
+    }
+
+    private static String fileName(String key) {
+        return Hashing.sha256().hashString(key, StandardCharsets.UTF_8).toString();
+    }
+
+    private Entry readFile(String key) {
+        String name = fileName(key);
+        File file = new File(dir, name);
+        if (!file.exists()) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION || !key.equals(in.readUTF())) {
+                return null;
+            }
+            long storedAt = in.readLong();
+            long expiresAt = in.readLong();
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            synchronized (diskIndex) {
+                diskIndex.get(name); // mark as recently used
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return new Entry(new String(bytes, StandardCharsets.UTF_8), storedAt, expiresAt);
+        } catch (IOException e) {
+            Log.w(TAG, "Dropping unreadable cache file for " + key, e);
+            file.delete();
+            return null;
+        }
+    }
+
+    // Runs on the disk thread
+    private void writeFile(String key, Entry entry) {
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.e(TAG, "Cannot create " + dir);
+            return;
+        }
+        String name = fileName(key);
+        File file = new File(dir, name);
+        File tmp = new File(dir, name + ".tmp");
+        byte[] bytes = entry.value.getBytes(StandardCharsets.UTF_8);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(key);
+            out.writeLong(entry.storedAt);
+            out.writeLong(entry.expiresAt);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write cache file for " + key, e);
+            tmp.delete();
+            return;
+        }
+        if (!tmp.renameTo(file)) {
+            Log.e(TAG, "Failed to replace cache file for " + key);
+            tmp.delete();
+            return;
+        }
+
+        synchronized (diskIndex) {
+            Long previous = diskIndex.put(name, file.length());
+            diskSize += file.length() - (previous != null ? previous : 0);
+        }
+        trim();
+    }
+
+    // Runs on the disk thread: delete least recently used files until under the limit
+    private void trim() {
+        while (true) {
+            String eldest;
+            synchronized (diskIndex) {
+                if (diskSize <= DISK_BYTES || diskIndex.isEmpty()) {
+                    return;
+                }
+                Iterator<Map.Entry<String, Long>> it = diskIndex.entrySet().iterator();
+                Map.Entry<String, Long> first = it.next();
+                eldest = first.getKey();
+                diskSize -= first.getValue();
+                it.remove();
+            }
+            new File(dir, eldest).delete();
+        }
+    }
+
+    // Runs on the disk thread: rebuild the index from the files, oldest access first
+    private void loadIndex() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        synchronized (diskIndex) {
+            for (File file : files) {
+                if (file.getName().endsWith(".tmp")) {
+                    file.delete();
+                    continue;
+                }
+                diskIndex.put(file.getName(), file.length());
+                diskSize += file.length();
+            }
+        }
+        trim();
+    }
+}
@@ -0,0 +1,360 @@
+package com.krishield.repositories;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.krishield.models.FarmPlot;
+import com.krishield.models.WeatherModels;
+import com.krishield.services.OpenMeteoService;
+import com.krishield.utils.AppExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Forecasts cached per grid cell of about 11 km (0.1 degree), so nearby
+ * positions and all weather screens share one download.
+ *
+ * A cached forecast is returned as soon as it is read. Callbacks run on a
+ * background thread. If it is older than the fresh window it is refreshed and
+ * the callback is called again with the new data. Requests for a cell that
+ * is already being fetched join that call.
+ */
+public class WeatherRepository {
+    private static final String TAG = "WeatherRepository";
+    private static final String KEY_PREFIX = "weather/";
+
+    private static final double CELL_DEGREES = 0.1;
+    private static final long FRESH_DURATION = 30 * 60 * 1000; // 30 minutes
+    // Older forecasts are not shown at all
+    private static final long MAX_AGE = 48 * 60 * 60 * 1000; // 48 hours
+    // Locations per batch request, keeps the URL a reasonable length
+    private static final int MAX_BATCH = 50;
+
+    private static WeatherRepository instance;
+
+    private final TieredCache cache;
+    private final OpenMeteoService weatherService;
+    private final Gson gson = new Gson();
+
+    private final Map<String, List<WeatherCallback>> inFlight = new HashMap<>();
+
+    /**
+     * onSuccess can be called twice: first with the cached forecast, then
+     * with the refreshed one. onError is only called if nothing was shown.
+     */
+    public interface WeatherCallback {
+        void onSuccess(WeatherModels.WeatherResponse weather);
+
+        void onError(String error);
+    }
+
+    public interface PlotsCallback {
+        /**
+         * Forecast per plot id; plots without any usable forecast are missing
+         */
+        void onSuccess(Map<String, WeatherModels.WeatherResponse> forecasts);
+
+        void onError(String error);
+    }
+
+    private static class CachedWeather {
+        final WeatherModels.WeatherResponse weather;
+        final long fetchedAt;
+
+        CachedWeather(WeatherModels.WeatherResponse weather, long fetchedAt) {
+            this.weather = weather;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    public static synchronized WeatherRepository getInstance(Context context) {
+        if (instance == null) {
+            instance = new WeatherRepository(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private WeatherRepository(Context context) {
+        this.cache = TieredCache.getInstance(context);
+        this.weatherService = OpenMeteoService.getInstance(context);
+    }
+
+    public void getWeather(double latitude, double longitude, boolean forceRefresh, WeatherCallback callback) {
+        long latCell = Math.round(latitude / CELL_DEGREES);
+        long lonCell = Math.round(longitude / CELL_DEGREES);
+        String cell = latCell + "_" + lonCell;
+        // Reading and parsing the cached forecast can hit the disk
+        AppExecutors.getInstance().cpu().execute(
+                () -> resolve(cell, latCell, lonCell, readCache(cell), forceRefresh, callback));
+    }
+
+    private void resolve(String cell, long latCell, long lonCell, CachedWeather cached, boolean forceRefresh,
+            WeatherCallback callback) {
+        long age = cached != null ? System.currentTimeMillis() - cached.fetchedAt : Long.MAX_VALUE;
+
+        boolean shownCached = false;
+        if (cached != null && age < MAX_AGE) {
+            callback.onSuccess(cached.weather);
+            shownCached = true;
+            if (!forceRefresh && age < FRESH_DURATION) {
+                return;
+            }
+        }
+
+        // Stale or missing: revalidate, reporting errors only if nothing was shown.
+        // Fetch for the centre of the cell so every caller in it gets the same forecast.
+        fetch(cell, latCell * CELL_DEGREES, lonCell * CELL_DEGREES,
+                shownCached ? new RefreshOnly(callback) : callback);
+    }
+
+    /**
+     * Download the forecast for the position's cell without reading the cache,
+     * for background sync. The callback is called exactly once.
+     */
+    public void refresh(double latitude, double longitude, WeatherCallback callback) {
+        long latCell = Math.round(latitude / CELL_DEGREES);
+        long lonCell = Math.round(longitude / CELL_DEGREES);
+        fetch(latCell + "_" + lonCell, latCell * CELL_DEGREES, lonCell * CELL_DEGREES, callback);
+    }
+
+    private void fetch(String cell, double latitude, double longitude, WeatherCallback callback) {
+        synchronized (inFlight) {
+            List<WeatherCallback> waiting = inFlight.get(cell);
+            if (waiting != null) {
+                waiting.add(callback);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(callback);
+            inFlight.put(cell, waiting);
+        }
+
+        weatherService.getWeather(latitude, longitude, new OpenMeteoService.WeatherCallback() {
+            @Override
+            public void onSuccess(WeatherModels.WeatherResponse weather) {
+                writeCache(cell, weather);
+                for (WeatherCallback waiting : finish(cell)) {
+                    waiting.onSuccess(weather);
+                }
+            }
+
+            @Override
+            public void onError(String error) {
+                for (WeatherCallback waiting : finish(cell)) {
+                    waiting.onError(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forecasts for all plots. Plots whose cell has a fresh cached forecast
+     * are answered from the cache; the rest are fetched together in batch
+     * requests (one call for up to MAX_BATCH cells) and cached per cell.
+     * Cells already being fetched by another request join that call.
+     * The callback runs once, after all fetches have finished.
+     */
+    public void getWeatherForPlots(List<FarmPlot> plots, boolean forceRefresh, PlotsCallback callback) {
+        // Cache reads may hit the disk
+        AppExecutors.getInstance().cpu().execute(() -> loadPlots(plots, forceRefresh, callback));
+    }
+
+    private void loadPlots(List<FarmPlot> plots, boolean forceRefresh, PlotsCallback callback) {
+        PlotsRequest request = new PlotsRequest(callback);
+        long now = System.currentTimeMillis();
+
+        for (FarmPlot plot : plots) {
+            long latCell = Math.round(plot.latitude / CELL_DEGREES);
+            long lonCell = Math.round(plot.longitude / CELL_DEGREES);
+            String cell = latCell + "_" + lonCell;
+
+            CachedWeather cached = readCache(cell);
+            if (!forceRefresh && cached != null && now - cached.fetchedAt < FRESH_DURATION) {
+                request.result.put(plot.id, cached.weather);
+                continue;
+            }
+            List<FarmPlot> inCell = request.plotsByCell.get(cell);
+            if (inCell == null) {
+                inCell = new ArrayList<>();
+                request.plotsByCell.put(cell, inCell);
+            }
+            inCell.add(plot);
+        }
+
+        // Cells another request is already fetching are joined; the rest are
+        // registered as in flight and fetched here, so later callers join us
+        List<long[]> missingCells = new ArrayList<>();
+        synchronized (inFlight) {
+            for (String cell : request.plotsByCell.keySet()) {
+                List<WeatherCallback> waiting = inFlight.get(cell);
+                if (waiting != null) {
+                    request.pending.incrementAndGet();
+                    waiting.add(new WeatherCallback() {
+                        @Override
+                        public void onSuccess(WeatherModels.WeatherResponse weather) {
+                            request.put(cell, weather);
+                            request.done();
+                        }
+
+                        @Override
+                        public void onError(String error) {
+                            request.fallBack(cell, error);
+                            request.done();
+                        }
+                    });
+                } else {
+                    inFlight.put(cell, new ArrayList<>());
+                    String[] latLon = cell.split("_");
+                    missingCells.add(new long[] { Long.parseLong(latLon[0]), Long.parseLong(latLon[1]) });
+                }
+            }
+        }
+
+        for (int start = 0; start < missingCells.size(); start += MAX_BATCH) {
+            List<long[]> batch = missingCells.subList(start, Math.min(start + MAX_BATCH, missingCells.size()));
+            double[] latitudes = new double[batch.size()];
+            double[] longitudes = new double[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                latitudes[i] = batch.get(i)[0] * CELL_DEGREES;
+                longitudes[i] = batch.get(i)[1] * CELL_DEGREES;
+            }
+
+            request.pending.incrementAndGet();
+            weatherService.getWeatherBatch(latitudes, longitudes, new OpenMeteoService.BatchWeatherCallback() {
+                @Override
+                public void onSuccess(List<WeatherModels.WeatherResponse> forecasts) {
+                    if (forecasts == null || forecasts.size() != batch.size()) {
+                        onError("Unexpected number of forecasts");
+                        return;
+                    }
+                    for (int i = 0; i < batch.size(); i++) {
+                        String cell = batch.get(i)[0] + "_" + batch.get(i)[1];
+                        WeatherModels.WeatherResponse weather = forecasts.get(i);
+                        writeCache(cell, weather);
+                        request.put(cell, weather);
+                        for (WeatherCallback waiting : finish(cell)) {
+                            waiting.onSuccess(weather);
+                        }
+                    }
+                    request.done();
+                }
+
+                @Override
+                public void onError(String error) {
+                    for (long[] latLon : batch) {
+                        String cell = latLon[0] + "_" + latLon[1];
+                        request.fallBack(cell, error);
+                        for (WeatherCallback waiting : finish(cell)) {
+                            waiting.onError(error);
+                        }
+                    }
+                    request.done();
+                }
+            });
+        }
+
+        // Drop the count held while the fetches were being started
+        request.done();
+    }
+
+    // Collects the forecasts of one getWeatherForPlots call. pending starts at
+    // one so the callback cannot run before every fetch has been started.
+    private class PlotsRequest {
+        final Map<String, WeatherModels.WeatherResponse> result = new HashMap<>();
+        final Map<String, List<FarmPlot>> plotsByCell = new LinkedHashMap<>();
+        final AtomicInteger pending = new AtomicInteger(1);
+        final PlotsCallback callback;
+        String lastError;
+
+        PlotsRequest(PlotsCallback callback) {
+            this.callback = callback;
+        }
+
+        synchronized void put(String cell, WeatherModels.WeatherResponse weather) {
+            for (FarmPlot plot : plotsByCell.get(cell)) {
+                result.put(plot.id, weather);
+            }
+        }
+
+        // Fall back to any cached forecast that is not too old
+        void fallBack(String cell, String error) {
+            CachedWeather cached = readCache(cell);
+            synchronized (this) {
+                lastError = error;
+                if (cached != null && System.currentTimeMillis() - cached.fetchedAt < MAX_AGE) {
+                    for (FarmPlot plot : plotsByCell.get(cell)) {
+                        result.put(plot.id, cached.weather);
+                    }
+                }
+            }
+        }
+
+        void done() {
+            if (pending.decrementAndGet() > 0) {
+                return;
+            }
+            synchronized (this) {
+                if (result.isEmpty() && lastError != null) {
+                    callback.onError(lastError);
+                } else {
+                    callback.onSuccess(result);
+                }
+            }
+        }
+    }
+
+    private List<WeatherCallback> finish(String cell) {
+        synchronized (inFlight) {
+            List<WeatherCallback> waiting = inFlight.remove(cell);
+            return waiting != null ? waiting : new ArrayList<>();
+        }
+    }
+
+    // May read from disk
+    private CachedWeather readCache(String cell) {
+        return parse(cache.get(KEY_PREFIX + cell));
+    }
+
+    private CachedWeather parse(TieredCache.Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        try {
+            WeatherModels.WeatherResponse weather = gson.fromJson(entry.value, WeatherModels.WeatherResponse.class);
+            return weather != null ? new CachedWeather(weather, entry.storedAt) : null;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read cached weather", e);
+            return null;
+        }
+    }
+
+    private void writeCache(String cell, WeatherModels.WeatherResponse weather) {
+        cache.put(KEY_PREFIX + cell, gson.toJson(weather), MAX_AGE);
+    }
+
+    // Background refresh after a cached forecast was shown: failures are
+    // only logged, the screen keeps the cached data
+    private static class RefreshOnly implements WeatherCallback {
+        private final WeatherCallback delegate;
+
+        RefreshOnly(WeatherCallback delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void onSuccess(WeatherModels.WeatherResponse weather) {
+            delegate.onSuccess(weather);
+        }
+
+        @Override
+        public void onError(String error) {
+            Log.w(TAG, "Weather refresh failed, keeping cached data: " + error);
+        }
+    }
+}
@@ -0,0 +1,663 @@
+package com.krishield.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.krishield.BuildConfig;
+import com.krishield.models.CommunityMessage;
+import com.krishield.repositories.CommunityMessageLog;
+import com.krishield.repositories.CommunityRepository;
+import com.krishield.utils.AppExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * Keeps open community chats in sync with the server over one WebSocket.
+ *
+ * - Each community has a cursor, the seq of the last server message stored
+ *   locally. Subscribing sends it, so after a reconnect the server only
+ *   sends what came later.
+ * - Incoming messages are appended to the CommunityMessageLog before the
+ *   cursor moves, then handed to the screen. Credit for more frames is
+ *   granted only once a frame is stored, so a slow disk slows the server
+ *   down instead of piling up frames in memory.
+ * - Outgoing messages are collected for BATCH_DELAY_MS and sent as one
+ *   frame per community. They stay queued until the server acknowledges
+ *   them and are sent again after a reconnect; the server drops repeats.
+ * - Membership counters from the CommunityRepository are sent while they
+ *   have pending ops, and all of them while the community list is open.
+ *   The server merges them and pushes the result to every client.
+ *
+ * The socket is opened while a chat or the community list is on screen or
+ * anything is waiting to be sent, and closed LINGER_MS after none is the
+ * case. Without SYNC_SERVER_URL
+ * chats stay on this device. The wire format is in the syncserver module.
+ */
+public class CommunitySyncClient {
+    private static final String TAG = "CommunitySyncClient";
+    private static final String PREF_NAME = "KrishieldCommunitySync";
+    private static final String KEY_CURSOR_PREFIX = "cursor_";
+
+    private static final long BATCH_DELAY_MS = 150;
+    private static final int MAX_BATCH = 50;
+    // Delta frames the server may send before the client has stored them
+    private static final int CREDIT_WINDOW = 8;
+    // Outgoing frames wait while more than this is queued on the socket
+    private static final long MAX_QUEUED_BYTES = 64 * 1024;
+    private static final long INITIAL_BACKOFF_MS = 1000;
+    private static final long MAX_BACKOFF_MS = 60 * 1000;
+    private static final long LINGER_MS = 30 * 1000;
+    private static final long PING_SECONDS = 30;
+
+    private static CommunitySyncClient instance;
+
+    private final String url;
+    private final SharedPreferences prefs;
+    private final OkHttpClient client;
+    private final CommunityMessageLog messageLog;
+    private final CommunityRepository communityRepository;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Gson gson = new Gson();
+    private final Random random = new Random();
+    private final String deviceId;
+
+    private final Map<String, List<Listener>> listeners = new HashMap<>();
+    // Community id -> seq of the last message received
+    private final Map<String, Long> cursors = new HashMap<>();
+    // Received batches are stored one after another. Once one fails, the
+    // ones behind it fail too, until the next connection starts a new chain.
+    private ListenableFuture<?> storeChain = Futures.immediateFuture(null);
+    private boolean storeFailed;
+    // Client id -> message waiting for the server's ack
+    private final LinkedHashMap<String, Outgoing> outbox = new LinkedHashMap<>();
+    // Called on the main thread when merged member counts arrive
+    private final List<Runnable> membershipListeners = new ArrayList<>();
+    private boolean membershipPending;
+
+    private WebSocket socket;
+    private boolean connected;
+    private int attempts;
+    private boolean flushScheduled;
+
+    private final Runnable flushTask = this::flush;
+    private final Runnable connectTask = this::connect;
+    private final Runnable lingerTask = this::closeIfIdle;
+
+    /**
+     * Called on the main thread with messages from others, already stored.
+     * endOffset is the log's end offset right after them.
+     */
+    public interface Listener {
+        void onMessages(String communityId, List<CommunityMessage> messages, long endOffset);
+    }
+
+    private static class Outgoing {
+        final String communityId;
+        final WireMessage message;
+        boolean sent;
+
+        Outgoing(String communityId, WireMessage message) {
+            this.communityId = communityId;
+            this.message = message;
+        }
+    }
+
+    // Same shape as the server's Frame; only the fields of its type are set
+    private static class Frame {
+        String type;
+        String communityId;
+        Long after;
+        Integer count;
+        List<WireMessage> messages;
+        List<String> clientIds;
+        String text;
+        // Replica id -> {joins, leaves}
+        Map<String, long[]> counter;
+        // Batched member counters: community id -> counter
+        Map<String, Map<String, long[]>> counters;
+        Long opId;
+
+        Frame(String type) {
+            this.type = type;
+        }
+    }
+
+    private static class WireMessage {
+        long seq;
+        String clientId;
+        String senderId;
+        String senderName;
+        String text;
+        long timestamp;
+    }
+
+    public static synchronized CommunitySyncClient getInstance(Context context) {
+        if (instance == null) {
+            instance = new CommunitySyncClient(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private CommunitySyncClient(Context context) {
+        this.url = BuildConfig.SYNC_SERVER_URL;
+        this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        this.messageLog = CommunityMessageLog.getInstance(context);
+        this.communityRepository = CommunityRepository.getInstance(context);
+        // Shares the app's connection pool and threads, but not its response
+        // cache rules. The socket reads forever; pings notice a dead connection.
+        OkHttpClient.Builder builder = HttpClientProvider.get(context).newBuilder()
+                .cache(null)
+                .readTimeout(0, TimeUnit.MILLISECONDS)
+                .callTimeout(0, TimeUnit.MILLISECONDS)
+                .pingInterval(PING_SECONDS, TimeUnit.SECONDS);
+        builder.interceptors().clear();
+        builder.networkInterceptors().clear();
+        this.client = builder.build();
+
+        this.deviceId = CommunityRepository.deviceId(context);
+    }
+
+    public boolean isEnabled() {
+        return url != null && !url.isEmpty();
+    }
+
+    /**
+     * Receive the community's new messages while the listener is registered
+     */
+    public synchronized void subscribe(String communityId, Listener listener) {
+        if (!isEnabled()) {
+            return;
+        }
+        List<Listener> list = listeners.get(communityId);
+        if (list == null) {
+            list = new ArrayList<>();
+            listeners.put(communityId, list);
+            if (connected) {
+                sendSubscribe(socket, communityId);
+            }
+        }
+        list.add(listener);
+        handler.removeCallbacks(lingerTask);
+        ensureConnected();
+    }
+
+    public synchronized void unsubscribe(String communityId, Listener listener) {
+        List<Listener> list = listeners.get(communityId);
+        if (list == null || !list.remove(listener) || !list.isEmpty()) {
+            return;
+        }
+        listeners.remove(communityId);
+        if (connected) {
+            Frame frame = new Frame("unsubscribe");
+            frame.communityId = communityId;
+            send(socket, frame);
+        }
+        scheduleLinger();
+    }
+
+    /**
+     * Send a message written on this device. It is expected to be in the
+     * local log already.
+     */
+    public synchronized void publish(String communityId, CommunityMessage message) {
+        if (!isEnabled()) {
+            return;
+        }
+        WireMessage wire = new WireMessage();
+        wire.clientId = UUID.randomUUID().toString();
+        wire.senderId = deviceId;
+        // "You" is how the sender sees it; others get a name for this device
+        wire.senderName = senderName(deviceId);
+        wire.text = message.getText();
+        wire.timestamp = message.getTimestamp();
+        outbox.put(wire.clientId, new Outgoing(communityId, wire));
+        handler.removeCallbacks(lingerTask);
+        ensureConnected();
+        scheduleFlush(BATCH_DELAY_MS);
+    }
+
+    /**
+     * Keep member counts in sync while the listener is registered
+     */
+    public synchronized void addMembershipListener(Runnable listener) {
+        if (!isEnabled()) {
+            return;
+        }
+        membershipListeners.add(listener);
+        handler.removeCallbacks(lingerTask);
+        ensureConnected();
+        if (connected) {
+            sendMembership(socket, true);
+        }
+    }
+
+    public synchronized void removeMembershipListener(Runnable listener) {
+        if (membershipListeners.remove(listener)) {
+            scheduleLinger();
+        }
+    }
+
+    /**
+     * Send membership changes made on this device. Call after a join or leave.
+     */
+    public synchronized void syncMembership() {
+        if (!isEnabled()) {
+            return;
+        }
+        membershipPending = true;
+        handler.removeCallbacks(lingerTask);
+        ensureConnected();
+        if (connected) {
+            sendMembership(socket, false);
+        }
+    }
+
+    private void sendMembership(WebSocket webSocket, boolean all) {
+        Futures.addCallback(communityRepository.loadCounterStates(all),
+                new FutureCallback<List<CommunityRepository.CounterState>>() {
+                    @Override
+                    public void onSuccess(List<CommunityRepository.CounterState> states) {
+                        synchronized (CommunitySyncClient.this) {
+                            if (webSocket != socket) {
+                                return; // sent again when the next socket opens
+                            }
+                            // Counters with pending ops go one by one so each is
+                            // acknowledged; the rest are only a refresh, sent in
+                            // one frame that is answered once
+                            Map<String, Map<String, long[]>> refresh = new HashMap<>();
+                            for (CommunityRepository.CounterState state : states) {
+                                if (state.opId == 0) {
+                                    refresh.put(state.communityId, state.counter);
+                                    continue;
+                                }
+                                Frame frame = new Frame("members");
+                                frame.communityId = state.communityId;
+                                frame.counter = state.counter;
+                                frame.opId = state.opId;
+                                send(webSocket, frame);
+                            }
+                            if (!refresh.isEmpty()) {
+                                Frame frame = new Frame("members");
+                                frame.counters = refresh;
+                                send(webSocket, frame);
+                            }
+                            if (!all && states.isEmpty()) {
+                                membershipPending = false;
+                                if (!isNeeded()) {
+                                    scheduleLinger();
+                                }
+                            }
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        Log.e(TAG, "Failed to read member counters", t);
+                    }
+                }, MoreExecutors.directExecutor());
+    }
+
+    private void onMembers(Frame frame) {
+        ListenableFuture<CommunityRepository.MergeResult> merged;
+        if (frame.counters != null) {
+            merged = communityRepository.mergeCounters(frame.counters);
+        } else {
+            long opId = frame.opId != null ? frame.opId : 0;
+            merged = communityRepository.mergeCounter(frame.communityId, frame.counter, opId);
+        }
+        Futures.addCallback(merged,
+                new FutureCallback<CommunityRepository.MergeResult>() {
+                    @Override
+                    public void onSuccess(CommunityRepository.MergeResult result) {
+                        List<Runnable> current;
+                        synchronized (CommunitySyncClient.this) {
+                            membershipPending = result.pending;
+                            if (!isNeeded()) {
+                                scheduleLinger();
+                            }
+                            if (!result.changed) {
+                                return;
+                            }
+                            current = new ArrayList<>(membershipListeners);
+                        }
+                        AppExecutors.getInstance().mainThread().execute(() -> {
+                            for (Runnable listener : current) {
+                                listener.run();
+                            }
+                        });
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        Log.e(TAG, "Failed to merge member counters", t);
+                    }
+                }, MoreExecutors.directExecutor());
+    }
+
+    // Whether anything needs the socket open
+    private boolean isNeeded() {
+        return !listeners.isEmpty() || !outbox.isEmpty() || !membershipListeners.isEmpty() || membershipPending;
+    }
+
+    private void ensureConnected() {
+        if (socket == null) {
+            handler.removeCallbacks(connectTask);
+            connect();
+        }
+    }
+
+    private synchronized void connect() {
+        if (socket != null || !isNeeded()) {
+            return;
+        }
+        if (storeFailed) {
+            storeFailed = false;
+            storeChain = Futures.immediateFuture(null);
+        }
+        socket = client.newWebSocket(new Request.Builder().url(url).build(), new SocketListener());
+    }
+
+    private synchronized void scheduleFlush(long delayMs) {
+        if (!flushScheduled) {
+            flushScheduled = true;
+            handler.postDelayed(flushTask, delayMs);
+        }
+    }
+
+    // Send queued messages, up to MAX_BATCH per frame, unless the socket is backed up
+    private synchronized void flush() {
+        flushScheduled = false;
+        if (!connected) {
+            return;
+        }
+        if (socket.queueSize() > MAX_QUEUED_BYTES) {
+            scheduleFlush(BATCH_DELAY_MS);
+            return;
+        }
+        Map<String, List<WireMessage>> batches = new LinkedHashMap<>();
+        for (Outgoing outgoing : outbox.values()) {
+            if (outgoing.sent) {
+                continue;
+            }
+            List<WireMessage> batch = batches.get(outgoing.communityId);
+            if (batch == null) {
+                batch = new ArrayList<>();
+                batches.put(outgoing.communityId, batch);
+            }
+            if (batch.size() < MAX_BATCH) {
+                batch.add(outgoing.message);
+                outgoing.sent = true;
+            }
+        }
+        for (Map.Entry<String, List<WireMessage>> batch : batches.entrySet()) {
+            Frame frame = new Frame("publish");
+            frame.communityId = batch.getKey();
+            frame.messages = batch.getValue();
+            send(socket, frame);
+        }
+        for (Outgoing outgoing : outbox.values()) {
+            if (!outgoing.sent) {
+                scheduleFlush(BATCH_DELAY_MS);
+                break;
+            }
+        }
+    }
+
+    private void scheduleLinger() {
+        handler.removeCallbacks(lingerTask);
+        handler.postDelayed(lingerTask, LINGER_MS);
+    }
+
+    private synchronized void closeIfIdle() {
+        if (socket != null && !isNeeded()) {
+            socket.close(1000, null);
+            socket = null;
+            connected = false;
+        }
+    }
+
+    private long cursor(String communityId) {
+        Long cursor = cursors.get(communityId);
+        if (cursor == null) {
+            cursor = prefs.getLong(KEY_CURSOR_PREFIX + communityId, 0);
+            cursors.put(communityId, cursor);
+        }
+        return cursor;
+    }
+
+    private void sendSubscribe(WebSocket webSocket, String communityId) {
+        Frame frame = new Frame("subscribe");
+        frame.communityId = communityId;
+        frame.after = cursor(communityId);
+        send(webSocket, frame);
+    }
+
+    private void send(WebSocket webSocket, Frame frame) {
+        webSocket.send(gson.toJson(frame));
+    }
+
+    private synchronized void onOpen(WebSocket webSocket) {
+        if (webSocket != socket) {
+            return;
+        }
+        connected = true;
+        attempts = 0;
+        for (String communityId : listeners.keySet()) {
+            sendSubscribe(webSocket, communityId);
+        }
+        Frame credit = new Frame("credit");
+        credit.count = CREDIT_WINDOW;
+        send(webSocket, credit);
+
+        // Unacknowledged messages may not have arrived
+        for (Outgoing outgoing : outbox.values()) {
+            outgoing.sent = false;
+        }
+        if (!outbox.isEmpty()) {
+            scheduleFlush(0);
+        }
+        // Ops queued while offline go out now
+        sendMembership(webSocket, !membershipListeners.isEmpty());
+    }
+
+    private synchronized void onDisconnected(WebSocket webSocket, String reason) {
+        if (webSocket != socket) {
+            return;
+        }
+        socket = null;
+        connected = false;
+        if (!isNeeded()) {
+            return;
+        }
+        // Exponential backoff with jitter, so phones do not reconnect in step
+        long delay = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << Math.min(attempts, 6));
+        delay = delay / 2 + (long) (random.nextDouble() * delay / 2);
+        attempts++;
+        Log.w(TAG, "Disconnected (" + reason + "), retrying in " + delay + " ms");
+        handler.removeCallbacks(connectTask);
+        handler.postDelayed(connectTask, delay);
+    }
+
+    private void onFrame(WebSocket webSocket, Frame frame) {
+        if ("delta".equals(frame.type) && frame.communityId != null && frame.messages != null) {
+            onDelta(webSocket, frame);
+        } else if ("ack".equals(frame.type) && frame.clientIds != null) {
+            synchronized (this) {
+                for (String clientId : frame.clientIds) {
+                    outbox.remove(clientId);
+                }
+                if (!isNeeded()) {
+                    scheduleLinger();
+                }
+            }
+        } else if ("members".equals(frame.type)
+                && (frame.counters != null || (frame.communityId != null && frame.counter != null))) {
+            onMembers(frame);
+        } else if ("error".equals(frame.type)) {
+            Log.w(TAG, "Server error: " + frame.text);
+        }
+    }
+
+    // Runs on the socket's reader thread, one frame at a time
+    private void onDelta(WebSocket webSocket, Frame frame) {
+        String communityId = frame.communityId;
+        List<CommunityMessage> received = new ArrayList<>();
+        long last;
+        synchronized (this) {
+            last = cursor(communityId);
+            for (WireMessage wire : frame.messages) {
+                if (wire.seq <= last) {
+                    continue; // already stored
+                }
+                last = wire.seq;
+                // Our own messages were stored when they were written
+                if (!deviceId.equals(wire.senderId)) {
+                    received.add(new CommunityMessage(displayName(wire), wire.text, wire.timestamp, false));
+                }
+            }
+            cursors.put(communityId, last);
+        }
+
+        long cursor = last;
+        ListenableFuture<Long> stored;
+        synchronized (this) {
+            stored = Futures.transformAsync(storeChain, ignored -> messageLog.appendAll(communityId, received),
+                    MoreExecutors.directExecutor());
+            storeChain = stored;
+        }
+        Futures.addCallback(stored, new FutureCallback<Long>() {
+            @Override
+            public void onSuccess(Long endOffset) {
+                // Stored, so save the cursor even if the socket was replaced
+                // meanwhile; otherwise these would be delivered and stored again
+                prefs.edit().putLong(KEY_CURSOR_PREFIX + communityId, cursor).apply();
+                boolean current;
+                synchronized (CommunitySyncClient.this) {
+                    current = webSocket == socket;
+                }
+                if (current) {
+                    grantCredit(webSocket);
+                }
+                if (!received.isEmpty()) {
+                    AppExecutors.getInstance().mainThread().execute(() -> dispatch(communityId, received, endOffset));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                // Not stored, nor anything received after it: drop the
+                // connection and start over from the saved cursors
+                WebSocket current;
+                synchronized (CommunitySyncClient.this) {
+                    if (storeFailed) {
+                        return;
+                    }
+                    Log.e(TAG, "Failed to store messages for " + communityId, t);
+                    storeFailed = true;
+                    cursors.clear();
+                    current = socket;
+                    if (current != null) {
+                        onDisconnected(current, "store failed");
+                    }
+                }
+                if (current != null) {
+                    current.cancel();
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    /**
+     * The name other farmers see for a device. There is no profile name,
+     * so it is derived from the device id.
+     */
+    static String senderName(String senderId) {
+        String id = senderId == null ? "" : senderId.replace("-", "");
+        return "Farmer " + id.substring(0, Math.min(4, id.length())).toUpperCase(Locale.ROOT);
+    }
+
+    // Earlier builds published the literal "You"
+    private static String displayName(WireMessage wire) {
+        if (wire.senderName == null || wire.senderName.isEmpty() || "You".equals(wire.senderName)) {
+            return senderName(wire.senderId);
+        }
+        return wire.senderName;
+    }
+
+    private void grantCredit(WebSocket webSocket) {
+        Frame credit = new Frame("credit");
+        credit.count = 1;
+        send(webSocket, credit);
+    }
+
+    private void dispatch(String communityId, List<CommunityMessage> messages, long endOffset) {
+        List<Listener> current;
+        synchronized (this) {
+            List<Listener> list = listeners.get(communityId);
+            if (list == null) {
+                return;
+            }
+            current = new ArrayList<>(list);
+        }
+        for (Listener listener : current) {
+            listener.onMessages(communityId, messages, endOffset);
+        }
+    }
+
+    private class SocketListener extends WebSocketListener {
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            CommunitySyncClient.this.onOpen(webSocket);
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            try {
+                Frame frame = gson.fromJson(text, Frame.class);
+                if (frame != null) {
+                    onFrame(webSocket, frame);
+                }
+            } catch (JsonParseException e) {
+                Log.w(TAG, "Ignoring malformed frame", e);
+            }
+        }
+
+        @Override
+        public void onClosing(WebSocket webSocket, int code, String reason) {
+            webSocket.close(1000, null);
+        }
+
+        @Override
+        public void onClosed(WebSocket webSocket, int code, String reason) {
+            onDisconnected(webSocket, reason);
+        }
+
+        @Override
+        public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+            onDisconnected(webSocket, String.valueOf(t.getMessage()));
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.krishield.services;
+
+import android.util.Log;
+
+import com.google.ai.client.generativeai.java.ChatFutures;
+import com.google.ai.client.generativeai.java.GenerativeModelFutures;
+import com.google.ai.client.generativeai.type.Content;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/**
+ * Multi-turn conversation with Gemini using typed Content turns.
+ *
+ * History is kept here turn by turn and each message is sent through
+ * startChat with only the newest turns that fit the token budget, instead of
+ * re-serialising the conversation into the prompt text.
+ */
+public class GeminiChatSession {
+    private static final String TAG = "GeminiChatSession";
+
+    private static final String ROLE_USER = "user";
+    private static final String ROLE_MODEL = "model";
+
+    private final GeminiService service;
+    private final GenerativeModelFutures model;
+    private final int tokenBudget;
+    private final List<Turn> turns = new ArrayList<>();
+
+    GeminiChatSession(GeminiService service, GenerativeModelFutures model, int tokenBudget) {
+        this.service = service;
+        this.model = model;
+        this.tokenBudget = tokenBudget;
+    }
+
+    /**
+     * Add an earlier turn (e.g. restored from storage) without sending it
+     */
+    public synchronized void addHistory(String text, boolean fromUser) {
+        if (text == null || text.isEmpty()) {
+            return;
+        }
+        turns.add(new Turn(fromUser ? ROLE_USER : ROLE_MODEL, text));
+    }
+
+    /**
+     * True before the first turn, when a reply depends only on the message
+     */
+    public synchronized boolean isEmpty() {
+        return turns.isEmpty();
+    }
+
+    /**
+     * Forget all turns (new chat)
+     */
+    public synchronized void clear() {
+        turns.clear();
+    }
+
+    /**
+     * Send a user message with the conversation so far, streaming the reply.
+     * Both turns are added to the history once the reply completes; a
+     * cancelled reply leaves the history unchanged.
+     */
+    public ListenableFuture<?> sendMessageStream(String message, Executor executor,
+            GeminiService.StreamCallback callback) {
+        try {
+            Turn userTurn = new Turn(ROLE_USER, message);
+            List<Content> window = new ArrayList<>();
+            // Every call resends the window, so it counts toward the estimate
+            int estimatedTokens = userTurn.tokens + GeminiService.RESPONSE_TOKENS;
+            synchronized (this) {
+                for (int i = windowStart(userTurn.tokens); i < turns.size(); i++) {
+                    window.add(turns.get(i).content);
+                    estimatedTokens += turns.get(i).tokens;
+                }
+            }
+
+            return service.stream(() -> {
+                ChatFutures chat = model.startChat(window);
+                return chat.sendMessageStream(userTurn.content);
+            }, estimatedTokens, executor, new GeminiService.StreamCallback() {
+                @Override
+                public void onPartial(String textSoFar) {
+                    callback.onPartial(textSoFar);
+                }
+
+                @Override
+                public void onComplete(String fullText) {
+                    synchronized (GeminiChatSession.this) {
+                        turns.add(userTurn);
+                        turns.add(new Turn(ROLE_MODEL, fullText));
+                    }
+                    callback.onComplete(fullText);
+                }
+
+                @Override
+                public void onError(String error) {
+                    callback.onError(error);
+                }
+            });
+        } catch (Exception e) {
+            Log.e(TAG, "Error in sendMessageStream", e);
+            callback.onError(e.getMessage());
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * Index of the oldest turn that still fits in the budget left after the
+     * outgoing message. The window always starts with a user turn.
+     */
+    private int windowStart(int reservedTokens) {
+        int used = reservedTokens;
+        int start = turns.size();
+        while (start > 0 && used + turns.get(start - 1).tokens <= tokenBudget) {
+            start--;
+            used += turns.get(start).tokens;
+        }
+        while (start < turns.size() && !ROLE_USER.equals(turns.get(start).role)) {
+            start++;
+        }
+        return start;
+    }
+
+    /**
+     * Rough token estimate without a countTokens round trip. Latin text is about
+     * four characters per token; Devanagari and other scripts are much denser.
+     */
+    static int estimateTokens(String text) {
+        int ascii = 0;
+        int other = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) < 128) {
+                ascii++;
+            } else {
+                other++;
+            }
+        }
+        return ascii / 4 + other / 2 + 4;
+    }
+
+    private static class Turn {
+        final String role;
+        final Content content;
+        final int tokens;
+
+        Turn(String role, String text) {
+            this.role = role;
+            Content.Builder builder = new Content.Builder();
+            builder.setRole(role);
+            builder.addText(text);
+            this.content = builder.build();
+            this.tokens = estimateTokens(text);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.krishield.services;
+
+import android.util.Log;
+
+import com.google.ai.client.generativeai.type.QuotaExceededException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Central scheduler in front of the Gemini API for one API key.
+ *
+ * Requests wait in a priority queue and are released by two token buckets
+ * (requests per minute and tokens per minute), so bursts are queued instead
+ * of failing. On a 429 the call is re-queued with exponential backoff plus
+ * jitter (or the server's retry hint), all dispatching pauses for that time
+ * and the request rate is halved, then recovers one step per success.
+ */
+public class GeminiRateLimiter {
+    private static final String TAG = "GeminiRateLimiter";
+
+    private static final int MAX_RETRIES = 4;
+    private static final long BASE_BACKOFF_MS = 2000;
+    private static final long MAX_BACKOFF_MS = 60000;
+
+    // A bare "429" may be a length, id or port, so it only counts as a
+    // status: "HTTP 429", "code": 429 or "429 Too Many Requests"
+    private static final Pattern RATE_LIMIT = Pattern.compile(
+            "(?i)\\bresource_exhausted\\b|\\bhttp[ /]?(?:1\\.1 |2 )?429\\b|\"code\"\\s*:\\s*429\\b"
+                    + "|\\b429 too many requests\\b|\\bquota\\b|\\brate[ -]limit");
+
+    private static final Pattern RETRY_HINT = Pattern.compile(
+            "(?i)retry\\w*[^0-9]{0,20}(\\d+(?:\\.\\d+)?)\\s*s");
+
+    /**
+     * Lower ordinal is dispatched first
+     */
+    public enum Priority {
+        INTERACTIVE, // user is waiting on screen (chat, button taps)
+        NORMAL, // screen content loading
+        BACKGROUND // dashboard refresh, prefetch, sync
+    }
+
+    private final int maxRequestsPerMinute;
+    private final int tokensPerMinute;
+    private final ScheduledExecutorService scheduler;
+    private final Random random = new Random();
+
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+    private long sequence;
+
+    // Token buckets, refilled continuously
+    private double requestsPerMinute;
+    private double requestBucket;
+    private double tokenBucket;
+    private long lastRefill;
+
+    private long pausedUntil;
+    private ScheduledFuture<?> pendingDrain;
+
+    public GeminiRateLimiter(int requestsPerMinute, int tokensPerMinute) {
+        this.maxRequestsPerMinute = requestsPerMinute;
+        this.requestsPerMinute = requestsPerMinute;
+        this.tokensPerMinute = tokensPerMinute;
+        this.requestBucket = burstSize();
+        this.tokenBucket = tokensPerMinute;
+        this.lastRefill = System.currentTimeMillis();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "gemini-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Queue a call. The call is started once the buckets allow it and is
+     * retried on rate-limit errors. Cancelling the returned future removes a
+     * queued call or cancels a running one.
+     */
+    public <T> ListenableFuture<T> submit(Priority priority, int estimatedTokens,
+            Callable<ListenableFuture<T>> call) {
+        Task<T> task;
+        synchronized (this) {
+            task = new Task<>(priority, Math.min(estimatedTokens, tokensPerMinute), call, sequence++);
+            queue.add(task);
+        }
+        scheduler.execute(this::drain);
+        return task.result;
+    }
+
+    private void drain() {
+        while (true) {
+            Task<?> task;
+            synchronized (this) {
+                Task<?> head = queue.peek();
+                while (head != null && head.result.isCancelled()) {
+                    queue.poll();
+                    head = queue.peek();
+                }
+                if (head == null) {
+                    return;
+                }
+
+                long now = System.currentTimeMillis();
+                refill(now);
+
+                long waitMs = 0;
+                if (now < pausedUntil) {
+                    waitMs = pausedUntil - now;
+                } else if (requestBucket < 1) {
+                    waitMs = (long) Math.ceil((1 - requestBucket) * 60000 / requestsPerMinute);
+                } else if (tokenBucket < head.tokens) {
+                    waitMs = (long) Math.ceil((head.tokens - tokenBucket) * 60000 / tokensPerMinute);
+                }
+
+                if (waitMs > 0) {
+                    scheduleDrain(waitMs);
+                    return;
+                }
+
+                task = queue.poll();
+                requestBucket -= 1;
+                tokenBucket -= task.tokens;
+            }
+            start(task);
+        }
+    }
+
+    private <T> void start(Task<T> task) {
+        ListenableFuture<T> call;
+        try {
+            call = task.call.call();
+        } catch (Exception e) {
+            task.result.setException(e);
+            return;
+        }
+
+        // Cancelling the caller's future cancels the underlying request
+        task.result.addListener(() -> {
+            if (task.result.isCancelled()) {
+                call.cancel(true);
+            }
+        }, MoreExecutors.directExecutor());
+
+        Futures.addCallback(call, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                onCallSucceeded();
+                task.result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (task.result.isCancelled()) {
+                    return;
+                }
+                if (isRateLimitError(t) && task.attempt < MAX_RETRIES) {
+                    retryLater(task, t);
+                } else {
+                    task.result.setException(t);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+    }
+
+    private synchronized void onCallSucceeded() {
+        // Additive recovery towards the configured rate
+        requestsPerMinute = Math.min(maxRequestsPerMinute, requestsPerMinute + 1);
+    }
+
+    private void retryLater(Task<?> task, Throwable error) {
+        long backoff = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << task.attempt);
+        long hint = retryHintMillis(error);
+        long delay = Math.max(backoff, hint) + random.nextInt(1000);
+        task.attempt++;
+
+        synchronized (this) {
+            // Multiplicative decrease: the key is over quota, slow everyone down
+            requestsPerMinute = Math.max(1, requestsPerMinute / 2);
+            requestBucket = Math.min(requestBucket, 0);
+            pausedUntil = Math.max(pausedUntil, System.currentTimeMillis() + delay);
+            queue.add(task);
+        }
+        Log.w(TAG, "Rate limited, retry " + task.attempt + " in " + delay + " ms");
+        scheduler.execute(this::drain);
+    }
+
+    /**
+     * Cancel every queued call and stop the scheduler thread. The limiter
+     * cannot be used afterwards.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            for (Task<?> task : queue) {
+                task.result.cancel(false);
+            }
+            queue.clear();
+        }
+        scheduler.shutdownNow();
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefill;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastRefill = now;
+        requestBucket = Math.min(burstSize(), requestBucket + elapsed * requestsPerMinute / 60000);
+        tokenBucket = Math.min(tokensPerMinute, tokenBucket + (double) elapsed * tokensPerMinute / 60000);
+    }
+
+    // Allow a small burst, but spread the rest of the minute's quota out
+    private double burstSize() {
+        return Math.max(1, requestsPerMinute / 4);
+    }
+
+    private synchronized void scheduleDrain(long delayMs) {
+        if (pendingDrain != null && !pendingDrain.isDone()
+                && pendingDrain.getDelay(TimeUnit.MILLISECONDS) <= delayMs) {
+            return;
+        }
+        if (pendingDrain != null) {
+            pendingDrain.cancel(false);
+        }
+        pendingDrain = scheduler.schedule(this::drain, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * True if the error (or any cause) is a 429 / quota / rate-limit failure
+     */
+    public static boolean isRateLimitError(Throwable t) {
+        while (t != null) {
+            if (t instanceof QuotaExceededException || isRateLimitError(t.getMessage())) {
+                return true;
+            }
+            t = t.getCause();
+        }
+        return false;
+    }
+
+    /**
+     * True if an error message describes a 429 / quota / rate-limit failure
+     */
+    public static boolean isRateLimitError(String message) {
+        if (message == null) {
+            return false;
+        }
+        return RATE_LIMIT.matcher(message).find();
+    }
+
+    // Server retry hint such as "Please retry in 37.8s" or "retryDelay": "37s"
+    private static long retryHintMillis(Throwable t) {
+        while (t != null) {
+            if (t.getMessage() != null) {
+                Matcher matcher = RETRY_HINT.matcher(t.getMessage());
+                if (matcher.find()) {
+                    return (long) (Double.parseDouble(matcher.group(1)) * 1000);
+                }
+            }
+            t = t.getCause();
+        }
+        return 0;
+    }
+
+    private static class Task<T> implements Comparable<Task<?>> {
+        final Priority priority;
+        final int tokens;
+        final Callable<ListenableFuture<T>> call;
+        final long sequence;
+        final SettableFuture<T> result = SettableFuture.create();
+        int attempt;
+
+        Task(Priority priority, int tokens, Callable<ListenableFuture<T>> call, long sequence) {
+            this.priority = priority;
+            this.tokens = tokens;
+            this.call = call;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task<?> other) {
+            int byPriority = priority.compareTo(other.priority);
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -1,23 +1,40 @@
 package com.krishield.services;
 
-import android.graphics.Bitmap;
+import android.content.Context;
 import android.util.Log;
 
 import com.google.ai.client.generativeai.GenerativeModel;
 import com.google.ai.client.generativeai.java.GenerativeModelFutures;
 import com.google.ai.client.generativeai.type.Content;
 import com.google.ai.client.generativeai.type.GenerateContentResponse;
+import com.google.ai.client.generativeai.type.GenerationConfig;
+import com.google.ai.client.generativeai.type.RequestOptions;
+import com.google.ai.client.generativeai.type.Schema;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.krishield.BuildConfig;
+import com.krishield.activities.SettingsActivity;
+import com.krishield.utils.AppExecutors;
 
 public class GeminiService {
     private static final String TAG = "GeminiService";
     private static final String API_KEY = BuildConfig.GEMINI_API_KEY;
+    private static final String MODEL_NAME = "gemini-3-flash-preview";
 
     private static final String SYSTEM_INSTRUCTION = "You are KriShield AI - a specialized farming assistant for Indian farmers.\n\n"
             +
@@ -36,44 +53,211 @@ public class GeminiService {
             "• Point 2 (concise)\n" +
             "• Point 3 (concise)\n\n" +
             "When analyzing crop images for diseases:\n" +
-            "• Identify disease name\n" +
-            "• List 2-3 immediate remedies using locally available resources\n" +
-            "• Mention prevention tip\n\n" +
+            "1. ANALYZE the image to the best of your ability.\n" +
+            "2. IF the disease is OBVIOUS:\n" +
+            "   - Identify the disease name and your confidence (High/Medium)\n" +
+            "   - List 2-3 immediate remedies using locally available resources\n" +
+            "   - Mention a prevention tip\n" +
+            "3. IF the image is AMBIGUOUS or lacks context (e.g., just a yellow leaf):\n" +
+            "   - DO NOT GUESS.\n" +
+            "   - Ask 3 specific follow-up questions to the farmer to understand the problem better (e.g., about soil, water, duration).\n"
+            +
+            "   - Start your response with 'To give you an accurate diagnosis, I need a little more information:'\n"
+            +
+            "4. Speak like an expert Indian Agronomist (friendly and professional).\n\n" +
+            "Image Response Format (If Obvious):\n" +
+            "**Analysis:** [Disease Name]\n" +
+            "**Confidence:** [High/Medium]\n" +
+            "**Remedies:**\n" +
+            "• [Remedy 1]\n" +
+            "• [Remedy 2]\n\n" +
+            "Image Response Format (If Ambiguous):\n" +
+            "To help you better, please tell me:\n" +
+            "1. [Question 1]\n" +
+            "2. [Question 2]\n" +
+            "3. [Question 3]\n\n" +
             "When analyzing prices, search for current market data and provide data-driven recommendations in bullet points.";
 
+    // One client per saved API key for the whole process; keys being tested
+    // get a throwaway client, see testApiKey
+    private static final Map<String, GeminiService> INSTANCES = new HashMap<>();
+
+    // Free-tier Flash limits; raise these for a paid key
+    private static final int REQUESTS_PER_MINUTE = 10;
+    private static final int TOKENS_PER_MINUTE = 250000;
+    // Rough per-request allowances used when charging the token bucket
+    static final int RESPONSE_TOKENS = 512;
+    private static final int IMAGE_TOKENS = 1100;
+
+    public static final String RATE_LIMIT_MESSAGE = "Server busy (rate limit). Try again in a minute.";
+
+    // Response schema for getGovernmentSchemes, field names match Scheme
+    private static final Schema<?> SCHEMES_SCHEMA = Schema.arr("schemes", "Government schemes for Indian farmers",
+            Schema.obj("scheme", "One government scheme",
+                    Schema.str("title", "Scheme name"),
+                    Schema.str("description", "Short description"),
+                    Schema.str("benefits", "Key benefits"),
+                    Schema.str("eligibility", "Who can apply"),
+                    Schema.str("url", "Official website URL"),
+                    Schema.str("iconEmoji", "One emoji representing the scheme")));
+
+    private static final String DEFAULT_IMAGE_QUESTION = "Analyze this crop image and identify any diseases or issues.";
+
+    // Assistant model: SYSTEM_INSTRUCTION is sent once as the model's system
+    // instruction, so requests only carry the user payload
     private GenerativeModelFutures model;
+    // Plain model for structured tasks (e.g. JSON lists) that must not follow
+    // the chat formatting rules
+    private GenerativeModelFutures taskModel;
+    // Plain model that must answer with a JSON document
+    private GenerativeModelFutures jsonModel;
+    // JSON models constrained to a response schema, created on first use
+    private final Map<Schema<?>, GenerativeModelFutures> schemaModels = new HashMap<>();
     private String apiKey;
 
+    // All calls for this key go through one scheduler so quota is shared
+    private final GeminiRateLimiter rateLimiter = new GeminiRateLimiter(REQUESTS_PER_MINUTE, TOKENS_PER_MINUTE);
+
+    // Identical text prompts that are still running share one call, per model
+    private final Map<GenerativeModelFutures, Map<String, SharedCall>> inFlight = new HashMap<>();
+
+    // A running call plus the number of callers still waiting for it
+    private static class SharedCall {
+        final ListenableFuture<GenerateContentResponse> future;
+        int subscribers;
+
+        SharedCall(ListenableFuture<GenerateContentResponse> future) {
+            this.future = future;
+        }
+    }
+
     /**
-     * Constructor with default API key from BuildConfig
+     * Shared instance using the key saved in Settings (falls back to BuildConfig)
      */
-    public GeminiService() {
-        this(API_KEY);
+    public static GeminiService getInstance(Context context) {
+        return getInstance(SettingsActivity.getSavedApiKey(context));
     }
 
     /**
-     * Constructor with custom API key (for user-provided keys)
+     * Shared instance for a custom API key (null/empty uses BuildConfig key)
      */
-    public GeminiService(String customApiKey) {
-        this.apiKey = (customApiKey != null && !customApiKey.isEmpty())
+    public static synchronized GeminiService getInstance(String customApiKey) {
+        String key = (customApiKey != null && !customApiKey.isEmpty())
                 ? customApiKey
                 : API_KEY;
-        GenerativeModel gm = new GenerativeModel("gemini-3-flash-preview", this.apiKey);
+        GeminiService service = INSTANCES.get(key);
+        if (service == null) {
+            service = new GeminiService(key);
+            INSTANCES.put(key, service);
+        }
+        return service;
+    }
+
+    /**
+     * Send a short request with a key that is not saved yet. Uses its own
+     * client, which is not cached and is shut down once the call finishes.
+     */
+    public static ListenableFuture<?> testApiKey(String apiKey, Executor executor, ResponseCallback callback) {
+        GeminiService service = new GeminiService(apiKey);
+        ListenableFuture<?> call = service.sendTextMessage("Hello", executor, callback);
+        call.addListener(service.rateLimiter::shutdown, MoreExecutors.directExecutor());
+        return call;
+    }
+
+    private GeminiService(String apiKey) {
+        this.apiKey = apiKey;
+
+        Content systemInstruction = new Content.Builder()
+                .addText(SYSTEM_INSTRUCTION)
+                .build();
+        GenerativeModel gm = new GenerativeModel(MODEL_NAME, this.apiKey, null, null,
+                new RequestOptions(), null, null, systemInstruction);
         model = GenerativeModelFutures.from(gm);
+
+        taskModel = GenerativeModelFutures.from(new GenerativeModel(MODEL_NAME, this.apiKey));
+
+        GenerationConfig.Builder jsonConfig = new GenerationConfig.Builder();
+        jsonConfig.responseMimeType = "application/json";
+        jsonModel = GenerativeModelFutures.from(new GenerativeModel(MODEL_NAME, this.apiKey,
+                jsonConfig.build()));
     }
 
     /**
-     * Send a text message to Gemini and get a response
+     * Generate content for a text-only prompt. If the same prompt is already
+     * in flight, the caller joins the existing call instead of a new API call.
+     * Each caller gets its own future: cancelling it only detaches that
+     * caller, and the call itself is cancelled once every caller has left.
      */
-    public void sendTextMessage(String userMessage, Executor executor, ResponseCallback callback) {
-        try {
-            String fullPrompt = SYSTEM_INSTRUCTION + "\n\nUser: " + userMessage;
+    private ListenableFuture<GenerateContentResponse> generateShared(GenerativeModelFutures target,
+            String prompt, GeminiRateLimiter.Priority priority) {
+        Map<String, SharedCall> calls;
+        SharedCall call;
+        synchronized (inFlight) {
+            // Same prompt on different models is a different request
+            calls = inFlight.get(target);
+            if (calls == null) {
+                calls = new HashMap<>();
+                inFlight.put(target, calls);
+            }
+            call = calls.get(prompt);
+            if (call != null) {
+                Log.d(TAG, "Joining in-flight request");
+            } else {
+                Content content = new Content.Builder()
+                        .addText(prompt)
+                        .build();
+                call = new SharedCall(rateLimiter.submit(priority, estimateTokens(prompt),
+                        () -> target.generateContent(content)));
+                calls.put(prompt, call);
 
-            Content content = new Content.Builder()
-                    .addText(fullPrompt)
-                    .build();
+                final SharedCall started = call;
+                final Map<String, SharedCall> startedIn = calls;
+                started.future.addListener(() -> {
+                    synchronized (inFlight) {
+                        if (startedIn.get(prompt) == started) {
+                            startedIn.remove(prompt);
+                        }
+                    }
+                }, MoreExecutors.directExecutor());
+            }
+            call.subscribers++;
+        }
 
-            ListenableFuture<GenerateContentResponse> response = model.generateContent(content);
+        final SharedCall shared = call;
+        final Map<String, SharedCall> sharedIn = calls;
+        ListenableFuture<GenerateContentResponse> view = Futures.nonCancellationPropagating(shared.future);
+        view.addListener(() -> {
+            if (!view.isCancelled()) {
+                return;
+            }
+            boolean last;
+            synchronized (inFlight) {
+                last = --shared.subscribers == 0;
+                if (last && sharedIn.get(prompt) == shared) {
+                    sharedIn.remove(prompt);
+                }
+            }
+            if (last) {
+                shared.future.cancel(true);
+            }
+        }, MoreExecutors.directExecutor());
+        return view;
+    }
+
+    /**
+     * Send a text message to Gemini and get a response
+     */
+    public ListenableFuture<?> sendTextMessage(String userMessage, Executor executor, ResponseCallback callback) {
+        return sendTextMessage(userMessage, GeminiRateLimiter.Priority.INTERACTIVE, executor, callback);
+    }
+
+    /**
+     * Send a text message with an explicit scheduling priority
+     */
+    public ListenableFuture<?> sendTextMessage(String userMessage, GeminiRateLimiter.Priority priority,
+            Executor executor, ResponseCallback callback) {
+        try {
+            ListenableFuture<GenerateContentResponse> response = generateShared(model, userMessage, priority);
 
             Futures.addCallback(response, new FutureCallback<GenerateContentResponse>() {
                 @Override
@@ -84,93 +268,249 @@ public class GeminiService {
 
                 @Override
                 public void onFailure(Throwable t) {
+                    if (t instanceof CancellationException) {
+                        return;
+                    }
                     Log.e(TAG, "Error generating content", t);
-                    callback.onError(t.getMessage());
+                    callback.onError(errorMessage(t));
                 }
             }, executor);
+            return response;
 
         } catch (Exception e) {
             Log.e(TAG, "Error in sendTextMessage", e);
             callback.onError(e.getMessage());
+            return Futures.immediateFailedFuture(e);
         }
     }
 
     /**
-     * Analyze an image with optional text question
+     * Send a prompt that must be answered with a JSON document (raw JSON text
+     * is passed to the callback, without markdown fences)
      */
-    public void analyzeImage(Bitmap image, String question, Executor executor, ResponseCallback callback) {
-        try {
-            String fullPrompt = SYSTEM_INSTRUCTION + "\n\nUser: " +
-                    (question != null && !question.isEmpty() ? question
-                            : "Analyze this crop image and identify any diseases or issues.")
-                    +
-                    "\n\nIMPORTANT INSTRUCTIONS:\n" +
-                    "\n\nIMPORTANT INSTRUCTIONS:\n" +
-                    "1. ANALYZE the image to the best of your ability.\n" +
-                    "2. IF the disease is OBVIOUS:\n" +
-                    "   - Provide the Diagnosis, Confidence, and Remedies immediately.\n" +
-                    "3. IF the image is AMBIGUOUS or lacks context (e.g., just a yellow leaf):\n" +
-                    "   - DO NOT GUESS.\n" +
-                    "   - Ask 3 specific follow-up questions to the farmer to understand the problem better (e.g., about soil, water, duration).\n"
-                    +
-                    "   - Start your response with 'To give you an accurate diagnosis, I need a little more information:'\n"
-                    +
-                    "4. Speak like an expert Indian Agronomist (friendly and professional).\n\n" +
-                    "Response Format (If Obvious):\n" +
-                    "**Analysis:** [Disease Name]\n" +
-                    "**Confidence:** [High/Medium]\n" +
-                    "**Remedies:**\n" +
-                    "• [Remedy 1]\n" +
-                    "• [Remedy 2]\n\n" +
-                    "Response Format (If Ambiguous):\n" +
-                    "To help you better, please tell me:\n" +
-                    "1. [Question 1]\n" +
-                    "2. [Question 2]\n" +
-                    "3. [Question 3]";
+    public ListenableFuture<?> requestJson(String prompt, GeminiRateLimiter.Priority priority, Executor executor,
+            ResponseCallback callback) {
+        return requestJson(jsonModel, prompt, priority, executor, callback);
+    }
 
-            Content content = new Content.Builder()
-                    .addText(fullPrompt)
-                    .addImage(image)
-                    .build();
+    /**
+     * Send a prompt whose answer must match the given response schema. The
+     * API validates the output, so the JSON can be parsed straight into the
+     * matching model class.
+     */
+    public ListenableFuture<?> requestJson(String prompt, Schema<?> schema, GeminiRateLimiter.Priority priority,
+            Executor executor, ResponseCallback callback) {
+        return requestJson(schemaModel(schema), prompt, priority, executor, callback);
+    }
 
-            ListenableFuture<GenerateContentResponse> response = model.generateContent(content);
+    private ListenableFuture<?> requestJson(GenerativeModelFutures target, String prompt,
+            GeminiRateLimiter.Priority priority, Executor executor, ResponseCallback callback) {
+        try {
+            ListenableFuture<GenerateContentResponse> response = generateShared(target, prompt, priority);
 
             Futures.addCallback(response, new FutureCallback<GenerateContentResponse>() {
                 @Override
                 public void onSuccess(GenerateContentResponse result) {
-                    String responseText = result.getText();
-                    callback.onSuccess(responseText);
+                    callback.onSuccess(result.getText());
                 }
 
                 @Override
                 public void onFailure(Throwable t) {
-                    Log.e(TAG, "Error analyzing image", t);
-                    callback.onError(t.getMessage());
+                    if (t instanceof CancellationException) {
+                        return;
+                    }
+                    Log.e(TAG, "Error generating JSON", t);
+                    callback.onError(errorMessage(t));
                 }
             }, executor);
+            return response;
 
         } catch (Exception e) {
-            Log.e(TAG, "Error in analyzeImage", e);
+            Log.e(TAG, "Error in requestJson", e);
             callback.onError(e.getMessage());
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    private GenerativeModelFutures schemaModel(Schema<?> schema) {
+        synchronized (schemaModels) {
+            GenerativeModelFutures target = schemaModels.get(schema);
+            if (target == null) {
+                GenerationConfig.Builder config = new GenerationConfig.Builder();
+                config.responseMimeType = "application/json";
+                config.responseSchema = schema;
+                target = GenerativeModelFutures.from(new GenerativeModel(MODEL_NAME, apiKey, config.build()));
+                schemaModels.put(schema, target);
+            }
+            return target;
         }
     }
 
     /**
-     * Fetch latest government schemes in JSON format
+     * Stream an image analysis for an already encoded image (see
+     * ImagePreprocessor), so the SDK does not re-encode a full-size bitmap
      */
-    public void getGovernmentSchemes(GeminiCallback callback) {
-        String prompt = "List 10 specific government schemes for Indian farmers in JSON format. " +
-                "Use this exact structure: " +
-                "[{\"title\": \"Scheme Name\", \"description\": \"Short description\", \"benefits\": \"Key benefits\", \"eligibility\": \"Who can apply\", \"url\": \"Official website URL\", \"iconEmoji\": \"Emoji representing the scheme\"}]. "
-                +
-                "Include PM-KISAN, Fasal Bima Yojana, KCC, and soil health card schemes. " +
-                "Do not add any markdown formatting like ```json or ```, just return the raw JSON array.";
+    public ListenableFuture<?> analyzeImageStream(byte[] imageBytes, String mimeType, String question,
+            Executor executor, StreamCallback callback) {
+        try {
+            Content content = new Content.Builder()
+                    .addText(imageQuestion(question))
+                    .addBlob(mimeType, imageBytes)
+                    .build();
 
-        Content content = new Content.Builder()
-                .addText(prompt)
-                .build();
+            return stream(() -> model.generateContentStream(content), estimateTokens(question) + IMAGE_TOKENS,
+                    executor, callback);
+        } catch (Exception e) {
+            Log.e(TAG, "Error in analyzeImageStream", e);
+            callback.onError(e.getMessage());
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    /**
+     * Start a multi-turn chat session on the assistant model. The session keeps
+     * its own typed history and trims it to the given token budget.
+     */
+    public GeminiChatSession newChatSession(int historyTokenBudget) {
+        return new GeminiChatSession(this, model, historyTokenBudget);
+    }
+
+    /**
+     * Run a streamed request through the rate limiter. The limiter treats the
+     * stream as started once the first chunk arrives, so a 429 before any text
+     * is retried like a normal call; later errors go straight to the callback.
+     * The returned future completes with the stream; cancelling it stops the
+     * stream and no further callbacks are made. estimatedTokens is charged
+     * to the limiter as is, so it must already include the reply.
+     */
+    ListenableFuture<?> stream(Callable<Publisher<GenerateContentResponse>> source, int estimatedTokens,
+            Executor executor, StreamCallback callback) {
+        SettableFuture<Void> done = SettableFuture.create();
+        AtomicReference<Subscription> subscriptionRef = new AtomicReference<>();
+
+        ListenableFuture<Void> started = rateLimiter.submit(GeminiRateLimiter.Priority.INTERACTIVE,
+                estimatedTokens, () -> {
+                    SettableFuture<Void> firstChunk = SettableFuture.create();
+                    source.call().subscribe(new Subscriber<GenerateContentResponse>() {
+                        private final StringBuilder text = new StringBuilder();
+
+                        @Override
+                        public void onSubscribe(Subscription subscription) {
+                            subscriptionRef.set(subscription);
+                            firstChunk.addListener(() -> {
+                                if (firstChunk.isCancelled()) {
+                                    subscription.cancel();
+                                }
+                            }, MoreExecutors.directExecutor());
+                            if (done.isCancelled()) {
+                                subscription.cancel();
+                                return;
+                            }
+                            subscription.request(Long.MAX_VALUE);
+                        }
+
+                        @Override
+                        public void onNext(GenerateContentResponse chunk) {
+                            String chunkText = chunk.getText();
+                            if (chunkText == null || chunkText.isEmpty() || done.isCancelled()) {
+                                return;
+                            }
+                            firstChunk.set(null);
+                            text.append(chunkText);
+                            String soFar = text.toString();
+                            executor.execute(() -> {
+                                if (!done.isCancelled()) {
+                                    callback.onPartial(soFar);
+                                }
+                            });
+                        }
+
+                        @Override
+                        public void onError(Throwable t) {
+                            // Before any text: let the limiter decide whether to retry
+                            if (firstChunk.setException(t) || !done.setException(t)) {
+                                return;
+                            }
+                            Log.e(TAG, "Error streaming content", t);
+                            executor.execute(() -> callback.onError(errorMessage(t)));
+                        }
+
+                        @Override
+                        public void onComplete() {
+                            firstChunk.set(null);
+                            if (!done.set(null)) {
+                                return;
+                            }
+                            String fullText = text.toString();
+                            executor.execute(() -> callback.onComplete(fullText));
+                        }
+                    });
+                    return firstChunk;
+                });
+
+        done.addListener(() -> {
+            if (done.isCancelled()) {
+                started.cancel(true);
+                Subscription subscription = subscriptionRef.get();
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+            }
+        }, MoreExecutors.directExecutor());
+
+        Futures.addCallback(started, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void result) {
+                // Chunks are delivered by the subscriber
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (t instanceof CancellationException || !done.setException(t)) {
+                    return;
+                }
+                Log.e(TAG, "Error streaming content", t);
+                callback.onError(errorMessage(t));
+            }
+        }, executor);
+        return done;
+    }
+
+    private String imageQuestion(String question) {
+        return question != null && !question.isEmpty() ? question : DEFAULT_IMAGE_QUESTION;
+    }
+
+    private static int estimateTokens(String prompt) {
+        return (prompt != null ? GeminiChatSession.estimateTokens(prompt) : 0) + RESPONSE_TOKENS;
+    }
 
-        ListenableFuture<GenerateContentResponse> response = model.generateContent(content);
+    /**
+     * User-facing error text; rate-limit failures get one consistent message
+     */
+    private static String errorMessage(Throwable t) {
+        return GeminiRateLimiter.isRateLimitError(t) ? RATE_LIMIT_MESSAGE : t.getMessage();
+    }
+
+    /**
+     * True if an error passed to a callback was caused by the API rate limit
+     */
+    public static boolean isRateLimitError(String error) {
+        return RATE_LIMIT_MESSAGE.equals(error) || GeminiRateLimiter.isRateLimitError(error);
+    }
+
+    /**
+     * Fetch latest government schemes as a JSON array matching Scheme
+     */
+    public ListenableFuture<?> getGovernmentSchemes(GeminiCallback callback) {
+        return getGovernmentSchemes(GeminiRateLimiter.Priority.NORMAL, callback);
+    }
+
+    public ListenableFuture<?> getGovernmentSchemes(GeminiRateLimiter.Priority priority, GeminiCallback callback) {
+        String prompt = "List 10 specific government schemes for Indian farmers. " +
+                "Include PM-KISAN, Fasal Bima Yojana, KCC, and soil health card schemes.";
+
+        ListenableFuture<GenerateContentResponse> response = generateShared(schemaModel(SCHEMES_SCHEMA), prompt,
+                priority);
 
         Futures.addCallback(response, new FutureCallback<GenerateContentResponse>() {
             @Override
@@ -181,10 +521,14 @@ public class GeminiService {
 
             @Override
             public void onFailure(Throwable t) {
+                if (t instanceof CancellationException) {
+                    return;
+                }
                 Log.e(TAG, "Error fetching schemes", t);
-                callback.onError(t.getMessage());
+                callback.onError(errorMessage(t));
             }
-        }, java.util.concurrent.Executors.newSingleThreadExecutor());
+        }, AppExecutors.getInstance().cpu());
+        return response;
     }
 
     public interface GeminiCallback {
@@ -201,4 +545,16 @@ public class GeminiService {
 
         void onError(String error);
     }
+
+    /**
+     * Callback interface for streamed responses. onPartial receives the full
+     * text received so far, not just the latest chunk.
+     */
+    public interface StreamCallback {
+        void onPartial(String textSoFar);
+
+        void onComplete(String fullText);
+
+        void onError(String error);
+    }
 }
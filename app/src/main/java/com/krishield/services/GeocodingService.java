@@ -0,0 +1,151 @@
+package com.krishield.services;
+
+import android.content.Context;
+import android.location.Address;
+import android.location.Geocoder;
+import android.util.Log;
+
+import com.google.gson.Gson;
+import com.krishield.models.Place;
+import com.krishield.repositories.TieredCache;
+import com.krishield.utils.AppExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reverse geocoding off the main thread. Geocoder.getFromLocation blocks on
+ * a network call, so it runs on the network pool.
+ *
+ * Results are cached in the TieredCache per cell of about 1 km
+ * (0.01 degree), so the farm's name is looked up once rather than on every
+ * launch. Lookups for a cell that is already being resolved join that call.
+ */
+public class GeocodingService {
+    private static final String TAG = "GeocodingService";
+    private static final String KEY_PREFIX = "place/";
+
+    private static final double CELL_DEGREES = 0.01;
+    // Place names rarely change
+    private static final long CACHE_DURATION = 90L * 24 * 60 * 60 * 1000; // 90 days
+
+    private static GeocodingService instance;
+
+    private final Context context;
+    private final TieredCache cache;
+    private final Gson gson = new Gson();
+
+    private final Map<String, List<PlaceCallback>> inFlight = new HashMap<>();
+
+    /**
+     * Called on a background thread unless the place was already in memory
+     */
+    public interface PlaceCallback {
+        void onSuccess(Place place);
+
+        void onError(String error);
+    }
+
+    public static synchronized GeocodingService getInstance(Context context) {
+        if (instance == null) {
+            instance = new GeocodingService(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private GeocodingService(Context context) {
+        this.context = context;
+        this.cache = TieredCache.getInstance(context);
+    }
+
+    public void getPlace(double latitude, double longitude, PlaceCallback callback) {
+        String cell = Math.round(latitude / CELL_DEGREES) + "_" + Math.round(longitude / CELL_DEGREES);
+        Place cached = parse(cache.peek(KEY_PREFIX + cell));
+        if (cached != null) {
+            callback.onSuccess(cached);
+            return;
+        }
+
+        synchronized (inFlight) {
+            List<PlaceCallback> waiting = inFlight.get(cell);
+            if (waiting != null) {
+                waiting.add(callback);
+                return;
+            }
+            waiting = new ArrayList<>();
+            waiting.add(callback);
+            inFlight.put(cell, waiting);
+        }
+
+        AppExecutors.getInstance().network().execute(() -> {
+            Place place = readCache(cell);
+            String error = null;
+            if (place == null) {
+                try {
+                    place = lookup(latitude, longitude);
+                    if (place == null) {
+                        error = "No address found";
+                    } else {
+                        writeCache(cell, place);
+                    }
+                } catch (Exception e) {
+                    Log.e(TAG, "Geocoder failed", e);
+                    error = e.getMessage() != null ? e.getMessage() : "Geocoder failed";
+                }
+            }
+            for (PlaceCallback waiting : finish(cell)) {
+                if (place != null) {
+                    waiting.onSuccess(place);
+                } else {
+                    waiting.onError(error);
+                }
+            }
+        });
+    }
+
+    private Place lookup(double latitude, double longitude) throws Exception {
+        if (!Geocoder.isPresent()) {
+            return null;
+        }
+        Geocoder geocoder = new Geocoder(context, Locale.getDefault());
+        List<Address> addresses = geocoder.getFromLocation(latitude, longitude, 1);
+        if (addresses == null || addresses.isEmpty()) {
+            return null;
+        }
+        Address address = addresses.get(0);
+        Place place = new Place(address.getLocality(), address.getAdminArea(), address.getCountryName());
+        return place.isEmpty() ? null : place;
+    }
+
+    private List<PlaceCallback> finish(String cell) {
+        synchronized (inFlight) {
+            List<PlaceCallback> waiting = inFlight.remove(cell);
+            return waiting != null ? waiting : new ArrayList<>();
+        }
+    }
+
+    // May read from disk
+    private Place readCache(String cell) {
+        return parse(cache.get(KEY_PREFIX + cell));
+    }
+
+    private Place parse(TieredCache.Entry entry) {
+        if (entry == null) {
+            return null;
+        }
+        try {
+            Place place = gson.fromJson(entry.value, Place.class);
+            return place != null && !place.isEmpty() ? place : null;
+        } catch (Exception e) {
+            Log.e(TAG, "Failed to read cached place", e);
+            return null;
+        }
+    }
+
+    private void writeCache(String cell, Place place) {
+        cache.put(KEY_PREFIX + cell, gson.toJson(place), CACHE_DURATION);
+    }
+}
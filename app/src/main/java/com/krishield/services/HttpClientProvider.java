@@ -0,0 +1,124 @@
+package com.krishield.services;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.krishield.utils.AppExecutors;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.CacheControl;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.Interceptor;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * One OkHttp client for the whole app, so every HTTP API shares warm
+ * connections, the dispatcher and the on-disk response cache.
+ *
+ * OkHttp already requests gzip and decompresses transparently. Open-Meteo does
+ * not send caching headers, so GET responses without Cache-Control are given
+ * a short max-age, and a request that fails offline is retried against the
+ * cache with a longer max-stale.
+ */
+public class HttpClientProvider {
+    private static final String TAG = "HttpClientProvider";
+
+    private static final String CACHE_DIR = "http_cache";
+    private static final long CACHE_SIZE = 20L * 1024 * 1024; // 20 MB
+
+    // Forecasts update roughly hourly
+    private static final int FRESH_SECONDS = 15 * 60;
+    // How old a cached body may be when the network is unreachable
+    private static final int OFFLINE_STALE_SECONDS = 24 * 60 * 60;
+
+    private static final int MAX_IDLE_CONNECTIONS = 5;
+    private static final long KEEP_ALIVE_MINUTES = 5;
+
+    private static OkHttpClient client;
+
+    public static synchronized OkHttpClient get(Context context) {
+        if (client == null) {
+            client = build(context.getApplicationContext());
+        }
+        return client;
+    }
+
+    private static OkHttpClient build(Context context) {
+        // Async calls get their own pool, so they cannot starve geocoding on
+        // network() or the other way round. An open community sync socket
+        // holds one of these requests for as long as it reads.
+        Dispatcher dispatcher = new Dispatcher(AppExecutors.getInstance().http());
+        dispatcher.setMaxRequests(AppExecutors.HTTP_THREADS);
+
+        return new OkHttpClient.Builder()
+                .cache(new Cache(new File(context.getCacheDir(), CACHE_DIR), CACHE_SIZE))
+                .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .dispatcher(dispatcher)
+                .connectTimeout(10, TimeUnit.SECONDS)
+                .readTimeout(20, TimeUnit.SECONDS)
+                .writeTimeout(20, TimeUnit.SECONDS)
+                .callTimeout(30, TimeUnit.SECONDS)
+                .retryOnConnectionFailure(true)
+                .addInterceptor(new OfflineCacheInterceptor())
+                .addNetworkInterceptor(new CacheControlInterceptor())
+                .build();
+    }
+
+    /**
+     * Make GET responses without caching headers cacheable for a short time
+     */
+    private static class CacheControlInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            Response response = chain.proceed(request);
+            if (!"GET".equals(request.method()) || !response.isSuccessful()
+                    || response.header("Cache-Control") != null) {
+                return response;
+            }
+            return response.newBuilder()
+                    .removeHeader("Pragma")
+                    .header("Cache-Control", "public, max-age=" + FRESH_SECONDS)
+                    .build();
+        }
+    }
+
+    /**
+     * If the network is unreachable, answer a GET from the cache when a
+     * recent enough body is stored
+     */
+    private static class OfflineCacheInterceptor implements Interceptor {
+        @Override
+        public Response intercept(Chain chain) throws IOException {
+            Request request = chain.request();
+            try {
+                return chain.proceed(request);
+            } catch (IOException e) {
+                if (!"GET".equals(request.method()) || chain.call().isCanceled()) {
+                    throw e;
+                }
+                Request cachedOnly = request.newBuilder()
+                        .cacheControl(new CacheControl.Builder()
+                                .onlyIfCached()
+                                .maxStale(OFFLINE_STALE_SECONDS, TimeUnit.SECONDS)
+                                .build())
+                        .build();
+                Response cached = chain.proceed(cachedOnly);
+                if (cached.code() == 504) {
+                    // Nothing usable in the cache: report the original failure
+                    cached.close();
+                    throw e;
+                }
+                Log.d(TAG, "Offline, serving cached " + request.url().encodedPath());
+                return cached;
+            }
+        }
+    }
+}
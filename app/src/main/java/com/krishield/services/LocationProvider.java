@@ -0,0 +1,245 @@
+package com.krishield.services;
+
+import android.Manifest;
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.util.Log;
+
+import androidx.core.content.ContextCompat;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.location.Priority;
+import com.google.android.gms.tasks.CancellationTokenSource;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One source of the farmer's position for all screens.
+ *
+ * The last good fix is kept in memory and preferences with its time and
+ * accuracy. A caller gets it immediately while it is recent enough to use;
+ * if it is older than FRESH_AGE one balanced-power request refreshes it in
+ * the background for the next caller. Only when there is no usable fix do
+ * callers wait, and all waiting callers share a single request. Without
+ * permission or a fix, everyone gets the same Delhi fallback.
+ *
+ * Callbacks run on the main thread.
+ */
+public class LocationProvider {
+    private static final String TAG = "LocationProvider";
+    private static final String PREF_NAME = "KrishieldLocation";
+
+    public static final double DEFAULT_LATITUDE = 28.6139;
+    public static final double DEFAULT_LONGITUDE = 77.2090;
+    public static final String DEFAULT_CITY = "Delhi";
+    public static final String DEFAULT_STATE = "Delhi";
+    public static final String DEFAULT_COUNTRY = "India";
+
+    // Younger fixes are used without asking the system again
+    private static final long FRESH_AGE = 10 * 60 * 1000; // 10 minutes
+    // Older fixes are not used at all, the farmer may have moved
+    private static final long MAX_AGE = 24 * 60 * 60 * 1000; // 24 hours
+    // A fresh fix is not replaced by one this much less accurate (e.g. a
+    // cell-tower fix right after GPS)
+    private static final float MUCH_LESS_ACCURATE_METERS = 200;
+
+    private static LocationProvider instance;
+
+    private final Context context;
+    private final SharedPreferences prefs;
+    private final FusedLocationProviderClient client;
+
+    private final List<LocationCallback> waiting = new ArrayList<>();
+    private Fix lastFix;
+    private boolean requesting;
+
+    public interface LocationCallback {
+        void onLocation(Fix fix);
+    }
+
+    /**
+     * A position with the wall-clock time it was measured. Fallback fixes
+     * have no accuracy and isFallback set.
+     */
+    public static class Fix {
+        public final double latitude;
+        public final double longitude;
+        public final float accuracy;
+        public final long time;
+        public final boolean isFallback;
+
+        Fix(double latitude, double longitude, float accuracy, long time, boolean isFallback) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracy = accuracy;
+            this.time = time;
+            this.isFallback = isFallback;
+        }
+
+        public long getAge() {
+            return System.currentTimeMillis() - time;
+        }
+    }
+
+    public static synchronized LocationProvider getInstance(Context context) {
+        if (instance == null) {
+            instance = new LocationProvider(context.getApplicationContext());
+        }
+        return instance;
+    }
+
+    private LocationProvider(Context context) {
+        this.context = context;
+        this.prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        this.client = LocationServices.getFusedLocationProviderClient(context);
+        this.lastFix = readFix();
+    }
+
+    public static Fix fallback() {
+        return new Fix(DEFAULT_LATITUDE, DEFAULT_LONGITUDE, 0, System.currentTimeMillis(), true);
+    }
+
+    public boolean hasPermission() {
+        return ContextCompat.checkSelfPermission(context,
+                Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED
+                || ContextCompat.checkSelfPermission(context,
+                        Manifest.permission.ACCESS_COARSE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * The last real fix if it is not too old, without any request. Null if
+     * there is none. Safe to call from any thread.
+     */
+    public synchronized Fix getLastFix() {
+        return lastFix != null && lastFix.getAge() < MAX_AGE ? lastFix : null;
+    }
+
+    /**
+     * Called on the main thread
+     */
+    public void getLocation(LocationCallback callback) {
+        if (!hasPermission()) {
+            callback.onLocation(fallback());
+            return;
+        }
+
+        Fix cached;
+        synchronized (this) {
+            cached = getLastFix();
+            if (cached == null) {
+                waiting.add(callback);
+            }
+        }
+        if (cached != null) {
+            callback.onLocation(cached);
+            if (cached.getAge() >= FRESH_AGE) {
+                requestFix();
+            }
+            return;
+        }
+        requestFix();
+    }
+
+    @SuppressLint("MissingPermission") // checked in getLocation
+    private void requestFix() {
+        synchronized (this) {
+            if (requesting) {
+                return;
+            }
+            requesting = true;
+        }
+
+        try {
+            // The system's last fix costs nothing; only wake the radios if it is old
+            client.getLastLocation()
+                    .addOnSuccessListener(location -> {
+                        if (location != null && System.currentTimeMillis() - location.getTime() < FRESH_AGE) {
+                            finish(location);
+                        } else {
+                            requestCurrent(location);
+                        }
+                    })
+                    .addOnFailureListener(e -> requestCurrent(null));
+        } catch (SecurityException e) {
+            Log.w(TAG, "Location permission revoked", e);
+            finish(null);
+        }
+    }
+
+    @SuppressLint("MissingPermission")
+    private void requestCurrent(Location systemLast) {
+        try {
+            client.getCurrentLocation(Priority.PRIORITY_BALANCED_POWER_ACCURACY,
+                    new CancellationTokenSource().getToken())
+                    .addOnSuccessListener(location -> finish(location != null ? location : systemLast))
+                    .addOnFailureListener(e -> {
+                        Log.w(TAG, "Location request failed", e);
+                        finish(systemLast);
+                    });
+        } catch (SecurityException e) {
+            Log.w(TAG, "Location permission revoked", e);
+            finish(systemLast);
+        }
+    }
+
+    // Store a new fix and answer everyone waiting, with the fallback if there is still nothing
+    private void finish(Location location) {
+        List<LocationCallback> callbacks;
+        Fix fix;
+        synchronized (this) {
+            requesting = false;
+            if (location != null && isBetter(location, lastFix)) {
+                lastFix = new Fix(location.getLatitude(), location.getLongitude(),
+                        location.hasAccuracy() ? location.getAccuracy() : 0, location.getTime(), false);
+                writeFix(lastFix);
+            }
+            fix = getLastFix();
+            callbacks = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        if (fix == null) {
+            fix = fallback();
+        }
+        for (LocationCallback callback : callbacks) {
+            callback.onLocation(fix);
+        }
+    }
+
+    // Newer wins, unless the current fix is still fresh and much more accurate
+    private static boolean isBetter(Location location, Fix current) {
+        if (current == null) {
+            return true;
+        }
+        if (location.getTime() <= current.time) {
+            return false;
+        }
+        if (location.getTime() - current.time > FRESH_AGE || current.accuracy <= 0) {
+            return true;
+        }
+        return location.hasAccuracy()
+                && location.getAccuracy() - current.accuracy <= MUCH_LESS_ACCURATE_METERS;
+    }
+
+    private Fix readFix() {
+        if (!prefs.contains("time")) {
+            return null;
+        }
+        return new Fix(Double.longBitsToDouble(prefs.getLong("latitude", 0)),
+                Double.longBitsToDouble(prefs.getLong("longitude", 0)),
+                prefs.getFloat("accuracy", 0), prefs.getLong("time", 0), false);
+    }
+
+    private void writeFix(Fix fix) {
+        prefs.edit()
+                .putLong("latitude", Double.doubleToRawLongBits(fix.latitude))
+                .putLong("longitude", Double.doubleToRawLongBits(fix.longitude))
+                .putFloat("accuracy", fix.accuracy)
+                .putLong("time", fix.time)
+                .apply();
+    }
+}
@@ -1,9 +1,17 @@
 package com.krishield.services;
 
+import android.content.Context;
 import android.util.Log;
 
 import com.krishield.models.WeatherModels;
+import com.krishield.models.WeatherResponseAdapter;
+import com.krishield.utils.AppExecutors;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import okhttp3.OkHttpClient;
 import retrofit2.Call;
 import retrofit2.Callback;
 import retrofit2.Response;
@@ -20,6 +28,10 @@ public class OpenMeteoService {
 
     private static final String TAG = "OpenMeteoService";
     private static final String BASE_URL = "https://api.open-meteo.com/v1/";
+    private static final String TIMEZONE = "Asia/Kolkata";
+    private static final int FORECAST_DAYS = 7;
+
+    private static OpenMeteoService instance;
 
     private final OpenMeteoAPI api;
 
@@ -30,6 +42,22 @@ public class OpenMeteoService {
                 @Query("longitude") double longitude,
                 @Query("current_weather") boolean currentWeather,
                 @Query("daily") String daily,
+                @Query("hourly") String hourly,
+                @Query("timeformat") String timeFormat,
+                @Query("forecast_days") int forecastDays,
+                @Query("timezone") String timezone);
+
+        // Several locations in one request: comma-separated coordinates, and
+        // the response is a JSON array with one forecast per location, in order
+        @GET("forecast")
+        Call<List<WeatherModels.WeatherResponse>> getWeatherBatch(
+                @Query("latitude") String latitudes,
+                @Query("longitude") String longitudes,
+                @Query("current_weather") boolean currentWeather,
+                @Query("daily") String daily,
+                @Query("hourly") String hourly,
+                @Query("timeformat") String timeFormat,
+                @Query("forecast_days") int forecastDays,
                 @Query("timezone") String timezone);
     }
 
@@ -39,9 +67,28 @@ public class OpenMeteoService {
         void onError(String error);
     }
 
-    public OpenMeteoService() {
+    public interface BatchWeatherCallback {
+        void onSuccess(List<WeatherModels.WeatherResponse> forecasts);
+
+        void onError(String error);
+    }
+
+    /**
+     * Shared instance backed by the app-wide HTTP client and cache
+     */
+    public static synchronized OpenMeteoService getInstance(Context context) {
+        if (instance == null) {
+            instance = new OpenMeteoService(HttpClientProvider.get(context));
+        }
+        return instance;
+    }
+
+    private OpenMeteoService(OkHttpClient client) {
         Retrofit retrofit = new Retrofit.Builder()
                 .baseUrl(BASE_URL)
+                .client(client)
+                // Callers cache and parse the result, keep that off the main thread
+                .callbackExecutor(AppExecutors.getInstance().cpu())
                 .addConverterFactory(GsonConverterFactory.create())
                 .build();
 
@@ -49,12 +96,11 @@ public class OpenMeteoService {
     }
 
     public void getWeather(double latitude, double longitude, WeatherCallback callback) {
-        // Request current weather + 7-day forecast
-        String dailyParams = "temperature_2m_max,temperature_2m_min,weathercode";
-        String timezone = "Asia/Kolkata";
-
+        // Request current weather + 7-day daily and hourly forecast, only the
+        // variables the app shows, with Unix times so they decode to long[]
         Call<WeatherModels.WeatherResponse> call = api.getWeather(
-                latitude, longitude, true, dailyParams, timezone);
+                latitude, longitude, true, WeatherResponseAdapter.DAILY_FIELDS,
+                WeatherResponseAdapter.HOURLY_FIELDS, "unixtime", FORECAST_DAYS, TIMEZONE);
 
         call.enqueue(new Callback<WeatherModels.WeatherResponse>() {
             @Override
@@ -71,16 +117,74 @@ public class OpenMeteoService {
             @Override
             public void onFailure(Call<WeatherModels.WeatherResponse> call, Throwable t) {
                 Log.e(TAG, "Weather API failure", t);
-                String error;
-                if (t instanceof java.net.UnknownHostException) {
-                    error = "No internet connection";
-                } else if (t instanceof java.net.SocketTimeoutException) {
-                    error = "Request timed out";
+                callback.onError(failureMessage(t));
+            }
+        });
+    }
+
+    /**
+     * Fetch forecasts for several locations in a single HTTP call. The
+     * result has one forecast per location, in the same order.
+     */
+    public void getWeatherBatch(double[] latitudes, double[] longitudes, BatchWeatherCallback callback) {
+        StringBuilder lats = new StringBuilder();
+        StringBuilder lons = new StringBuilder();
+        for (int i = 0; i < latitudes.length; i++) {
+            if (i > 0) {
+                lats.append(',');
+                lons.append(',');
+            }
+            lats.append(String.format(Locale.US, "%.4f", latitudes[i]));
+            lons.append(String.format(Locale.US, "%.4f", longitudes[i]));
+        }
+
+        if (latitudes.length == 1) {
+            // A single location is answered with an object, not an array
+            getWeather(latitudes[0], longitudes[0], new WeatherCallback() {
+                @Override
+                public void onSuccess(WeatherModels.WeatherResponse weather) {
+                    callback.onSuccess(Collections.singletonList(weather));
+                }
+
+                @Override
+                public void onError(String error) {
+                    callback.onError(error);
+                }
+            });
+            return;
+        }
+
+        Call<List<WeatherModels.WeatherResponse>> call = api.getWeatherBatch(
+                lats.toString(), lons.toString(), true, WeatherResponseAdapter.DAILY_FIELDS,
+                WeatherResponseAdapter.HOURLY_FIELDS, "unixtime", FORECAST_DAYS, TIMEZONE);
+
+        call.enqueue(new Callback<List<WeatherModels.WeatherResponse>>() {
+            @Override
+            public void onResponse(Call<List<WeatherModels.WeatherResponse>> call,
+                    Response<List<WeatherModels.WeatherResponse>> response) {
+                List<WeatherModels.WeatherResponse> body = response.body();
+                if (response.isSuccessful() && body != null && body.size() == latitudes.length) {
+                    callback.onSuccess(body);
                 } else {
-                    error = "Network error";
+                    Log.e(TAG, "Batch weather API error: " + response.code());
+                    callback.onError("Failed to fetch weather");
                 }
-                callback.onError(error);
+            }
+
+            @Override
+            public void onFailure(Call<List<WeatherModels.WeatherResponse>> call, Throwable t) {
+                Log.e(TAG, "Batch weather API failure", t);
+                callback.onError(failureMessage(t));
             }
         });
     }
+
+    private static String failureMessage(Throwable t) {
+        if (t instanceof java.net.UnknownHostException) {
+            return "No internet connection";
+        } else if (t instanceof java.net.SocketTimeoutException) {
+            return "Request timed out";
+        }
+        return "Network error";
+    }
 }
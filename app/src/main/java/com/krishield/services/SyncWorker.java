@@ -0,0 +1,219 @@
+package com.krishield.services;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.krishield.models.DashboardSnapshot;
+import com.krishield.models.FarmPlot;
+import com.krishield.models.MarketReport;
+import com.krishield.models.Scheme;
+import com.krishield.models.WeatherModels;
+import com.krishield.repositories.DashboardRepository;
+import com.krishield.repositories.FarmPlotRepository;
+import com.krishield.repositories.MarketRepository;
+import com.krishield.repositories.SchemesRepository;
+import com.krishield.repositories.WeatherRepository;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Periodic background refresh of the data the screens open with: forecast
+ * for the last known location and the saved plots, the home screen pest
+ * summary, the scheme list and the general market report. Results go
+ * through the repositories, so they land in the same caches the screens read.
+ *
+ * Weather is refreshed on every run. Gemini data is only requested once its
+ * cache is older than GEMINI_REFRESH_AGE, which keeps the quota use low.
+ */
+public class SyncWorker extends Worker {
+    private static final String TAG = "SyncWorker";
+    private static final String WORK_NAME = "krishield_sync";
+    private static final String PREF_NAME = "KrishieldSyncState";
+
+    private static final long SYNC_INTERVAL_HOURS = 6;
+    private static final long FLEX_HOURS = 1;
+    private static final long GEMINI_REFRESH_AGE = 12 * 60 * 60 * 1000; // 12 hours
+    // Upper bound for one run; WorkManager stops workers after 10 minutes
+    private static final long TIMEOUT_MINUTES = 5;
+
+    private static final String GENERAL_SEASON = "General";
+
+    public SyncWorker(@NonNull Context context, @NonNull WorkerParameters params) {
+        super(context, params);
+    }
+
+    /**
+     * Enqueue the periodic sync. Safe to call on every app start, an existing
+     * schedule is kept.
+     */
+    public static void schedule(Context context) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .setRequiresBatteryNotLow(true)
+                .build();
+
+        PeriodicWorkRequest request = new PeriodicWorkRequest.Builder(SyncWorker.class,
+                SYNC_INTERVAL_HOURS, TimeUnit.HOURS, FLEX_HOURS, TimeUnit.HOURS)
+                .setConstraints(constraints)
+                .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, 15, TimeUnit.MINUTES)
+                .build();
+
+        WorkManager.getInstance(context)
+                .enqueueUniquePeriodicWork(WORK_NAME, ExistingPeriodicWorkPolicy.KEEP, request);
+    }
+
+    /**
+     * Place names for the last location, so the sync refreshes data for that
+     * place. Null keeps the stored value.
+     */
+    public static void rememberPlace(Context context, String city, String state, String country) {
+        SharedPreferences.Editor editor = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE).edit();
+        if (city != null) {
+            editor.putString("city", city);
+        }
+        if (state != null) {
+            editor.putString("state", state);
+        }
+        if (country != null) {
+            editor.putString("country", country);
+        }
+        editor.apply();
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        Context context = getApplicationContext();
+        SharedPreferences prefs = context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        LocationProvider.Fix fix = LocationProvider.getInstance(context).getLastFix();
+        String city = prefs.getString("city", LocationProvider.DEFAULT_CITY);
+        String state = prefs.getString("state", LocationProvider.DEFAULT_STATE);
+        String country = prefs.getString("country", LocationProvider.DEFAULT_COUNTRY);
+
+        WeatherRepository weatherRepository = WeatherRepository.getInstance(context);
+        DashboardRepository dashboardRepository = new DashboardRepository(context);
+        SchemesRepository schemesRepository = new SchemesRepository(context);
+        MarketRepository marketRepository = new MarketRepository(context);
+        List<FarmPlot> plots = new FarmPlotRepository(context).getPlots();
+        long now = System.currentTimeMillis();
+
+        boolean hasLocation = fix != null;
+        boolean syncDashboard = hasLocation && now - dashboardRepository.getLastUpdateTime() > GEMINI_REFRESH_AGE;
+        boolean syncSchemes = now - schemesRepository.getLastUpdateTime() > GEMINI_REFRESH_AGE;
+        boolean syncMarket = now - marketRepository.getLastUpdateTime(city, state, GENERAL_SEASON)
+                > GEMINI_REFRESH_AGE;
+
+        int tasks = (hasLocation ? 1 : 0) + (plots.isEmpty() ? 0 : 1) + (syncDashboard ? 1 : 0)
+                + (syncSchemes ? 1 : 0) + (syncMarket ? 1 : 0);
+        if (tasks == 0) {
+            return Result.success();
+        }
+        CountDownLatch done = new CountDownLatch(tasks);
+        AtomicInteger failed = new AtomicInteger();
+
+        if (hasLocation) {
+            weatherRepository.refresh(fix.latitude, fix.longitude, new WeatherRepository.WeatherCallback() {
+                @Override
+                public void onSuccess(WeatherModels.WeatherResponse weather) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                    failed(done, failed, "weather", error);
+                }
+            });
+
+            if (syncDashboard) {
+                dashboardRepository.refresh(fix.latitude, fix.longitude, city, country,
+                        new DashboardRepository.DashboardCallback() {
+                            @Override
+                            public void onSuccess(DashboardSnapshot snapshot) {
+                                done.countDown();
+                            }
+
+                            @Override
+                            public void onError(String error) {
+                                failed(done, failed, "dashboard", error);
+                            }
+                        });
+            }
+        }
+
+        if (!plots.isEmpty()) {
+            weatherRepository.getWeatherForPlots(plots, true, new WeatherRepository.PlotsCallback() {
+                @Override
+                public void onSuccess(Map<String, WeatherModels.WeatherResponse> forecasts) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                    failed(done, failed, "plots", error);
+                }
+            });
+        }
+
+        if (syncSchemes) {
+            schemesRepository.refresh(new SchemesRepository.SchemesCallback() {
+                @Override
+                public void onSuccess(List<Scheme> schemes) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                    failed(done, failed, "schemes", error);
+                }
+            });
+        }
+
+        if (syncMarket) {
+            marketRepository.refresh(city, state, GENERAL_SEASON, new MarketRepository.MarketCallback() {
+                @Override
+                public void onSuccess(MarketReport report) {
+                    done.countDown();
+                }
+
+                @Override
+                public void onError(String error) {
+                    failed(done, failed, "market", error);
+                }
+            });
+        }
+
+        try {
+            if (!done.await(TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                Log.w(TAG, "Sync timed out, " + done.getCount() + " of " + tasks + " tasks unfinished");
+                return Result.retry();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Result.retry();
+        }
+
+        // Partial success still leaves fresher caches; retry only if nothing worked
+        return failed.get() == tasks ? Result.retry() : Result.success();
+    }
+
+    private static void failed(CountDownLatch done, AtomicInteger failed, String task, String error) {
+        Log.w(TAG, "Sync of " + task + " failed: " + error);
+        failed.incrementAndGet();
+        done.countDown();
+    }
+}
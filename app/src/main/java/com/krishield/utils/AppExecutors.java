@@ -0,0 +1,247 @@
+package com.krishield.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process-wide thread pools. Use these instead of creating executors in
+ * activities or repositories:
+ *
+ * - network(): blocking I/O such as geocoding
+ * - http(): OkHttp's async calls only, see HttpClientProvider
+ * - cpu(): parsing, image work and API callbacks
+ * - disk(): file and database writes, run one at a time
+ * - mainThread(): posts to the UI thread
+ *
+ * Tasks never run on the submitting thread, so disk() stays the only writer
+ * for the stores that rely on it and the UI thread never picks up I/O.
+ * Queues are bounded. When network(), http() or cpu() is full a submitted future is
+ * cancelled (a plain execute() throws RejectedExecutionException); disk()
+ * instead makes the submitter wait for room, so no write is lost.
+ */
+public class AppExecutors {
+    private static final String TAG = "AppExecutors";
+
+    private static final int CPU_COUNT = Runtime.getRuntime().availableProcessors();
+    private static final int NETWORK_THREADS = 4;
+    // One per request OkHttp may run at once, so its calls never queue here
+    public static final int HTTP_THREADS = 8;
+    private static final int CPU_THREADS = Math.max(2, Math.min(CPU_COUNT - 1, 4));
+    private static final int QUEUE_CAPACITY = 256;
+    private static final int DISK_QUEUE_CAPACITY = 1024;
+    // Logged once when a queue fills past this
+    private static final int QUEUE_WARNING = 128;
+    // Idle threads above the core size are released after this long
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static volatile AppExecutors instance;
+
+    private final InstrumentedExecutor network;
+    private final InstrumentedExecutor http;
+    private final InstrumentedExecutor cpu;
+    private final InstrumentedExecutor disk;
+    private final Executor mainThread;
+
+    public static AppExecutors getInstance() {
+        if (instance == null) {
+            synchronized (AppExecutors.class) {
+                if (instance == null) {
+                    instance = new AppExecutors();
+                }
+            }
+        }
+        return instance;
+    }
+
+    private AppExecutors() {
+        network = new InstrumentedExecutor("net", NETWORK_THREADS, QUEUE_CAPACITY, new FailPolicy());
+        http = new InstrumentedExecutor("http", HTTP_THREADS, QUEUE_CAPACITY, new FailPolicy());
+        cpu = new InstrumentedExecutor("cpu", CPU_THREADS, QUEUE_CAPACITY, new FailPolicy());
+        disk = new InstrumentedExecutor("disk", 1, DISK_QUEUE_CAPACITY, new WaitPolicy());
+        Handler handler = new Handler(Looper.getMainLooper());
+        mainThread = handler::post;
+    }
+
+    public ExecutorService network() {
+        return network;
+    }
+
+    public ExecutorService http() {
+        return http;
+    }
+
+    public ExecutorService cpu() {
+        return cpu;
+    }
+
+    public ExecutorService disk() {
+        return disk;
+    }
+
+    public Executor mainThread() {
+        return mainThread;
+    }
+
+    /**
+     * One line per pool with queue depth and task counters
+     */
+    public String getStats() {
+        return network.stats() + "\n" + http.stats() + "\n" + cpu.stats() + "\n" + disk.stats();
+    }
+
+    public void logStats() {
+        Log.d(TAG, getStats());
+    }
+
+    /**
+     * Fixed-size pool with a bounded queue, named threads and counters for
+     * submitted, completed and rejected tasks, queue depth, queue wait and
+     * run time.
+     */
+    private static class InstrumentedExecutor extends ThreadPoolExecutor {
+        private final String name;
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong totalRunNanos = new AtomicLong();
+        private final AtomicLong totalWaitNanos = new AtomicLong();
+        private final AtomicInteger maxQueued = new AtomicInteger();
+        private final AtomicLong rejected = new AtomicLong();
+        private final ThreadLocal<Long> startNanos = new ThreadLocal<>();
+
+        InstrumentedExecutor(String name, int threads, int capacity, RejectedExecutionHandler policy) {
+            super(threads, threads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(capacity), new NamedThreadFactory(name), policy);
+            this.name = name;
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            submitted.incrementAndGet();
+            super.execute(new TimedTask(command));
+            int queued = getQueue().size();
+            int max = maxQueued.get();
+            while (queued > max && !maxQueued.compareAndSet(max, queued)) {
+                max = maxQueued.get();
+            }
+            if (queued > QUEUE_WARNING && max <= QUEUE_WARNING) {
+                Log.w(TAG, "Queue backing up: " + stats());
+            }
+        }
+
+        @Override
+        protected void beforeExecute(Thread thread, Runnable task) {
+            super.beforeExecute(thread, task);
+            long now = System.nanoTime();
+            if (task instanceof TimedTask) {
+                totalWaitNanos.addAndGet(now - ((TimedTask) task).queuedAt);
+            }
+            startNanos.set(now);
+        }
+
+        @Override
+        protected void afterExecute(Runnable task, Throwable error) {
+            super.afterExecute(task, error);
+            Long start = startNanos.get();
+            if (start != null) {
+                totalRunNanos.addAndGet(System.nanoTime() - start);
+                startNanos.remove();
+            }
+            if (error != null) {
+                Log.e(TAG, "Task failed on " + name + " pool", error);
+            }
+        }
+
+        String stats() {
+            long completed = getCompletedTaskCount();
+            long avgWaitMs = completed > 0 ? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / completed) : 0;
+            long avgRunMs = completed > 0 ? TimeUnit.NANOSECONDS.toMillis(totalRunNanos.get() / completed) : 0;
+            return String.format(Locale.US,
+                    "%s: threads=%d active=%d queued=%d maxQueued=%d submitted=%d completed=%d "
+                            + "rejected=%d avgWait=%dms avgRun=%dms",
+                    name, getPoolSize(), getActiveCount(), getQueue().size(), maxQueued.get(),
+                    submitted.get(), completed, rejected.get(), avgWaitMs, avgRunMs);
+        }
+    }
+
+    // network(), http() and cpu(): a future is cancelled so its callbacks see the
+    // failure, anything else is refused with an exception
+    private static class FailPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            InstrumentedExecutor pool = (InstrumentedExecutor) executor;
+            pool.rejected.incrementAndGet();
+            Log.w(TAG, "Queue full, rejecting task: " + pool.stats());
+            Runnable original = task instanceof TimedTask ? ((TimedTask) task).task : task;
+            if (original instanceof Future) {
+                ((Future<?>) original).cancel(false);
+                return;
+            }
+            throw new RejectedExecutionException("Queue full on " + pool.name + " pool");
+        }
+    }
+
+    // disk(): wait for room so writes keep their order and none is dropped.
+    // The disk thread itself cannot wait for its own queue, so it is refused.
+    private static class WaitPolicy implements RejectedExecutionHandler {
+        private final FailPolicy fail = new FailPolicy();
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (Thread.currentThread().getName().startsWith("krishield-disk-")) {
+                fail.rejectedExecution(task, executor);
+                return;
+            }
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                fail.rejectedExecution(task, executor);
+            }
+        }
+    }
+
+    // Remembers when a task was queued so the pool can report wait times
+    private static class TimedTask implements Runnable {
+        final Runnable task;
+        final long queuedAt = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            this.prefix = "krishield-" + name + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
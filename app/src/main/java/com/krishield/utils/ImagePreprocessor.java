@@ -0,0 +1,176 @@
+package com.krishield.utils;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Matrix;
+import android.media.ExifInterface;
+import android.net.Uri;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Prepares crop photos for upload: sampled decoding, downscaling to a pixel
+ * budget, EXIF orientation fix and compression. All methods block, so call
+ * them from a background thread.
+ */
+public class ImagePreprocessor {
+    private static final String TAG = "ImagePreprocessor";
+
+    // ~1 MP is plenty for leaf/disease detail and keeps uploads small on 2G/3G
+    public static final int DEFAULT_MAX_PIXELS = 1024 * 1024;
+    private static final int QUALITY = 80;
+
+    private final ContentResolver resolver;
+    private final int maxPixels;
+
+    // Reused across images: reset() keeps the backing array, so encodes do not
+    // regrow a fresh buffer each time
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256 * 1024);
+
+    public static class Result {
+        public final Bitmap bitmap;
+        public final byte[] bytes;
+        public final String mimeType;
+
+        Result(Bitmap bitmap, byte[] bytes, String mimeType) {
+            this.bitmap = bitmap;
+            this.bytes = bytes;
+            this.mimeType = mimeType;
+        }
+    }
+
+    public ImagePreprocessor(Context context) {
+        this(context, DEFAULT_MAX_PIXELS);
+    }
+
+    public ImagePreprocessor(Context context, int maxPixels) {
+        this.resolver = context.getApplicationContext().getContentResolver();
+        this.maxPixels = maxPixels;
+    }
+
+    /**
+     * Decode an image from a content Uri without loading it at full resolution
+     */
+    public synchronized Result fromUri(Uri uri) throws IOException {
+        BitmapFactory.Options bounds = new BitmapFactory.Options();
+        bounds.inJustDecodeBounds = true;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            BitmapFactory.decodeStream(in, null, bounds);
+        }
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) {
+            throw new IOException("Unsupported image");
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize(bounds.outWidth, bounds.outHeight);
+        Bitmap sampled;
+        try (InputStream in = resolver.openInputStream(uri)) {
+            sampled = BitmapFactory.decodeStream(in, null, options);
+        }
+        if (sampled == null) {
+            throw new IOException("Could not decode image");
+        }
+
+        return encode(transform(sampled, readOrientation(uri)));
+    }
+
+    /**
+     * Downscale and compress an already decoded bitmap (e.g. camera thumbnail)
+     */
+    public synchronized Result fromBitmap(Bitmap bitmap) {
+        return encode(transform(bitmap, ExifInterface.ORIENTATION_NORMAL));
+    }
+
+    // Largest power of two that still leaves at least maxPixels to scale from
+    private int sampleSize(int width, int height) {
+        int sample = 1;
+        while ((long) (width / (sample * 2)) * (height / (sample * 2)) >= maxPixels) {
+            sample *= 2;
+        }
+        return sample;
+    }
+
+    private int readOrientation(Uri uri) {
+        try (InputStream in = resolver.openInputStream(uri)) {
+            if (in == null) {
+                return ExifInterface.ORIENTATION_NORMAL;
+            }
+            return new ExifInterface(in).getAttributeInt(ExifInterface.TAG_ORIENTATION,
+                    ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read EXIF orientation", e);
+            return ExifInterface.ORIENTATION_NORMAL;
+        }
+    }
+
+    /**
+     * Scale to the pixel budget and apply EXIF orientation in a single pass
+     */
+    private Bitmap transform(Bitmap source, int orientation) {
+        Matrix matrix = new Matrix();
+
+        long pixels = (long) source.getWidth() * source.getHeight();
+        if (pixels > maxPixels) {
+            float scale = (float) Math.sqrt((double) maxPixels / pixels);
+            matrix.postScale(scale, scale);
+        }
+
+        switch (orientation) {
+            case ExifInterface.ORIENTATION_ROTATE_90:
+                matrix.postRotate(90);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_180:
+                matrix.postRotate(180);
+                break;
+            case ExifInterface.ORIENTATION_ROTATE_270:
+                matrix.postRotate(270);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                matrix.postScale(1, -1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                matrix.postRotate(90);
+                matrix.postScale(-1, 1);
+                break;
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                matrix.postRotate(270);
+                matrix.postScale(-1, 1);
+                break;
+            default:
+                break;
+        }
+
+        if (matrix.isIdentity()) {
+            return source;
+        }
+        Bitmap result = Bitmap.createBitmap(source, 0, 0, source.getWidth(), source.getHeight(), matrix, true);
+        if (result != source) {
+            source.recycle();
+        }
+        return result;
+    }
+
+    private Result encode(Bitmap bitmap) {
+        buffer.reset();
+        Bitmap.CompressFormat format;
+        String mimeType;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            format = Bitmap.CompressFormat.WEBP_LOSSY;
+            mimeType = "image/webp";
+        } else {
+            format = Bitmap.CompressFormat.JPEG;
+            mimeType = "image/jpeg";
+        }
+        bitmap.compress(format, QUALITY, buffer);
+        return new Result(bitmap, buffer.toByteArray(), mimeType);
+    }
+}
@@ -0,0 +1,88 @@
+package com.krishield.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.NonNull;
+import androidx.lifecycle.Lifecycle;
+import androidx.lifecycle.LifecycleEventObserver;
+import androidx.lifecycle.LifecycleOwner;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+
+/**
+ * Ties background requests to a screen. Tracked requests are cancelled when
+ * the owner is destroyed, and results posted through runOnUiThread are
+ * dropped once it is gone.
+ */
+public class RequestScope implements LifecycleEventObserver {
+    private final Set<Future<?>> active = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private volatile boolean destroyed;
+
+    public RequestScope(LifecycleOwner owner) {
+        owner.getLifecycle().addObserver(this);
+    }
+
+    /**
+     * Cancel the request when the owner is destroyed. Returns the same future.
+     */
+    public <F extends ListenableFuture<?>> F track(F request) {
+        if (request == null || request.isDone()) {
+            return request;
+        }
+        if (destroyed) {
+            request.cancel(true);
+            return request;
+        }
+        active.add(request);
+        request.addListener(() -> active.remove(request), MoreExecutors.directExecutor());
+        // The owner may have been destroyed between the check and add
+        if (destroyed && active.remove(request)) {
+            request.cancel(true);
+        }
+        return request;
+    }
+
+    /**
+     * Run on the main thread, unless the owner has been destroyed by then
+     */
+    public void runOnUiThread(Runnable action) {
+        if (destroyed) {
+            return;
+        }
+        mainHandler.post(() -> {
+            if (!destroyed) {
+                action.run();
+            }
+        });
+    }
+
+    public boolean isActive() {
+        return !destroyed;
+    }
+
+    @Override
+    public void onStateChanged(@NonNull LifecycleOwner source, @NonNull Lifecycle.Event event) {
+        if (event != Lifecycle.Event.ON_DESTROY) {
+            return;
+        }
+        destroyed = true;
+        source.getLifecycle().removeObserver(this);
+        mainHandler.removeCallbacksAndMessages(null);
+
+        List<Future<?>> requests = new ArrayList<>(active);
+        active.clear();
+        for (Future<?> request : requests) {
+            request.cancel(true);
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.krishield.utils;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Normalises Hindi / English / Hinglish text into comparable Latin tokens.
+ *
+ * Devanagari is transliterated to a loose Latin spelling, vowel length and
+ * doubled letters are collapsed, common question words are dropped and a small
+ * farming vocabulary is mapped to one English term, so "गेहूं में रतुआ",
+ * "gehun ratua" and "wheat rust" all end up as [wheat, rust].
+ */
+public class TextNormalizer {
+
+    // Folded with foldLatin, like the tokens they are checked against
+    private static final Set<String> STOPWORDS = folded(Arrays.asList(
+            // English
+            "a", "an", "the", "is", "are", "was", "what", "which", "how", "why", "when", "where", "who",
+            "do", "does", "did", "i", "my", "me", "we", "our", "you", "your", "to", "for", "in", "on", "of",
+            "and", "or", "with", "can", "could", "should", "will", "would", "it", "this", "that", "please",
+            "tell", "about", "best", "give", "there", "be", "from", "at", "by", "any", "much", "many",
+            // Hindi / Hinglish (after transliteration and key folding)
+            "kya", "kaise", "kese", "kyu", "kyun", "hai", "hain", "he", "ho", "me", "mein", "men", "ki", "ka",
+            "ke", "ko", "se", "par", "pr", "aur", "or", "ya", "mera", "meri", "mere", "hamari", "hamare",
+            "karen", "kare", "kar", "karna", "karne", "lie", "liye", "bataen", "batao", "bataiye", "koi",
+            "kon", "kaun", "kab", "kahan", "ye", "yah", "vah", "vo", "tha", "thi", "raha", "rahi", "rahe",
+            "chahie", "chahiye", "jankari", "krpya", "kripya", "dena", "dene", "deni"));
+
+    // Folded spellings -> canonical English farming term
+    private static final Map<String, String> SYNONYMS = new HashMap<>();
+
+    static {
+        synonyms("wheat", "gehun", "gehu", "gehum", "gahu");
+        synonyms("rice", "dhan", "chaval", "paddy");
+        synonyms("cotton", "kapas");
+        synonyms("mustard", "sarson", "sarso");
+        synonyms("tomato", "tamatar");
+        synonyms("potato", "alu");
+        synonyms("onion", "pyaj", "pyaz");
+        synonyms("sugarcane", "ganna");
+        synonyms("maize", "makka", "corn");
+        synonyms("urea", "yuria", "yuriya");
+        synonyms("fertilizer", "khad", "fertiliser", "urvarak");
+        synonyms("pest", "kit", "kide", "kida", "kire", "kira", "keet", "insect", "keeda");
+        synonyms("disease", "rog", "bimari");
+        synonyms("rust", "ratua", "gerui");
+        synonyms("dose", "dosage", "matra", "quantity");
+        synonyms("irrigation", "sinchai", "pani", "water", "watering");
+        synonyms("seed", "bij", "beej");
+        synonyms("soil", "miti", "mitti");
+        synonyms("price", "bhav", "rate", "dam");
+        synonyms("spray", "chhidkav");
+        synonyms("treatment", "ilaj", "upchar", "cure", "control", "remedy");
+    }
+
+    private static Set<String> folded(List<String> words) {
+        Set<String> result = new HashSet<>();
+        for (String word : words) {
+            result.add(foldLatin(word));
+        }
+        return result;
+    }
+
+    private static void synonyms(String canonical, String... variants) {
+        SYNONYMS.put(foldLatin(canonical), canonical);
+        for (String variant : variants) {
+            SYNONYMS.put(foldLatin(variant), canonical);
+        }
+    }
+
+    /**
+     * Content tokens of a question, in order
+     */
+    public static List<String> tokens(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        for (String raw : latinWords(text)) {
+            if (raw.isEmpty()) {
+                continue;
+            }
+            if (isNumber(raw)) {
+                result.add(raw);
+                continue;
+            }
+            String token = foldLatin(raw);
+            if (isStopword(token)) {
+                continue;
+            }
+            String canonical = SYNONYMS.get(token);
+            if (canonical == null && token.length() > 3 && token.endsWith("s")) {
+                canonical = SYNONYMS.get(token.substring(0, token.length() - 1));
+                if (canonical == null) {
+                    token = token.substring(0, token.length() - 1);
+                }
+            }
+            result.add(canonical != null ? canonical : token);
+        }
+        return result;
+    }
+
+    /**
+     * Every word of the text as a folded Latin key, in order. Unlike tokens()
+     * nothing is dropped or mapped, so the keys also work as search prefixes.
+     */
+    public static List<String> words(String text) {
+        List<String> result = new ArrayList<>();
+        if (text == null) {
+            return result;
+        }
+        for (String raw : latinWords(text)) {
+            if (!raw.isEmpty()) {
+                result.add(foldLatin(raw));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Canonical English term for a folded farming word, or null
+     */
+    public static String synonym(String foldedWord) {
+        return SYNONYMS.get(foldedWord);
+    }
+
+    /**
+     * A folded word without its vowels after the first letter, so spellings
+     * that differ only in vowels ("pnjab" from Devanagari, "punjab") meet
+     */
+    public static String consonantKey(String foldedWord) {
+        StringBuilder out = new StringBuilder(foldedWord.length());
+        for (int i = 0; i < foldedWord.length(); i++) {
+            char c = foldedWord.charAt(i);
+            if (i == 0 || !isVowel(c)) {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Whether a folded word (see foldLatin) is a stopword
+     */
+    public static boolean isStopword(String foldedWord) {
+        return STOPWORDS.contains(foldedWord);
+    }
+
+    private static String[] latinWords(String text) {
+        return transliterate(Normalizer.normalize(text, Normalizer.Form.NFKC))
+                .toLowerCase(Locale.ROOT)
+                .split("[^a-z0-9]+");
+    }
+
+    /**
+     * Loose phonetic key for a Latin word: long vowels and doubled letters are
+     * collapsed so that different romanisations of a Hindi word coincide.
+     * Words with digits are kept as they are, so "100" and "10" stay apart.
+     */
+    public static String foldLatin(String word) {
+        if (isNumber(word)) {
+            return word.toLowerCase(Locale.ROOT);
+        }
+        String w = word.toLowerCase(Locale.ROOT)
+                .replace("ee", "i")
+                .replace("oo", "u")
+                .replace("aa", "a")
+                .replace("w", "v")
+                .replace("ph", "f")
+                .replace("z", "j");
+        StringBuilder out = new StringBuilder(w.length());
+        char previous = 0;
+        for (int i = 0; i < w.length(); i++) {
+            char c = w.charAt(i);
+            if (c != previous) {
+                out.append(c);
+            }
+            previous = c;
+        }
+        // Trailing nasal "n" (anusvara) is optional in romanised Hindi; short
+        // English words such as "rain" keep theirs
+        if (out.length() > 4 && out.charAt(out.length() - 1) == 'n' && isVowel(out.charAt(out.length() - 2))) {
+            out.setLength(out.length() - 1);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Whether the token contains a digit, such as a dose or an amount
+     */
+    public static boolean isNumber(String token) {
+        for (int i = 0; i < token.length(); i++) {
+            if (Character.isDigit(token.charAt(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isVowel(char c) {
+        return c == 'a' || c == 'e' || c == 'i' || c == 'o' || c == 'u';
+    }
+
+    /**
+     * Transliterate Devanagari to a simple Latin spelling. Other characters are
+     * passed through unchanged; Devanagari digits become ASCII digits.
+     */
+    public static String transliterate(String text) {
+        StringBuilder out = new StringBuilder(text.length() + 8);
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            String consonant = consonant(c);
+            if (consonant != null) {
+                // Nukta changes the sound of a few consonants
+                if (i + 1 < length && text.charAt(i + 1) == '़') {
+                    consonant = nukta(c, consonant);
+                    i++;
+                }
+                out.append(consonant);
+                char next = i + 1 < length ? text.charAt(i + 1) : 0;
+                if (next == '्') {
+                    // Virama: no inherent vowel
+                    i++;
+                } else if (matra(next) == null && isDevanagariLetter(next)) {
+                    // Inherent "a" inside a word; dropped at the end (schwa deletion)
+                    out.append('a');
+                }
+                continue;
+            }
+            String vowel = independentVowel(c);
+            if (vowel == null) {
+                vowel = matra(c);
+            }
+            if (vowel != null) {
+                out.append(vowel);
+            } else if (c == 'ं' || c == 'ँ') {
+                out.append('n'); // anusvara / chandrabindu
+            } else if (c == 'ः') {
+                out.append('h'); // visarga
+            } else if (c >= '०' && c <= '९') {
+                out.append((char) ('0' + (c - '०')));
+            } else if (c == '़' || c == '्') {
+                // Stray nukta / virama
+            } else if (c == '।' || c == '॥') {
+                out.append('.');
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    private static boolean isDevanagariLetter(char c) {
+        return consonant(c) != null;
+    }
+
+    private static String consonant(char c) {
+        switch (c) {
+            case 'क': return "k";
+            case 'ख': return "kh";
+            case 'ग': return "g";
+            case 'घ': return "gh";
+            case 'ङ': return "n";
+            case 'च': return "ch";
+            case 'छ': return "chh";
+            case 'ज': return "j";
+            case 'झ': return "jh";
+            case 'ञ': return "n";
+            case 'ट': return "t";
+            case 'ठ': return "th";
+            case 'ड': return "d";
+            case 'ढ': return "dh";
+            case 'ण': return "n";
+            case 'त': return "t";
+            case 'थ': return "th";
+            case 'द': return "d";
+            case 'ध': return "dh";
+            case 'न': return "n";
+            case 'प': return "p";
+            case 'फ': return "ph";
+            case 'ब': return "b";
+            case 'भ': return "bh";
+            case 'म': return "m";
+            case 'य': return "y";
+            case 'र': return "r";
+            case 'ल': return "l";
+            case 'व': return "v";
+            case 'श': return "sh";
+            case 'ष': return "sh";
+            case 'स': return "s";
+            case 'ह': return "h";
+            // Precomposed nukta forms
+            case 'क़': return "q";
+            case 'ख़': return "kh";
+            case 'ग़': return "g";
+            case 'ज़': return "z";
+            case 'ड़': return "r";
+            case 'ढ़': return "rh";
+            case 'फ़': return "f";
+            default: return null;
+        }
+    }
+
+    private static String nukta(char base, String fallback) {
+        switch (base) {
+            case 'क': return "q";
+            case 'ज': return "z";
+            case 'ड': return "r";
+            case 'ढ': return "rh";
+            case 'फ': return "f";
+            default: return fallback;
+        }
+    }
+
+    private static String independentVowel(char c) {
+        switch (c) {
+            case 'अ': return "a";
+            case 'आ': return "aa";
+            case 'इ': return "i";
+            case 'ई': return "ee";
+            case 'उ': return "u";
+            case 'ऊ': return "oo";
+            case 'ऋ': return "ri";
+            case 'ए': return "e";
+            case 'ऐ': return "ai";
+            case 'ओ': return "o";
+            case 'औ': return "au";
+            default: return null;
+        }
+    }
+
+    private static String matra(char c) {
+        switch (c) {
+            case 'ा': return "aa";
+            case 'ि': return "i";
+            case 'ी': return "ee";
+            case 'ु': return "u";
+            case 'ू': return "oo";
+            case 'ृ': return "ri";
+            case 'े': return "e";
+            case 'ै': return "ai";
+            case 'ो': return "o";
+            case 'ौ': return "au";
+            default: return null;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.krishield.syncserver;
+
+import com.krishield.syncserver.Frame.WireMessage;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Messages of every community in memory, numbered 1, 2, 3... per community.
+ *
+ * Only the newest MAX_MESSAGES of a community are kept; a client whose
+ * cursor is older gets the oldest retained message next. Client ids are
+ * remembered for the retained messages so a retried publish is not stored
+ * twice.
+ */
+class CommunityStore {
+    static final int MAX_MESSAGES = 50_000;
+
+    private final Map<String, Community> communities = new ConcurrentHashMap<>();
+
+    private static class Community {
+        // Retained messages start at index head; dropped ones are cleared in bulk
+        final List<WireMessage> messages = new ArrayList<>();
+        int head;
+        final Set<String> clientIds = new HashSet<>();
+        // Seq of the message at head
+        long firstSeq = 1;
+
+        int size() {
+            return messages.size() - head;
+        }
+    }
+
+    /**
+     * Store the messages that are new and return them with their seq.
+     * Already stored ones (same clientId) are skipped.
+     */
+    List<WireMessage> append(String communityId, List<WireMessage> incoming) {
+        Community community = communities.computeIfAbsent(communityId, id -> new Community());
+        List<WireMessage> stored = new ArrayList<>();
+        synchronized (community) {
+            for (WireMessage message : incoming) {
+                if (message.clientId != null && !community.clientIds.add(message.clientId)) {
+                    continue;
+                }
+                message.seq = community.firstSeq + community.size();
+                community.messages.add(message);
+                stored.add(message);
+            }
+            while (community.size() > MAX_MESSAGES) {
+                WireMessage dropped = community.messages.set(community.head++, null);
+                community.clientIds.remove(dropped.clientId);
+                community.firstSeq++;
+            }
+            if (community.head > MAX_MESSAGES / 2) {
+                community.messages.subList(0, community.head).clear();
+                community.head = 0;
+            }
+        }
+        return stored;
+    }
+
+    /**
+     * Up to limit messages with a seq above cursor, oldest first
+     */
+    List<WireMessage> after(String communityId, long cursor, int limit) {
+        Community community = communities.get(communityId);
+        List<WireMessage> page = new ArrayList<>();
+        if (community == null) {
+            return page;
+        }
+        synchronized (community) {
+            long skip = Math.max(0, cursor + 1 - community.firstSeq);
+            for (long i = skip; i < community.size() && page.size() < limit; i++) {
+                page.add(community.messages.get(community.head + (int) i));
+            }
+        }
+        return page;
+    }
+}
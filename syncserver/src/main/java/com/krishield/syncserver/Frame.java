@@ -0,0 +1,122 @@
+package com.krishield.syncserver;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One JSON text frame of the sync protocol. Only the fields used by its
+ * type are set.
+ *
+ * Client to server:
+ * - subscribe: communityId, after (deltas start with the message after this seq)
+ * - unsubscribe: communityId
+ * - credit: count, how many more delta frames the client can take
+ * - publish: communityId, messages without seq
+ * - members: communityId, counter, opId (echoed back to the sender); or
+ *   counters with many communities at once, without opId
+ *
+ * Server to client:
+ * - delta: communityId, messages with seq, oldest first
+ * - ack: communityId, clientIds of the published messages now stored
+ * - members: communityId, merged counter; opId only in the reply to its sender.
+ *   A batch is answered with one frame of counters, holding only those the
+ *   sender is missing something from.
+ * - error: text
+ */
+public class Frame {
+    public static final String SUBSCRIBE = "subscribe";
+    public static final String UNSUBSCRIBE = "unsubscribe";
+    public static final String CREDIT = "credit";
+    public static final String PUBLISH = "publish";
+    public static final String DELTA = "delta";
+    public static final String ACK = "ack";
+    public static final String MEMBERS = "members";
+    public static final String ERROR = "error";
+
+    public String type;
+    public String communityId;
+    public Long after;
+    public Integer count;
+    public List<WireMessage> messages;
+    public List<String> clientIds;
+    public String text;
+    // Member counter: replica id -> {joins, leaves}
+    public Map<String, long[]> counter;
+    // Batched member counters: community id -> counter
+    public Map<String, Map<String, long[]>> counters;
+    public Long opId;
+
+    public static Frame subscribe(String communityId, long after) {
+        Frame frame = new Frame(SUBSCRIBE);
+        frame.communityId = communityId;
+        frame.after = after;
+        return frame;
+    }
+
+    public static Frame credit(int count) {
+        Frame frame = new Frame(CREDIT);
+        frame.count = count;
+        return frame;
+    }
+
+    public static Frame publish(String communityId, List<WireMessage> messages) {
+        Frame frame = new Frame(PUBLISH);
+        frame.communityId = communityId;
+        frame.messages = messages;
+        return frame;
+    }
+
+    public static Frame delta(String communityId, List<WireMessage> messages) {
+        Frame frame = new Frame(DELTA);
+        frame.communityId = communityId;
+        frame.messages = messages;
+        return frame;
+    }
+
+    public static Frame ack(String communityId, List<String> clientIds) {
+        Frame frame = new Frame(ACK);
+        frame.communityId = communityId;
+        frame.clientIds = clientIds;
+        return frame;
+    }
+
+    public static Frame members(String communityId, Map<String, long[]> counter, Long opId) {
+        Frame frame = new Frame(MEMBERS);
+        frame.communityId = communityId;
+        frame.counter = counter;
+        frame.opId = opId;
+        return frame;
+    }
+
+    public static Frame members(Map<String, Map<String, long[]>> counters) {
+        Frame frame = new Frame(MEMBERS);
+        frame.counters = counters;
+        return frame;
+    }
+
+    public static Frame error(String text) {
+        Frame frame = new Frame(ERROR);
+        frame.text = text;
+        return frame;
+    }
+
+    public Frame() {
+    }
+
+    private Frame(String type) {
+        this.type = type;
+    }
+
+    /**
+     * A chat message. seq is assigned by the server, clientId by the sender
+     * so a publish retried after a reconnect is stored only once.
+     */
+    public static class WireMessage {
+        public long seq;
+        public String clientId;
+        public String senderId;
+        public String senderName;
+        public String text;
+        public long timestamp;
+    }
+}
@@ -0,0 +1,393 @@
+package com.krishield.syncserver;
+
+import com.google.gson.Gson;
+import com.krishield.syncserver.Frame.WireMessage;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+
+/**
+ * Throughput and reconnect test for the sync protocol.
+ *
+ * Every simulated client subscribes to all communities and publishes its
+ * share of messages in batches, while its connection is cut at random a
+ * few times. A client is done when it has every message of every community.
+ * Each one checks that seqs arrive without gaps or repeats across
+ * reconnects, which is what the app relies on to resume from its cursor.
+ * Clients also join and leave communities and resend their member counters
+ * after every reconnect; with an embedded server the merged counts must
+ * come out exact.
+ *
+ * Options as name=value: clients, communities, messages (per client), batch,
+ * drops (per client), timeout (seconds) and url. Without url an embedded
+ * server is started. Exits with 1 if any client saw a gap or did not
+ * finish, or the member counts are off.
+ */
+public class LoadTest {
+    private static final int CREDIT_WINDOW = 8;
+    // Publishers wait while more than this is queued on their socket
+    private static final long MAX_QUEUED_BYTES = 64 * 1024;
+    private static final int MAX_LATENCY_MS = 60_000;
+
+    private final Gson gson = new Gson();
+    private final OkHttpClient http = new OkHttpClient.Builder()
+            .readTimeout(0, TimeUnit.MILLISECONDS)
+            .build();
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final Random random = new Random();
+
+    private final String url;
+    private final int communities;
+    private final long[] expected;
+    private final CountDownLatch finished;
+    private volatile boolean running = true;
+
+    private final AtomicIntegerArray latencies = new AtomicIntegerArray(MAX_LATENCY_MS + 1);
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong gaps = new AtomicLong();
+    private final AtomicLong repeats = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final List<SimClient> simClients = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split > 0) {
+                options.put(arg.substring(0, split), arg.substring(split + 1));
+            }
+        }
+        int clients = Integer.parseInt(options.getOrDefault("clients", "50"));
+        int communities = Integer.parseInt(options.getOrDefault("communities", "5"));
+        int messages = Integer.parseInt(options.getOrDefault("messages", "200"));
+        int batch = Integer.parseInt(options.getOrDefault("batch", "20"));
+        int drops = Integer.parseInt(options.getOrDefault("drops", "3"));
+        int timeout = Integer.parseInt(options.getOrDefault("timeout", "120"));
+
+        SyncServer server = null;
+        String url = options.get("url");
+        if (url == null) {
+            server = new SyncServer(0);
+            server.startAndWait();
+            url = "ws://localhost:" + server.getPort();
+        }
+
+        LoadTest test = new LoadTest(url, clients, communities, messages);
+        boolean ok = test.run(clients, messages, batch, drops, timeout);
+        if (server != null) {
+            System.out.printf("Server: %d messages in, %d out%n", server.getMessagesIn(), server.getMessagesOut());
+            ok &= test.checkMembers(server);
+            server.stop(1000);
+        }
+        System.exit(ok ? 0 : 1);
+    }
+
+    private LoadTest(String url, int clients, int communities, int messages) {
+        this.url = url;
+        this.communities = communities;
+        this.expected = new long[communities];
+        for (int client = 0; client < clients; client++) {
+            for (int i = 0; i < messages; i++) {
+                expected[communityOf(client, i)]++;
+            }
+        }
+        this.finished = new CountDownLatch(clients);
+    }
+
+    private int communityOf(int client, int message) {
+        return (client + message) % communities;
+    }
+
+    private static String communityId(int community) {
+        return "load-" + community;
+    }
+
+    private boolean run(int clients, int messages, int batch, int drops, int timeout) throws InterruptedException {
+        System.out.printf("%d clients, %d communities, %d messages each in batches of %d, %d drops each, %s%n",
+                clients, communities, messages, batch, drops, url);
+
+        for (int i = 0; i < clients; i++) {
+            SimClient client = new SimClient(i);
+            simClients.add(client);
+            client.connect();
+            for (int d = 0; d < drops; d++) {
+                scheduler.schedule(client::drop, random.nextInt(5000), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        long start = System.nanoTime();
+        List<Thread> publishers = new ArrayList<>();
+        for (SimClient client : simClients) {
+            Thread publisher = new Thread(() -> client.publishAll(messages, batch), "publisher-" + client.index);
+            publishers.add(publisher);
+            publisher.start();
+        }
+
+        boolean done = finished.await(timeout, TimeUnit.SECONDS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        running = false;
+        for (SimClient client : simClients) {
+            client.close();
+        }
+        scheduler.shutdownNow();
+        http.dispatcher().executorService().shutdown();
+
+        long published = (long) clients * messages;
+        System.out.printf("Published %d, delivered %d in %.2f s: %.0f deliveries/s%n",
+                published, delivered.get(), seconds, delivered.get() / seconds);
+        System.out.printf("Latency ms: p50 %d, p95 %d, p99 %d, max %d%n",
+                percentile(0.50), percentile(0.95), percentile(0.99), percentile(1.0));
+        System.out.printf("Reconnects %d, gaps %d, repeats %d, unfinished clients %d%n",
+                reconnects.get(), gaps.get(), repeats.get(), finished.getCount());
+        return done && gaps.get() == 0;
+    }
+
+    // Counters are resent on reconnect, so the last ones may still be in flight
+    private boolean checkMembers(SyncServer server) throws InterruptedException {
+        long[] expectedMembers = new long[communities];
+        for (SimClient client : simClients) {
+            for (int c = 0; c < communities; c++) {
+                expectedMembers[c] += client.memberCounts[c][0] - client.memberCounts[c][1];
+            }
+        }
+        long deadline = System.currentTimeMillis() + 5000;
+        boolean exact;
+        do {
+            exact = true;
+            for (int c = 0; c < communities; c++) {
+                exact &= server.getMemberCount(communityId(c)) == expectedMembers[c];
+            }
+        } while (!exact && System.currentTimeMillis() < deadline && sleepBriefly());
+        for (int c = 0; c < communities; c++) {
+            System.out.printf("Members of %s: expected %d, server %d%n",
+                    communityId(c), expectedMembers[c], server.getMemberCount(communityId(c)));
+        }
+        return exact;
+    }
+
+    private static boolean sleepBriefly() {
+        sleep(50);
+        return true;
+    }
+
+    private int percentile(double fraction) {
+        long total = 0;
+        for (int i = 0; i < latencies.length(); i++) {
+            total += latencies.get(i);
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * fraction));
+        long seen = 0;
+        for (int i = 0; i < latencies.length(); i++) {
+            seen += latencies.get(i);
+            if (seen >= rank) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * One simulated app: a socket, a cursor per community and the published
+     * messages not yet acknowledged
+     */
+    private class SimClient extends WebSocketListener {
+        final int index;
+        final String senderId = UUID.randomUUID().toString();
+        final long[] cursors = new long[communities];
+        // Client id -> community index, for resending after a reconnect
+        final Map<String, Integer> unackedCommunity = new LinkedHashMap<>();
+        final Map<String, WireMessage> unacked = new LinkedHashMap<>();
+        // Per community {joins, leaves} of this client's replica
+        final long[][] memberCounts = new long[communities][2];
+        volatile WebSocket socket;
+        boolean complete;
+
+        SimClient(int index) {
+            this.index = index;
+        }
+
+        void connect() {
+            http.newWebSocket(new Request.Builder().url(url).build(), this);
+        }
+
+        void drop() {
+            WebSocket current = socket;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        void close() {
+            WebSocket current = socket;
+            if (current != null) {
+                current.close(1000, null);
+            }
+        }
+
+        void publishAll(int messages, int batch) {
+            for (int i = 0; i < messages; i += batch) {
+                Map<Integer, List<WireMessage>> byCommunity = new HashMap<>();
+                for (int j = i; j < Math.min(messages, i + batch); j++) {
+                    WireMessage message = new WireMessage();
+                    message.clientId = UUID.randomUUID().toString();
+                    message.senderId = senderId;
+                    message.senderName = "Farmer " + index;
+                    message.text = "Message " + j + " from farmer " + index;
+                    message.timestamp = System.currentTimeMillis();
+                    int community = communityOf(index, j);
+                    byCommunity.computeIfAbsent(community, c -> new ArrayList<>()).add(message);
+                    synchronized (this) {
+                        unacked.put(message.clientId, message);
+                        unackedCommunity.put(message.clientId, community);
+                    }
+                }
+
+                WebSocket current;
+                while ((current = socket) == null || current.queueSize() > MAX_QUEUED_BYTES) {
+                    if (!running) {
+                        return;
+                    }
+                    sleep(5);
+                }
+                // If the socket drops now, onOpen of the next one resends these
+                for (Map.Entry<Integer, List<WireMessage>> entry : byCommunity.entrySet()) {
+                    send(current, Frame.publish(communityId(entry.getKey()), entry.getValue()));
+                }
+                toggleMembership(current, random.nextInt(communities));
+            }
+        }
+
+        // Join or leave, then send the whole counter as the app does
+        void toggleMembership(WebSocket current, int community) {
+            Frame frame;
+            synchronized (this) {
+                long[] counts = memberCounts[community];
+                counts[counts[0] > counts[1] ? 1 : 0]++;
+                frame = membersFrame(community);
+            }
+            send(current, frame);
+        }
+
+        Frame membersFrame(int community) {
+            Map<String, long[]> counter = new HashMap<>();
+            counter.put(senderId, memberCounts[community].clone());
+            return Frame.members(communityId(community), counter, null);
+        }
+
+        @Override
+        public void onOpen(WebSocket webSocket, Response response) {
+            Map<Integer, List<WireMessage>> resend = new HashMap<>();
+            synchronized (this) {
+                // Subscriptions one by one, member counters in one batch
+                Map<String, Map<String, long[]>> counters = new HashMap<>();
+                for (int c = 0; c < communities; c++) {
+                    send(webSocket, Frame.subscribe(communityId(c), cursors[c]));
+                    counters.put(communityId(c), membersFrame(c).counter);
+                }
+                send(webSocket, Frame.members(counters));
+                for (Map.Entry<String, WireMessage> entry : unacked.entrySet()) {
+                    resend.computeIfAbsent(unackedCommunity.get(entry.getKey()), c -> new ArrayList<>())
+                            .add(entry.getValue());
+                }
+            }
+            send(webSocket, Frame.credit(CREDIT_WINDOW));
+            for (Map.Entry<Integer, List<WireMessage>> entry : resend.entrySet()) {
+                send(webSocket, Frame.publish(communityId(entry.getKey()), entry.getValue()));
+            }
+            socket = webSocket;
+        }
+
+        @Override
+        public void onMessage(WebSocket webSocket, String text) {
+            Frame frame = gson.fromJson(text, Frame.class);
+            if (Frame.DELTA.equals(frame.type)) {
+                onDelta(frame);
+                send(webSocket, Frame.credit(1));
+            } else if (Frame.ACK.equals(frame.type)) {
+                synchronized (this) {
+                    for (String clientId : frame.clientIds) {
+                        unacked.remove(clientId);
+                        unackedCommunity.remove(clientId);
+                    }
+                }
+            } else if (Frame.ERROR.equals(frame.type)) {
+                System.err.println("Client " + index + ": " + frame.text);
+            }
+        }
+
+        private synchronized void onDelta(Frame frame) {
+            int community = Integer.parseInt(frame.communityId.substring("load-".length()));
+            long now = System.currentTimeMillis();
+            for (WireMessage message : frame.messages) {
+                if (message.seq <= cursors[community]) {
+                    repeats.incrementAndGet();
+                    continue;
+                }
+                if (message.seq != cursors[community] + 1) {
+                    gaps.incrementAndGet();
+                }
+                cursors[community] = message.seq;
+                delivered.incrementAndGet();
+                latencies.incrementAndGet((int) Math.min(MAX_LATENCY_MS, Math.max(0, now - message.timestamp)));
+            }
+            if (!complete) {
+                for (int c = 0; c < communities; c++) {
+                    if (cursors[c] < expected[c]) {
+                        return;
+                    }
+                }
+                complete = true;
+                finished.countDown();
+            }
+        }
+
+        @Override
+        public void onClosed(WebSocket webSocket, int code, String reason) {
+            reconnect(webSocket);
+        }
+
+        @Override
+        public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+            reconnect(webSocket);
+        }
+
+        private void reconnect(WebSocket closed) {
+            if (socket == closed) {
+                socket = null;
+            }
+            if (running) {
+                reconnects.incrementAndGet();
+                scheduler.schedule(this::connect, 100 + random.nextInt(400), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void send(WebSocket socket, Frame frame) {
+        socket.send(gson.toJson(frame));
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.krishield.syncserver;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Member counters of every community: replica id -> {joins, leaves}.
+ * Merging keeps the larger value per replica, which is idempotent and
+ * order independent, so retried or stale counters never double-count.
+ */
+class MemberCounters {
+    private final Map<String, Map<String, long[]>> counters = new ConcurrentHashMap<>();
+
+    /**
+     * A copy of the community's counter, empty if unknown
+     */
+    Map<String, long[]> get(String communityId) {
+        Map<String, long[]> counter = counters.get(communityId);
+        if (counter == null) {
+            return new HashMap<>();
+        }
+        synchronized (counter) {
+            return copy(counter);
+        }
+    }
+
+    /**
+     * Merge incoming into the community's counter and return a copy of the result
+     */
+    Map<String, long[]> merge(String communityId, Map<String, long[]> incoming) {
+        Map<String, long[]> counter = counters.computeIfAbsent(communityId, id -> new HashMap<>());
+        synchronized (counter) {
+            for (Map.Entry<String, long[]> entry : incoming.entrySet()) {
+                long[] theirs = entry.getValue();
+                if (entry.getKey() == null || theirs == null || theirs.length != 2
+                        || theirs[0] < 0 || theirs[1] < 0) {
+                    continue;
+                }
+                long[] ours = counter.get(entry.getKey());
+                if (ours == null) {
+                    counter.put(entry.getKey(), new long[] { theirs[0], theirs[1] });
+                } else {
+                    ours[0] = Math.max(ours[0], theirs[0]);
+                    ours[1] = Math.max(ours[1], theirs[1]);
+                }
+            }
+            return copy(counter);
+        }
+    }
+
+    static boolean same(Map<String, long[]> a, Map<String, long[]> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (Map.Entry<String, long[]> entry : a.entrySet()) {
+            long[] other = b.get(entry.getKey());
+            if (other == null || other[0] != entry.getValue()[0] || other[1] != entry.getValue()[1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, long[]> copy(Map<String, long[]> counter) {
+        Map<String, long[]> copy = new HashMap<>();
+        for (Map.Entry<String, long[]> entry : counter.entrySet()) {
+            copy.put(entry.getKey(), entry.getValue().clone());
+        }
+        return copy;
+    }
+}
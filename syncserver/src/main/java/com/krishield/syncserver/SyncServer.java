@@ -0,0 +1,306 @@
+package com.krishield.syncserver;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.krishield.syncserver.Frame.WireMessage;
+
+import org.java_websocket.WebSocket;
+import org.java_websocket.exceptions.WebsocketNotConnectedException;
+import org.java_websocket.handshake.ClientHandshake;
+import org.java_websocket.server.WebSocketServer;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Local stand-in for the Farmers Union sync backend, for development and
+ * load tests. Communities live in memory only.
+ *
+ * Clients subscribe to a community with the seq of the last message they
+ * have, and receive everything after it as delta frames of up to
+ * MAX_DELTA_MESSAGES. Pushes are flow controlled by credit: every delta
+ * frame uses one credit and the client grants more once it has stored the
+ * frame, so a slow client is never flooded. Nothing is queued per client;
+ * its cursor says where to continue.
+ *
+ * Member counts are PN-counters merged per replica with max, so a client
+ * can send its whole counter as often as it likes.
+ *
+ * Run standalone with "gradle :syncserver:run", or embed it:
+ * new SyncServer(port).startAndWait().
+ */
+public class SyncServer extends WebSocketServer {
+    public static final int DEFAULT_PORT = 8787;
+    static final int MAX_DELTA_MESSAGES = 100;
+
+    private final CommunityStore store = new CommunityStore();
+    private final MemberCounters memberCounters = new MemberCounters();
+    private final Gson gson = new Gson();
+    // Community id -> connections subscribed to it
+    private final Map<String, Set<WebSocket>> subscribers = new ConcurrentHashMap<>();
+    private final CountDownLatch started = new CountDownLatch(1);
+
+    private final AtomicLong messagesIn = new AtomicLong();
+    private final AtomicLong messagesOut = new AtomicLong();
+
+    // Per connection state, kept as the connection's attachment
+    private static class Session {
+        // Community id -> seq of the last message sent
+        final Map<String, Long> cursors = new HashMap<>();
+        int credit;
+    }
+
+    public SyncServer(int port) {
+        super(new InetSocketAddress(port));
+        setReuseAddr(true);
+        setTcpNoDelay(true);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        SyncServer server = new SyncServer(port);
+        server.startAndWait();
+        System.out.println("Sync server listening on ws://localhost:" + server.getPort());
+    }
+
+    /**
+     * Start listening and return once the port is bound
+     */
+    public void startAndWait() throws InterruptedException {
+        start();
+        if (!started.await(10, TimeUnit.SECONDS)) {
+            throw new IllegalStateException("Server did not start");
+        }
+    }
+
+    public long getMessagesIn() {
+        return messagesIn.get();
+    }
+
+    public long getMessagesOut() {
+        return messagesOut.get();
+    }
+
+    /**
+     * Joins minus leaves over all replicas
+     */
+    public long getMemberCount(String communityId) {
+        long count = 0;
+        for (long[] counts : memberCounters.get(communityId).values()) {
+            count += counts[0] - counts[1];
+        }
+        return count;
+    }
+
+    @Override
+    public void onStart() {
+        started.countDown();
+    }
+
+    @Override
+    public void onOpen(WebSocket conn, ClientHandshake handshake) {
+        conn.setAttachment(new Session());
+    }
+
+    @Override
+    public void onClose(WebSocket conn, int code, String reason, boolean remote) {
+        Session session = conn.getAttachment();
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            for (String communityId : session.cursors.keySet()) {
+                Set<WebSocket> connections = subscribers.get(communityId);
+                if (connections != null) {
+                    connections.remove(conn);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void onMessage(WebSocket conn, String text) {
+        Frame frame;
+        try {
+            frame = gson.fromJson(text, Frame.class);
+        } catch (JsonParseException e) {
+            send(conn, Frame.error("Malformed frame"));
+            return;
+        }
+        if (frame == null || frame.type == null) {
+            send(conn, Frame.error("Missing type"));
+            return;
+        }
+
+        if (frame.communityId == null && !Frame.CREDIT.equals(frame.type)
+                && !(Frame.MEMBERS.equals(frame.type) && frame.counters != null)) {
+            send(conn, Frame.error("Missing communityId"));
+            return;
+        }
+
+        Session session = conn.getAttachment();
+        switch (frame.type) {
+            case Frame.SUBSCRIBE:
+                synchronized (session) {
+                    session.cursors.put(frame.communityId, frame.after != null ? frame.after : 0L);
+                }
+                subscribers.computeIfAbsent(frame.communityId, id -> ConcurrentHashMap.newKeySet()).add(conn);
+                pump(conn, session);
+                break;
+            case Frame.UNSUBSCRIBE:
+                synchronized (session) {
+                    session.cursors.remove(frame.communityId);
+                }
+                Set<WebSocket> connections = subscribers.get(frame.communityId);
+                if (connections != null) {
+                    connections.remove(conn);
+                }
+                break;
+            case Frame.CREDIT:
+                synchronized (session) {
+                    session.credit += frame.count != null ? frame.count : 0;
+                }
+                pump(conn, session);
+                break;
+            case Frame.PUBLISH:
+                publish(conn, frame);
+                break;
+            case Frame.MEMBERS:
+                members(conn, frame);
+                break;
+            default:
+                send(conn, Frame.error("Unknown type " + frame.type));
+        }
+    }
+
+    @Override
+    public void onError(WebSocket conn, Exception ex) {
+        System.err.println("Sync server error: " + ex);
+    }
+
+    private void publish(WebSocket conn, Frame frame) {
+        if (frame.messages == null) {
+            send(conn, Frame.error("Publish needs messages"));
+            return;
+        }
+        List<WireMessage> stored = store.append(frame.communityId, frame.messages);
+        messagesIn.addAndGet(stored.size());
+
+        // Retried messages are acknowledged again, only new ones are pushed
+        List<String> clientIds = new ArrayList<>();
+        for (WireMessage message : frame.messages) {
+            clientIds.add(message.clientId);
+        }
+        send(conn, Frame.ack(frame.communityId, clientIds));
+
+        if (!stored.isEmpty()) {
+            Set<WebSocket> connections = subscribers.get(frame.communityId);
+            if (connections != null) {
+                for (WebSocket subscriber : connections) {
+                    pump(subscriber, subscriber.getAttachment());
+                }
+            }
+        }
+    }
+
+    private void members(WebSocket conn, Frame frame) {
+        if (frame.counters != null) {
+            membersBatch(conn, frame.counters);
+            return;
+        }
+        if (frame.counter == null) {
+            send(conn, Frame.error("Members needs a counter"));
+            return;
+        }
+        Map<String, long[]> before = memberCounters.get(frame.communityId);
+        Map<String, long[]> merged = memberCounters.merge(frame.communityId, frame.counter);
+        send(conn, Frame.members(frame.communityId, merged, frame.opId));
+
+        // Membership changes are rare; every connected client gets them
+        if (!MemberCounters.same(before, merged)) {
+            Frame update = Frame.members(frame.communityId, merged, null);
+            for (WebSocket other : getConnections()) {
+                if (other != conn) {
+                    send(other, update);
+                }
+            }
+        }
+    }
+
+    // One reply with the counters the sender is behind on, and one update
+    // to everyone else with the counters that changed
+    private void membersBatch(WebSocket conn, Map<String, Map<String, long[]>> counters) {
+        Map<String, Map<String, long[]>> reply = new HashMap<>();
+        Map<String, Map<String, long[]>> changed = new HashMap<>();
+        for (Map.Entry<String, Map<String, long[]>> entry : counters.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                continue;
+            }
+            Map<String, long[]> before = memberCounters.get(entry.getKey());
+            Map<String, long[]> merged = memberCounters.merge(entry.getKey(), entry.getValue());
+            if (!MemberCounters.same(entry.getValue(), merged)) {
+                reply.put(entry.getKey(), merged);
+            }
+            if (!MemberCounters.same(before, merged)) {
+                changed.put(entry.getKey(), merged);
+            }
+        }
+        send(conn, Frame.members(reply));
+
+        if (!changed.isEmpty()) {
+            Frame update = Frame.members(changed);
+            for (WebSocket other : getConnections()) {
+                if (other != conn) {
+                    send(other, update);
+                }
+            }
+        }
+    }
+
+    // Send what the connection is missing, as far as its credit allows,
+    // taking one frame from each community in turn
+    private void pump(WebSocket conn, Session session) {
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            boolean sent = true;
+            while (session.credit > 0 && sent) {
+                sent = false;
+                for (Map.Entry<String, Long> cursor : session.cursors.entrySet()) {
+                    if (session.credit == 0) {
+                        break;
+                    }
+                    List<WireMessage> page = store.after(cursor.getKey(), cursor.getValue(), MAX_DELTA_MESSAGES);
+                    if (page.isEmpty()) {
+                        continue;
+                    }
+                    if (!send(conn, Frame.delta(cursor.getKey(), page))) {
+                        return;
+                    }
+                    session.credit--;
+                    cursor.setValue(page.get(page.size() - 1).seq);
+                    messagesOut.addAndGet(page.size());
+                    sent = true;
+                }
+            }
+        }
+    }
+
+    private boolean send(WebSocket conn, Frame frame) {
+        try {
+            conn.send(gson.toJson(frame));
+            return true;
+        } catch (WebsocketNotConnectedException e) {
+            return false;
+        }
+    }
+}